@@ -9,9 +9,14 @@ import com.hatechnology.apps.logger.DefaultLogger;
 import com.hatechnology.apps.core_messaging.*;
 
 import java.io.IOException;
-import java.net.Socket;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -32,6 +37,11 @@ public class AsyncSocketClient extends MessagingService{
     private static final int DEFAULT_MAX_BYTES_TO_TRANSFER = 16400;
     private static final int DEFAULT_TIMEOUT_SECONDS = 60 * 5;
     private static final boolean DEFAULT_SECURE_MESSAGES = false;
+    private static final int DEFAULT_DISPATCH_WORKERS = Runtime.getRuntime().availableProcessors();
+    private static final int DEFAULT_DISPATCH_QUEUE_CAPACITY = DispatchExecutor.DEFAULT_QUEUE_CAPACITY;
+    private static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final long DEFAULT_CONNECT_STAGGER_MILLIS = 250;
+    private static final int DEFAULT_MAX_PARALLEL_CONNECTS = 3;
 
     private int currentHostIndex;
     private List<SocketHost> hostList;
@@ -41,15 +51,30 @@ public class AsyncSocketClient extends MessagingService{
     private boolean onLineMode;
     private boolean connectionStarted;
     private boolean keepConnectionAlive;
+    //Created by this client, so it is shut down with it
+    private DispatchExecutor ownDispatchExecutor;
     private int secondsToReconnect;
     private List<OnMessageBehavior> receivers;
+    private HostSelector hostSelector = new HostSelector();
+    private ReconnectPolicy reconnectPolicy = new ReconnectPolicy();
+    //The reconnections failed in a row
+    private int reconnectAttempts;
+    //Until when the server asked to wait, in System.nanoTime(), empty if it did not
+    private volatile OptionalLong retryAfterDeadline = OptionalLong.empty();
+    private int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private long connectStaggerMillis = DEFAULT_CONNECT_STAGGER_MILLIS;
+    private int maxParallelConnects = DEFAULT_MAX_PARALLEL_CONNECTS;
+    //Where it is connected now, the pings measure it
+    private volatile SocketHost connectedHost;
+    //Subscribed again on each connection, the server forgets them on disconnect
+    private final Set<String> topics = ConcurrentHashMap.newKeySet();
 
     /**
      *
      * @param clientId This paramenter is the unique identifier for this client/station.
      * @param hostList The hosts to connect the clients
      * @param keepConnectionAlive To reconnect if disconnected
-     * @param secondsToReconnect The amount of seconds to wait to retry the reconnection
+     * @param secondsToReconnect The max amount of seconds to wait to retry the reconnection, see {@link ReconnectPolicy}
      * @param maxBytesToTransfer The number of bytes to be transfered when sending through the socket output stream.
      * @param timeoutSeconds The amount seconds to wait for a response
      * @param secureMessages If true, each message will be checked for integrity.
@@ -63,7 +88,15 @@ public class AsyncSocketClient extends MessagingService{
         this.secondsToReconnect = secondsToReconnect;
         this.receivers = receivers;
 
+        reconnectPolicy.setMaxDelayMillis(TimeUnit.SECONDS.toMillis(secondsToReconnect));
+
+        //The server asks to wait before reconnecting when it is going down or overloaded
+        addRequestReceiver(SyncMessagePaths.RETRY_AFTER, (message, isAuthenticated) -> onRetryAfter(message.getSyncRequest().getText()));
+
         this.setUniqueId(clientId);
+
+        //The receivers of this client do not compete with the other clients of the process
+        ensureDispatchExecutor();
     }
 
     public AsyncSocketClient(String clientId, List<SocketHost> hostList) throws BusinessException {
@@ -126,12 +159,88 @@ public class AsyncSocketClient extends MessagingService{
         this.keepConnectionAlive = keepConnectionAlive;
     }
 
+    public HostSelector getHostSelector() {
+        return hostSelector;
+    }
+
+    /**
+     * How the host of each connection is chosen. The same selector can be given to many clients, so they share what they learn of the hosts.
+     * @param hostSelector
+     */
+    public void setHostSelector(HostSelector hostSelector) {
+        if (hostSelector == null)
+            throw new IllegalArgumentException("The host selector can not be null!");
+
+        this.hostSelector = hostSelector;
+    }
+
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    /**
+     * @param connectTimeoutMillis The max time to connect to a host, 0 to wait as long as the system does.
+     */
+    public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    public long getConnectStaggerMillis() {
+        return connectStaggerMillis;
+    }
+
+    /**
+     * @param connectStaggerMillis How long a host is given to connect before trying the next one at the same time.
+     */
+    public void setConnectStaggerMillis(long connectStaggerMillis) {
+        this.connectStaggerMillis = connectStaggerMillis;
+    }
+
+    public int getMaxParallelConnects() {
+        return maxParallelConnects;
+    }
+
+    /**
+     * @param maxParallelConnects The max number of hosts tried on each connection, 1 to try just one as it always was.
+     */
+    public void setMaxParallelConnects(int maxParallelConnects) {
+        this.maxParallelConnects = Math.max(maxParallelConnects, 1);
+    }
+
+    /**
+     * @return The host it is connected to, null if it is not connected.
+     */
+    public SocketHost getConnectedHost() {
+        return connectedHost;
+    }
+
     public int getSecondsToReconnect() {
         return secondsToReconnect;
     }
 
+    /**
+     * The max seconds to wait to retry the reconnection, it sets the max delay of the {@link ReconnectPolicy}.
+     * @param secondsToReconnect
+     */
     public void setSecondsToReconnect(int secondsToReconnect) {
         this.secondsToReconnect = secondsToReconnect;
+
+        reconnectPolicy.setMaxDelayMillis(TimeUnit.SECONDS.toMillis(secondsToReconnect));
+    }
+
+    public ReconnectPolicy getReconnectPolicy() {
+        return reconnectPolicy;
+    }
+
+    /**
+     * How long to wait before each reconnection. Use {@link ReconnectPolicy#fixed(long)} to always wait the same, as it was before.
+     * @param reconnectPolicy
+     */
+    public void setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+        if (reconnectPolicy == null)
+            throw new IllegalArgumentException("The reconnect policy can not be null!");
+
+        this.reconnectPolicy = reconnectPolicy;
     }
 
     private void startSocketClientConnection() throws BusinessException, IOException, ConnectionNotAvailableException {
@@ -142,15 +251,23 @@ public class AsyncSocketClient extends MessagingService{
         if ( !onLineMode)
             throw new BusinessException("Offline mode is enabled");
 
-        disconnect(false);
+        //Just the previous socket, the client is not stopping
+        super.disconnect(false);
+
+        ensureDispatchExecutor();
 
         /*if (hostList.size() == 0)
             throw new BusinessException(Strings.NOT_HOST_PROVIDED_TO_CONNECT);*/
 
-        SocketHost socketHost = getCurrentHost();
+        List<SocketHost> socketHosts = selectHosts();
 
         try {
-            mSocket = new Socket(socketHost.getHost(), socketHost.getPort());
+            //The hosts are raced, the first one connected is kept
+            ConnectionRacer.Attempt connection = new ConnectionRacer(socketHosts, connectTimeoutMillis, connectStaggerMillis, hostSelector).connect();
+
+            mSocket = connection.getSocket();
+            connectedHost = connection.getHost();
+            currentHostIndex = hostList.indexOf(connectedHost);
 
             //Listener for the incoming messages
             startListener();
@@ -165,6 +282,14 @@ public class AsyncSocketClient extends MessagingService{
             onConnected();
 
         } catch (IOException e) {
+            SocketHost socketHost = connectedHost;
+
+            //Connected, but it failed right after. The failures to connect were already told by the racer
+            if (socketHost != null){
+                connectedHost = null;
+                hostSelector.onConnectFailed(socketHost);
+            }
+
             moveToOtherSocketHost();
             //Set reconnecting
             setReconnecting(false);
@@ -174,12 +299,26 @@ public class AsyncSocketClient extends MessagingService{
         }
     }
 
-    private SocketHost getCurrentHost() throws BusinessException {
+    /**
+     * The hosts for the next connection, the healthy and fast ones go first, see {@link HostSelector}.
+     * @return
+     * @throws BusinessException
+     */
+    private List<SocketHost> selectHosts() throws BusinessException {
 
         if (hostList.size() == 0)
             throw new BusinessException("Not host available to connect!");
 
-        return getHostList().get(currentHostIndex);
+        List<SocketHost> socketHosts = new ArrayList<>();
+
+        for (int index: hostSelector.rank(hostList, currentHostIndex)){
+            if (socketHosts.size() == maxParallelConnects)
+                break;
+
+            socketHosts.add(hostList.get(index));
+        }
+
+        return socketHosts;
     }
 
     private void moveToOtherSocketHost(){
@@ -214,7 +353,7 @@ public class AsyncSocketClient extends MessagingService{
         setConnected(false);
 
         try {
-            TimeUnit.SECONDS.sleep(secondsToReconnect);
+            waitToReconnect();
         } catch (InterruptedException e) {
             DefaultLogger.logEvent("AsyncSocketClient.reconnectSocketClient", e.getMessage(), DefaultLogger.ERROR_LEVEL);
         }
@@ -222,6 +361,46 @@ public class AsyncSocketClient extends MessagingService{
         startSocketClientConnection();
     }
 
+    /**
+     * Wait what the policy says, or what the server asked if it is longer. The hint of the server can come
+     * while waiting, since the connection is lost as soon as it is read.
+     * @throws InterruptedException
+     */
+    private void waitToReconnect() throws InterruptedException {
+        long waitMillis = reconnectPolicy.getDelayMillis(reconnectAttempts++);
+
+        while (true){
+            TimeUnit.MILLISECONDS.sleep(waitMillis);
+
+            OptionalLong deadline = retryAfterDeadline;
+
+            if ( !deadline.isPresent())
+                return;
+
+            retryAfterDeadline = OptionalLong.empty();
+
+            long retryAfterNanos = deadline.getAsLong() - System.nanoTime();
+
+            if (retryAfterNanos <= 0)
+                return;
+
+            //The clients asked at the same time do not come back together either
+            waitMillis = TimeUnit.NANOSECONDS.toMillis(retryAfterNanos) + reconnectPolicy.getDelayMillis(reconnectAttempts);
+        }
+    }
+
+    private void onRetryAfter(String retryAfter) {
+        try {
+            long retryAfterMillis = reconnectPolicy.getRetryAfterMillis(Long.parseLong(retryAfter));
+
+            retryAfterDeadline = OptionalLong.of(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryAfterMillis));
+
+            DefaultLogger.logEvent("AsyncSocketClient.onRetryAfter", "The server asked to wait " + retryAfterMillis + " ms to reconnect", DefaultLogger.DEBUG_LEVEL);
+        } catch (NumberFormatException e) {
+            DefaultLogger.logEvent("AsyncSocketClient.onRetryAfter", "Not a valid time to wait: " + retryAfter, DefaultLogger.ERROR_LEVEL);
+        }
+    }
+
     protected void setBehaviors(){
 
         //Set the default receiver
@@ -235,8 +414,46 @@ public class AsyncSocketClient extends MessagingService{
         }
     }
 
+    /**
+     * Give this client its own executor again if the last one was shut down, unless another one was set.
+     */
+    private void ensureDispatchExecutor() {
+        DispatchExecutor executor = ownDispatchExecutor;
+
+        if (executor != null && (!executor.isShutdown() || getDispatchExecutor() != executor))
+            return;
+
+        ownDispatchExecutor = new DispatchExecutor("AsyncSocketClient-" + getUniqueId(), DEFAULT_DISPATCH_WORKERS, DEFAULT_DISPATCH_QUEUE_CAPACITY, SaturationPolicy.CALLER_RUNS);
+        setDispatchExecutor(ownDispatchExecutor);
+    }
+
+    /**
+     * When the client is not going to reconnect its executor is shut down, the messages already received are still handled.
+     * @param callOnDisconnected
+     */
+    @Override
+    public void disconnect(boolean callOnDisconnected) {
+        super.disconnect(callOnDisconnected);
+
+        if (callOnDisconnected && isKeepConnectionAlive())
+            return;
+
+        DispatchExecutor executor = ownDispatchExecutor;
+
+        if (executor != null)
+            executor.shutdown();
+    }
+
     @Override
     protected void onDisconnected() {
+        SocketHost socketHost = connectedHost;
+
+        //Losing the connection counts against the host
+        if (socketHost != null){
+            connectedHost = null;
+            hostSelector.onFailure(socketHost);
+        }
+
         try {
             reconnectSocketClient(null, "AsyncSocketClient.onDisconnected");
         } catch (IOException | ConnectionNotAvailableException | BusinessException e) {
@@ -258,7 +475,62 @@ public class AsyncSocketClient extends MessagingService{
 
     @Override
     protected void onSessionStarted() {
+        //Back to the shortest waits
+        reconnectAttempts = 0;
+
         loadAndSendPendingMessages();
+
+        for (String topic: topics){
+            sendSubscription(SyncMessagePaths.SUBSCRIBE, topic);
+        }
+    }
+
+    /**
+     * Get the messages the server publishes to the topic, see {@link SyncMessage#getTopic()}.
+     * The subscription is kept across the reconnections.
+     * @param topic
+     * @return Completed with the response of the server, or right away with null if it was already subscribed
+     * or it is not connected, then it is subscribed when it connects.
+     */
+    public CompletableFuture<SyncMessage> subscribe(String topic) {
+        if ( !topics.add(topic) || !isConnected())
+            return CompletableFuture.completedFuture(null);
+
+        return sendSubscription(SyncMessagePaths.SUBSCRIBE, topic);
+    }
+
+    public CompletableFuture<SyncMessage> unsubscribe(String topic) {
+        if ( !topics.remove(topic) || !isConnected())
+            return CompletableFuture.completedFuture(null);
+
+        return sendSubscription(SyncMessagePaths.UNSUBSCRIBE, topic);
+    }
+
+    public Set<String> getTopics() {
+        return Collections.unmodifiableSet(topics);
+    }
+
+    private CompletableFuture<SyncMessage> sendSubscription(String path, String topic) {
+        SyncRequest request = new SyncRequest(path);
+        request.setText(topic);
+
+        SyncMessage message = new SyncMessage();
+        message.setSyncRequest(request);
+
+        CompletableFuture<SyncMessage> response = sendRequestAsync(message);
+
+        response.whenComplete((responseMessage, e) -> {
+            SyncResponse syncResponse = responseMessage != null ? responseMessage.getSyncResponse() : null;
+
+            //Refused by the server, it is not asked again on the next connection
+            if (syncResponse != null && !syncResponse.isSuccess() && path.equals(SyncMessagePaths.SUBSCRIBE))
+                topics.remove(topic);
+
+            if (e != null || syncResponse == null || !syncResponse.isSuccess())
+                DefaultLogger.logEvent("AsyncSocketClient.sendSubscription", "Request=" + path + ", Topic=" + topic + ", Error=" + (e != null ? e.getMessage() : syncResponse != null ? syncResponse.getErrorMessage() : null), DefaultLogger.ERROR_LEVEL);
+        });
+
+        return response;
     }
 
     @Override
@@ -266,6 +538,14 @@ public class AsyncSocketClient extends MessagingService{
 
     }
 
+    @Override
+    protected void onRoundTrip(long roundTripNanos) {
+        SocketHost socketHost = connectedHost;
+
+        if (socketHost != null)
+            hostSelector.onRoundTrip(socketHost, roundTripNanos);
+    }
+
     @Override
     public boolean isConnected() {
         return connected;
@@ -303,11 +583,20 @@ public class AsyncSocketClient extends MessagingService{
         }
     }
 
-    private void authenticateClient() throws BusinessException, ConnectionNotAvailableException, MessageTimeoutException {
+    /**
+     * @return The credentials sent to the server each time the client connects.
+     */
+    protected Authentication createAuthentication() {
         Authentication authentication = new Authentication();
         authentication.setUser("admin");
         authentication.setPassword("admin");
 
+        return authentication;
+    }
+
+    private void authenticateClient() throws BusinessException, ConnectionNotAvailableException, MessageTimeoutException {
+        Authentication authentication = createAuthentication();
+
         SyncRequest request = new SyncRequest(SyncMessagePaths.AUTHENTICATE);
         request.setAuthentication(authentication);
 
@@ -0,0 +1,175 @@
+package com.hatechnology.apps.client_messages;
+
+import com.hatechnology.apps.core_messaging.SocketHost;
+import com.hatechnology.apps.utilities.BackgroundProcessHelper;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects to the first of several hosts that answers, the way the browsers do with the addresses of a name (happy eyeballs).
+ * The attempts start in order, each one a short delay after the previous one, or right away when the previous one fails,
+ * and they run at the same time. The first connected is kept and the others are closed, so a dead host costs
+ * the delay instead of the whole connect timeout. Each attempt is told to the {@link HostSelector}.
+ * A racer is used for one connection.
+ */
+class ConnectionRacer {
+
+    private final List<SocketHost> hosts;
+    private final int connectTimeoutMillis;
+    private final long staggerMillis;
+    private final HostSelector hostSelector;
+    private final BlockingQueue<Attempt> attempts = new LinkedBlockingQueue<>();
+    private boolean finished;
+
+    /**
+     * @param hosts In the order they are tried.
+     * @param connectTimeoutMillis The max time of each attempt, 0 to wait as long as the system does.
+     * @param staggerMillis The time an attempt is given before starting the next one.
+     * @param hostSelector
+     */
+    ConnectionRacer(List<SocketHost> hosts, int connectTimeoutMillis, long staggerMillis, HostSelector hostSelector) {
+        this.hosts = hosts;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.staggerMillis = staggerMillis;
+        this.hostSelector = hostSelector;
+    }
+
+    /**
+     * @return The first attempt connected.
+     * @throws IOException The error of the last attempt, when all of them failed.
+     */
+    Attempt connect() throws IOException {
+        if (hosts.isEmpty())
+            throw new IOException("Not host available to connect!");
+
+        IOException lastError = null;
+        int next = 0;
+        int running = 0;
+
+        try {
+            start(hosts.get(next++));
+            running++;
+
+            while (running > 0){
+                //The last one is waited for as long as it takes
+                Attempt attempt = next < hosts.size() ? attempts.poll(staggerMillis, TimeUnit.MILLISECONDS) : attempts.take();
+
+                if (attempt == null){
+                    //Too slow, the next one joins the race
+                    start(hosts.get(next++));
+                    running++;
+                    continue;
+                }
+
+                running--;
+
+                if (attempt.socket != null)
+                    return attempt;
+
+                lastError = attempt.error;
+
+                //The next one does not wait for the delay
+                if (next < hosts.size()){
+                    start(hosts.get(next++));
+                    running++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            lastError = new InterruptedIOException("Interrupted while connecting.");
+        } finally {
+            finish();
+        }
+
+        throw lastError;
+    }
+
+    private void start(SocketHost host) {
+        hostSelector.onAttempt(host);
+
+        BackgroundProcessHelper.startThread(() -> {
+            Socket socket = new Socket();
+            long connectStart = System.nanoTime();
+
+            try {
+                socket.connect(new InetSocketAddress(host.getHost(), host.getPort()), connectTimeoutMillis);
+
+                //The ones that lose the race also tell how fast the host is
+                hostSelector.onConnected(host, System.nanoTime() - connectStart);
+
+                offer(new Attempt(host, socket, null));
+            } catch (IOException | RuntimeException e) {
+                close(socket);
+
+                hostSelector.onConnectFailed(host);
+
+                offer(new Attempt(host, null, e instanceof IOException ? (IOException) e : new IOException(e)));
+            }
+        });
+    }
+
+    private void offer(Attempt attempt) {
+        synchronized (this){
+            if ( !finished){
+                attempts.add(attempt);
+                return;
+            }
+        }
+
+        //The race is over
+        if (attempt.socket != null)
+            close(attempt.socket);
+    }
+
+    /**
+     * Close the attempts connected after the winner. The ones still running close themselves when they end.
+     */
+    private void finish() {
+        synchronized (this){
+            finished = true;
+        }
+
+        Attempt attempt;
+
+        while ((attempt = attempts.poll()) != null){
+            if (attempt.socket != null)
+                close(attempt.socket);
+        }
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+
+        }
+    }
+
+    static class Attempt {
+        private final SocketHost host;
+        private final Socket socket;
+        private final IOException error;
+
+        Attempt(SocketHost host, Socket socket, IOException error) {
+            this.host = host;
+            this.socket = socket;
+            this.error = error;
+        }
+
+        SocketHost getHost() {
+            return host;
+        }
+
+        Socket getSocket() {
+            return socket;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.hatechnology.apps.client_messages;
+
+/**
+ * How {@link HostSelector} chooses among the hosts that are not ejected.
+ */
+public enum HostSelectionStrategy {
+    /**
+     * The next host of the list after the one that failed, as it always was.
+     */
+    ROUND_ROBIN,
+
+    /**
+     * The host with the lowest latency. The hosts never tried go first, so all of them get measured.
+     */
+    FASTEST,
+
+    /**
+     * The fastest of two hosts taken at random. Many clients choosing at the same time do not pile onto
+     * the same host, and still avoid the slow ones.
+     */
+    POWER_OF_TWO_CHOICES
+}
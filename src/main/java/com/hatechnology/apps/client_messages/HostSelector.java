@@ -0,0 +1,365 @@
+package com.hatechnology.apps.client_messages;
+
+import com.hatechnology.apps.core_messaging.SocketHost;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses the host of each connection of {@link AsyncSocketClient}, by how the hosts did before.
+ * It keeps for each host a moving average of the connect time and of the round trip of the pings,
+ * and its recent failures. The hosts that fail a number of times in a row are ejected for a while (circuit breaker),
+ * then one connection is let through to try them again: if it works they are back, if not they are ejected again.
+ * When every host is ejected, the one that comes back first is used anyway, a client always has somewhere to connect.
+ * The hosts are known by their name and port, so a selector can be shared by the clients of the same servers.
+ */
+public class HostSelector {
+
+    //Default
+    private static final HostSelectionStrategy DEFAULT_STRATEGY = HostSelectionStrategy.POWER_OF_TWO_CHOICES;
+    private static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    private static final long DEFAULT_EJECTION_MILLIS = 30000;
+    //The weight of the new sample in the averages
+    private static final double DEFAULT_SMOOTHING = 0.3;
+
+    private final Map<String, HostStats> stats = new ConcurrentHashMap<>();
+    private volatile HostSelectionStrategy strategy = DEFAULT_STRATEGY;
+    private volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private volatile long ejectionMillis = DEFAULT_EJECTION_MILLIS;
+    private volatile double smoothing = DEFAULT_SMOOTHING;
+
+    public HostSelector() {
+    }
+
+    public HostSelector(HostSelectionStrategy strategy) {
+        setStrategy(strategy);
+    }
+
+    public HostSelectionStrategy getStrategy() {
+        return strategy;
+    }
+
+    public void setStrategy(HostSelectionStrategy strategy) {
+        if (strategy == null)
+            throw new IllegalArgumentException("The strategy can not be null!");
+
+        this.strategy = strategy;
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    /**
+     * @param failureThreshold The failures in a row that eject a host.
+     */
+    public void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = Math.max(failureThreshold, 1);
+    }
+
+    public long getEjectionMillis() {
+        return ejectionMillis;
+    }
+
+    /**
+     * @param ejectionMillis How long an ejected host is not used before trying it again.
+     */
+    public void setEjectionMillis(long ejectionMillis) {
+        this.ejectionMillis = ejectionMillis;
+    }
+
+    public double getSmoothing() {
+        return smoothing;
+    }
+
+    /**
+     * @param smoothing Between 0 and 1, how much a new sample moves the averages. The higher, the faster they follow the changes.
+     */
+    public void setSmoothing(double smoothing) {
+        if (smoothing <= 0 || smoothing > 1)
+            throw new IllegalArgumentException("The smoothing must be greater than 0 and up to 1!");
+
+        this.smoothing = smoothing;
+    }
+
+    /**
+     * @param hosts
+     * @param currentIndex The host used last, where {@link HostSelectionStrategy#ROUND_ROBIN} goes on from.
+     * @return The index of the host to connect to, -1 if the list is empty.
+     */
+    public int select(List<SocketHost> hosts, int currentIndex) {
+        List<Integer> ranking = rank(hosts, currentIndex);
+
+        if (ranking.isEmpty())
+            return -1;
+
+        int selected = ranking.get(0);
+
+        onAttempt(hosts.get(selected));
+
+        return selected;
+    }
+
+    /**
+     * The hosts in the order they should be tried: first the one chosen by the strategy, then the other ones not ejected,
+     * the fastest first, or in the order of the list for {@link HostSelectionStrategy#ROUND_ROBIN}.
+     * When every host is ejected, just the one that comes back first.
+     * Call {@link #onAttempt(SocketHost)} for each one actually tried.
+     * @param hosts
+     * @param currentIndex The host used last, where {@link HostSelectionStrategy#ROUND_ROBIN} goes on from.
+     * @return The indexes of the hosts in the list.
+     */
+    public List<Integer> rank(List<SocketHost> hosts, int currentIndex) {
+        int size = hosts.size();
+        List<Integer> ranking = new ArrayList<>(size);
+
+        if (size == 0)
+            return ranking;
+
+        long now = System.nanoTime();
+        List<Integer> available = new ArrayList<>(size);
+
+        for (int i = 0; i < size; i++){
+            if (getStats(hosts.get(i)).isAvailable(now))
+                available.add(i);
+        }
+
+        if (available.isEmpty()){
+            ranking.add(soonestBack(hosts));
+            return ranking;
+        }
+
+        int first;
+
+        switch (strategy){
+            case ROUND_ROBIN:
+                first = nextAvailable(available, currentIndex, size);
+                break;
+            case FASTEST:
+                first = fastest(hosts, available);
+                break;
+            default:
+                first = powerOfTwoChoices(hosts, available);
+        }
+
+        ranking.add(first);
+
+        if (strategy == HostSelectionStrategy.ROUND_ROBIN){
+            for (int i = 1; i < size; i++){
+                int index = (first + i) % size;
+
+                if (available.contains(index))
+                    ranking.add(index);
+            }
+        }else {
+            List<Integer> others = new ArrayList<>(available);
+            others.remove(Integer.valueOf(first));
+            others.sort((one, other) -> Double.compare(getStats(hosts.get(one)).getScore(), getStats(hosts.get(other)).getScore()));
+
+            ranking.addAll(others);
+        }
+
+        return ranking;
+    }
+
+    /**
+     * A connection to the host is starting. If it was ejected, this is the one connection that tries it again.
+     * @param host
+     */
+    public void onAttempt(SocketHost host) {
+        getStats(host).onAttempt(System.nanoTime());
+    }
+
+    /**
+     * @param host
+     * @param connectNanos How long it took to connect.
+     */
+    public void onConnected(SocketHost host, long connectNanos) {
+        getStats(host).onSuccess(connectNanos, false, smoothing);
+    }
+
+    public void onConnectFailed(SocketHost host) {
+        getStats(host).onFailure(System.nanoTime(), failureThreshold, TimeUnit.MILLISECONDS.toNanos(ejectionMillis));
+    }
+
+    /**
+     * @param host
+     * @param roundTripNanos The round trip of a ping answered.
+     */
+    public void onRoundTrip(SocketHost host, long roundTripNanos) {
+        getStats(host).onSuccess(roundTripNanos, true, smoothing);
+    }
+
+    /**
+     * A ping not answered, or the connection lost.
+     * @param host
+     */
+    public void onFailure(SocketHost host) {
+        onConnectFailed(host);
+    }
+
+    /**
+     * @param host
+     * @return The latency used to compare the host, in nanoseconds. 0 if it was never measured.
+     */
+    public long getLatencyNanos(SocketHost host) {
+        return getStats(host).getLatency();
+    }
+
+    /**
+     * @param host
+     * @return true if the host is ejected now.
+     */
+    public boolean isEjected(SocketHost host) {
+        return !getStats(host).isAvailable(System.nanoTime());
+    }
+
+    /**
+     * Forget the host, it starts from scratch.
+     * @param host
+     */
+    public void reset(SocketHost host) {
+        stats.remove(key(host));
+    }
+
+    private HostStats getStats(SocketHost host) {
+        return stats.computeIfAbsent(key(host), key -> new HostStats());
+    }
+
+    private static String key(SocketHost host) {
+        return host.getHost() + ":" + host.getPort();
+    }
+
+    private int nextAvailable(List<Integer> available, int currentIndex, int size) {
+        for (int i = 0; i < size; i++){
+            int index = (Math.max(currentIndex, 0) + i) % size;
+
+            if (available.contains(index))
+                return index;
+        }
+
+        return available.get(0);
+    }
+
+    private int fastest(List<SocketHost> hosts, List<Integer> available) {
+        int selected = available.get(0);
+        double bestScore = getStats(hosts.get(selected)).getScore();
+
+        for (int i = 1; i < available.size(); i++){
+            double score = getStats(hosts.get(available.get(i))).getScore();
+
+            if (score < bestScore){
+                bestScore = score;
+                selected = available.get(i);
+            }
+        }
+
+        return selected;
+    }
+
+    private int powerOfTwoChoices(List<SocketHost> hosts, List<Integer> available) {
+        int size = available.size();
+
+        if (size == 1)
+            return available.get(0);
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(size);
+        //Another one, never the same
+        int second = (first + 1 + random.nextInt(size - 1)) % size;
+
+        int firstIndex = available.get(first);
+        int secondIndex = available.get(second);
+
+        return getStats(hosts.get(secondIndex)).getScore() < getStats(hosts.get(firstIndex)).getScore() ? secondIndex : firstIndex;
+    }
+
+    private int soonestBack(List<SocketHost> hosts) {
+        int selected = 0;
+        long soonest = Long.MAX_VALUE;
+
+        for (int i = 0; i < hosts.size(); i++){
+            long ejectedUntil = getStats(hosts.get(i)).getEjectedUntil();
+
+            if (ejectedUntil < soonest){
+                soonest = ejectedUntil;
+                selected = i;
+            }
+        }
+
+        return selected;
+    }
+
+    /**
+     * What is known about one host. The clients sharing the selector update it at the same time, so it is locked.
+     */
+    private static class HostStats {
+        private double connectNanos;
+        private double roundTripNanos;
+        private int consecutiveFailures;
+        private boolean ejected;
+        private long ejectedUntil;
+        //Ejected, but a connection is trying it again
+        private boolean probing;
+
+        synchronized boolean isAvailable(long now) {
+            return !ejected || (!probing && now - ejectedUntil >= 0);
+        }
+
+        synchronized void onAttempt(long now) {
+            if (ejected && now - ejectedUntil >= 0)
+                probing = true;
+        }
+
+        synchronized void onSuccess(long nanos, boolean roundTrip, double smoothing) {
+            if (roundTrip)
+                roundTripNanos = roundTripNanos == 0 ? nanos : roundTripNanos + smoothing * (nanos - roundTripNanos);
+            else
+                connectNanos = connectNanos == 0 ? nanos : connectNanos + smoothing * (nanos - connectNanos);
+
+            consecutiveFailures = 0;
+            ejected = false;
+            probing = false;
+        }
+
+        synchronized void onFailure(long now, int failureThreshold, long ejectionNanos) {
+            consecutiveFailures++;
+
+            //The try after the ejection failed, or too many in a row
+            if (probing || consecutiveFailures >= failureThreshold){
+                ejected = true;
+                ejectedUntil = now + ejectionNanos;
+            }
+
+            probing = false;
+        }
+
+        /**
+         * The pings measure the server while it works, the connect time is used until there is one.
+         */
+        synchronized long getLatency() {
+            return (long) (roundTripNanos != 0 ? roundTripNanos : connectNanos);
+        }
+
+        /**
+         * The lower, the better. The recent failures make it worse, even before the host is ejected.
+         */
+        synchronized double getScore() {
+            double latency = roundTripNanos != 0 ? roundTripNanos : connectNanos;
+
+            //Never measured, but it already failed
+            if (latency == 0 && consecutiveFailures > 0)
+                return Double.MAX_VALUE;
+
+            return latency * (1 + consecutiveFailures);
+        }
+
+        synchronized long getEjectedUntil() {
+            return ejected ? ejectedUntil : Long.MIN_VALUE;
+        }
+    }
+}
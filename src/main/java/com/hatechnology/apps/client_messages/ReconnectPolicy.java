@@ -0,0 +1,125 @@
+package com.hatechnology.apps.client_messages;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long {@link AsyncSocketClient} waits before each reconnection.
+ * The limit of the wait doubles with each failed reconnection, up to the max delay, and the wait is taken at random
+ * between zero and that limit (full jitter). So when a server restarts, its clients come back spread over time
+ * instead of all at the same instant, and they wait longer while it keeps failing.
+ * The server can also ask them to wait, see {@link com.hatechnology.apps.core_messaging.SyncMessagePaths#RETRY_AFTER}.
+ */
+public class ReconnectPolicy {
+
+    //Default
+    private static final long DEFAULT_BASE_DELAY_MILLIS = 500;
+    private static final long DEFAULT_MAX_DELAY_MILLIS = 30000;
+    private static final double DEFAULT_MULTIPLIER = 2;
+    private static final long DEFAULT_MAX_RETRY_AFTER_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private volatile long baseDelayMillis = DEFAULT_BASE_DELAY_MILLIS;
+    private volatile long maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+    private volatile double multiplier = DEFAULT_MULTIPLIER;
+    private volatile boolean jitter = true;
+    private volatile long maxRetryAfterMillis = DEFAULT_MAX_RETRY_AFTER_MILLIS;
+
+    public ReconnectPolicy() {
+    }
+
+    public ReconnectPolicy(long baseDelayMillis, long maxDelayMillis) {
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * @param delayMillis
+     * @return A policy that always waits the same, without jitter, as the clients always did.
+     */
+    public static ReconnectPolicy fixed(long delayMillis) {
+        ReconnectPolicy policy = new ReconnectPolicy(delayMillis, delayMillis);
+        policy.setMultiplier(1);
+        policy.setJitter(false);
+
+        return policy;
+    }
+
+    public long getBaseDelayMillis() {
+        return baseDelayMillis;
+    }
+
+    /**
+     * @param baseDelayMillis The limit of the wait of the first reconnection.
+     */
+    public void setBaseDelayMillis(long baseDelayMillis) {
+        this.baseDelayMillis = baseDelayMillis;
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    /**
+     * @param maxDelayMillis The limit of the wait never goes over it.
+     */
+    public void setMaxDelayMillis(long maxDelayMillis) {
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    /**
+     * @param multiplier How much the limit grows with each failed reconnection.
+     */
+    public void setMultiplier(double multiplier) {
+        if (multiplier < 1)
+            throw new IllegalArgumentException("The multiplier can not be less than 1!");
+
+        this.multiplier = multiplier;
+    }
+
+    public boolean isJitter() {
+        return jitter;
+    }
+
+    /**
+     * @param jitter false to wait the whole limit each time.
+     */
+    public void setJitter(boolean jitter) {
+        this.jitter = jitter;
+    }
+
+    public long getMaxRetryAfterMillis() {
+        return maxRetryAfterMillis;
+    }
+
+    /**
+     * @param maxRetryAfterMillis The longest wait a server can ask for.
+     */
+    public void setMaxRetryAfterMillis(long maxRetryAfterMillis) {
+        this.maxRetryAfterMillis = maxRetryAfterMillis;
+    }
+
+    /**
+     * @param attempt The number of reconnections that failed in a row, 0 for the first one after a disconnection.
+     * @return The time to wait before the reconnection.
+     */
+    public long getDelayMillis(int attempt) {
+        long limit = Math.min(maxDelayMillis, (long) (baseDelayMillis * Math.pow(multiplier, Math.max(attempt, 0))));
+
+        if ( !jitter || limit <= 0)
+            return Math.max(limit, 0);
+
+        return ThreadLocalRandom.current().nextLong(limit + 1);
+    }
+
+    /**
+     * @param retryAfterMillis What the server asked for.
+     * @return What is going to be waited for it.
+     */
+    public long getRetryAfterMillis(long retryAfterMillis) {
+        return Math.min(Math.max(retryAfterMillis, 0), maxRetryAfterMillis);
+    }
+}
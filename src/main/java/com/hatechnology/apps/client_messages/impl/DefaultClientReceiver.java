@@ -3,7 +3,6 @@ package com.hatechnology.apps.client_messages.impl;
 import com.hatechnology.apps.client_messages.AsyncSocketClient;
 import com.hatechnology.apps.core_messaging.SyncMessage;
 import com.hatechnology.apps.core_messaging.SyncMessagePaths;
-import com.hatechnology.apps.core_messaging.SyncRequest;
 import com.hatechnology.apps.core_messaging.SyncResponse;
 import com.hatechnology.apps.core_messaging.behaviors.OnMessageBehavior;
 import com.hatechnology.apps.logger.DefaultLogger;
@@ -18,16 +17,12 @@ public class DefaultClientReceiver implements OnMessageBehavior {
 
     @Override
     public void onMessageReceived(SyncMessage message, boolean isAuthenticated) {
-        //Get request
-        SyncRequest request = message.getSyncRequest();
+        //The paths are known without decoding the request nor the response
+        if (message.hasSyncRequest()){
+            String path = message.getRequestPath();
 
-        //Get response
-        SyncResponse response = message.getSyncResponse();
+            DefaultLogger.logEvent("DefaultClientReceiver.onMessage", "Getting request(MessageId="+ message.getId() + ", Request=" + path + ")", DefaultLogger.DEBUG_LEVEL);
 
-        if (request != null){
-            DefaultLogger.logEvent("DefaultClientReceiver.onMessage", "Getting request(MessageId="+ message.getId() + ", Request=" + request.getPath() + ")", DefaultLogger.DEBUG_LEVEL);
-
-            String path = request.getPath();
             SyncResponse mResponse = new SyncResponse();
 
             switch (path){
@@ -35,6 +30,9 @@ public class DefaultClientReceiver implements OnMessageBehavior {
                     //With sending back a success true the client id will be assigned based on the message source id property.
                     mResponse.setSuccess(true);
                     break;
+                case SyncMessagePaths.RETRY_AFTER:
+                    //Just a hint for the reconnection, AsyncSocketClient reads it and the server does not wait for an answer
+                    return;
                 default:
                     return;
             }
@@ -43,8 +41,8 @@ public class DefaultClientReceiver implements OnMessageBehavior {
             this.socketClient.reply(null, mResponse, message);
         }
 
-        if (response != null){
-            DefaultLogger.logEvent("AsyncSocketClient.onMessage", "Getting response(MessageId="+ message.getId() + ", Response=" + response.getPath() + ")", DefaultLogger.DEBUG_LEVEL);
+        if (message.hasSyncResponse()){
+            DefaultLogger.logEvent("AsyncSocketClient.onMessage", "Getting response(MessageId="+ message.getId() + ", Response=" + message.getResponsePath() + ")", DefaultLogger.DEBUG_LEVEL);
         }
     }
 }
@@ -0,0 +1,30 @@
+package com.hatechnology.apps.core_messaging;
+
+/**
+ * What to do with a new message when the queue of a connection is over its high watermark,
+ * which happens when the other endpoint does not read as fast as we write.
+ * @see MessagingService#setBackpressurePolicy(BackpressurePolicy)
+ */
+public enum BackpressurePolicy {
+    /**
+     * The sender waits until the queue goes under the low watermark, or fails after the timeout of the connection.
+     * The event loop threads can not wait for themselves, so for them it is the same as {@link #FAIL}.
+     */
+    BLOCK,
+
+    /**
+     * The message is not sent and a {@link com.hatechnology.apps.exceptions.BusinessException} is thrown.
+     */
+    FAIL,
+
+    /**
+     * The oldest messages that were not started yet are discarded until the new one fits.
+     * The secure delivery messages are never discarded, if those are all we have it fails.
+     */
+    DROP_OLDEST,
+
+    /**
+     * The slow endpoint is disconnected and the message is not sent.
+     */
+    DISCONNECT
+}
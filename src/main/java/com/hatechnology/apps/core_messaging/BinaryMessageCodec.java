@@ -0,0 +1,473 @@
+package com.hatechnology.apps.core_messaging;
+
+import com.hatechnology.apps.utilities.JsonUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * A compact codec for the messages with high rates.
+ * The booleans are written as a bitset, the numbers as varints, the strings as length prefixed UTF-8
+ * and the content of the files as the raw bytes instead of base64, so it takes less CPU and less bytes than JSON.
+ * [marker][flags][id][sourceId][to][validationToken][sessionId][messageParts][correlationId][topic][timestamp][request][response]
+ * The request and the response are written as [path][length prefixed section], so they can be kept without decoding them,
+ * see {@link EncodedPayload}. The subclasses of {@link SyncRequest} are written as JSON inside the section,
+ * since their fields are not known here.
+ */
+public class BinaryMessageCodec implements MessageCodec {
+    public static final byte ID = 2;
+
+    //It never starts a JSON text nor a ping
+    private static final int MARKER = 0xB1;
+
+    //Message flags
+    private static final int WAIT_RESPONSE = 1;
+    private static final int SPLIT_MESSAGE = 1 << 1;
+    private static final int ENCRYPT_MESSAGE = 1 << 2;
+    private static final int PINGING_SERVER = 1 << 3;
+    private static final int SECURE_DELIVERY = 1 << 4;
+    private static final int CONFIRMING_DELIVERY = 1 << 5;
+    private static final int HAS_REQUEST = 1 << 6;
+    private static final int HAS_RESPONSE = 1 << 7;
+    private static final int HAS_CORRELATION_ID = 1 << 8;
+    private static final int HAS_TIMESTAMP = 1 << 9;
+    private static final int HAS_TOPIC = 1 << 10;
+
+    //Request and response flags
+    private static final int SUCCESS = 1;
+    private static final int HAS_AUTHENTICATION = 1 << 1;
+    private static final int JSON_CONTENT = 1 << 2;
+
+    //File flags
+    private static final int RAW_CONTENT = 1;
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public void encode(SyncMessage message, OutputStream outputStream) throws IOException {
+        Output output = new Output(outputStream);
+        output.writeByte(MARKER);
+
+        long timestamp = message.getMessageTimestamp();
+
+        //The payloads received with this codec are written as they came
+        message._decodePayloads(this);
+
+        EncodedPayload encodedRequest = ownPayload(message._getEncodedRequest());
+        EncodedPayload encodedResponse = ownPayload(message._getEncodedResponse());
+        SyncRequest request = encodedRequest == null ? message.getSyncRequest() : null;
+        SyncResponse response = encodedResponse == null ? message.getSyncResponse() : null;
+
+        int flags = 0;
+        if (message.isWaitResponse()) flags |= WAIT_RESPONSE;
+        if (message.isSplitMessage()) flags |= SPLIT_MESSAGE;
+        if (message.isEncryptMessage()) flags |= ENCRYPT_MESSAGE;
+        if (message.isPingingServer()) flags |= PINGING_SERVER;
+        if (message.isSecureDelivery()) flags |= SECURE_DELIVERY;
+        if (message.isConfirmingDelivery()) flags |= CONFIRMING_DELIVERY;
+        if (timestamp != 0) flags |= HAS_TIMESTAMP;
+        if (request != null || encodedRequest != null) flags |= HAS_REQUEST;
+        if (response != null || encodedResponse != null) flags |= HAS_RESPONSE;
+        if (message.getCorrelationId() != 0) flags |= HAS_CORRELATION_ID;
+        if (message.getTopic() != null) flags |= HAS_TOPIC;
+
+        output.writeVarLong(flags);
+        output.writeString(message.getId());
+        output.writeString(message.getSourceId());
+        output.writeString(message.getTo());
+        output.writeString(message.getValidationToken());
+        output.writeString(message.getSessionId());
+        output.writeVarLong(message.getMessageParts());
+
+        if (message.getCorrelationId() != 0)
+            output.writeVarLong(message.getCorrelationId());
+
+        if (message.getTopic() != null)
+            output.writeString(message.getTopic());
+
+        if (timestamp != 0)
+            output.writeVarLong(zigZag(timestamp));
+
+        if (encodedRequest != null){
+            output.writeString(encodedRequest.getPath());
+            output.writeBytes(encodedRequest.getData());
+        }else if (request != null){
+            output.writeString(request.getPath());
+            writeSection(output, request);
+        }
+
+        if (encodedResponse != null){
+            output.writeString(encodedResponse.getPath());
+            output.writeBytes(encodedResponse.getData());
+        }else if (response != null){
+            output.writeString(response.getPath());
+            writeSection(output, response);
+        }
+    }
+
+    private EncodedPayload ownPayload(EncodedPayload payload) {
+        return payload != null && payload.getCodec() == this ? payload : null;
+    }
+
+    private void writeSection(Output output, SyncCommonSharing common) throws IOException {
+        MessageBuffer section = MessageBuffer.acquire();
+
+        try {
+            Output sectionOutput = new Output(section);
+
+            if (common.getClass() != SyncRequest.class && common.getClass() != SyncResponse.class){
+                sectionOutput.writeVarLong(JSON_CONTENT);
+
+                Writer writer = new OutputStreamWriter(section, StandardCharsets.UTF_8);
+                JsonUtils.writeJson(common, common.getClass(), writer);
+                writer.flush();
+            }else if (common instanceof SyncRequest){
+                SyncRequest request = (SyncRequest) common;
+                Authentication authentication = request.getAuthentication();
+
+                writeCommon(sectionOutput, request, authentication != null ? HAS_AUTHENTICATION : 0);
+
+                if (authentication != null){
+                    sectionOutput.writeString(authentication.getUser());
+                    sectionOutput.writeString(authentication.getPassword());
+                    sectionOutput.writeString(authentication.getToken());
+                }
+
+                sectionOutput.writeString(request.getText());
+            }else {
+                writeCommon(sectionOutput, common, 0);
+            }
+
+            output.writeBytes(section.getData(), section.size());
+        } finally {
+            MessageBuffer.release(section);
+        }
+    }
+
+    @Override
+    public SyncMessage decode(byte[] data, int offset, int length) throws IOException {
+        Input input = new Input(data, offset, length);
+
+        if (input.readByte() != MARKER)
+            throw new IOException("This is not a binary message!");
+
+        int flags = input.readVarInt();
+
+        SyncMessage message = new SyncMessage();
+        message._setId(input.readString());
+        message.setSourceId(input.readString());
+        message.setTo(input.readString());
+        message.setValidationToken(input.readString());
+        message.setSessionId(input.readString());
+        message.setMessageParts(input.readVarInt());
+        message.setWaitResponse((flags & WAIT_RESPONSE) != 0);
+        message.setSplitMessage((flags & SPLIT_MESSAGE) != 0);
+        message.setEncryptMessage((flags & ENCRYPT_MESSAGE) != 0);
+        message._setPingingServer((flags & PINGING_SERVER) != 0);
+        message.setSecureDelivery((flags & SECURE_DELIVERY) != 0);
+        message.setConfirmingDelivery((flags & CONFIRMING_DELIVERY) != 0);
+
+        if ((flags & HAS_CORRELATION_ID) != 0)
+            message._setCorrelationId(input.readVarLong());
+
+        if ((flags & HAS_TOPIC) != 0)
+            message.setTopic(input.readString());
+
+        if ((flags & HAS_TIMESTAMP) != 0)
+            message._setTimestamp(unZigZag(input.readVarLong()));
+
+        if ((flags & HAS_REQUEST) != 0)
+            message._setEncodedRequest(new EncodedPayload(this, input.readString(), input.readBytes(), this::decodeRequest));
+
+        if ((flags & HAS_RESPONSE) != 0)
+            message._setEncodedResponse(new EncodedPayload(this, input.readString(), input.readBytes(), this::decodeResponse));
+
+        return message;
+    }
+
+    private SyncRequest decodeRequest(String path, byte[] section) throws IOException {
+        Input input = new Input(section, 0, section.length);
+        int flags = input.readVarInt();
+
+        if ((flags & JSON_CONTENT) != 0)
+            return (SyncRequest) input.readJson(PayloadTypes.getRequestType(path));
+
+        SyncRequest request = PayloadTypes.newRequest(path);
+
+        readCommon(input, request, flags);
+
+        if ((flags & HAS_AUTHENTICATION) != 0){
+            Authentication authentication = new Authentication();
+            authentication.setUser(input.readString());
+            authentication.setPassword(input.readString());
+            authentication.setToken(input.readString());
+
+            request.setAuthentication(authentication);
+        }
+
+        request.setText(input.readString());
+
+        return request;
+    }
+
+    private SyncResponse decodeResponse(String path, byte[] section) throws IOException {
+        Input input = new Input(section, 0, section.length);
+        int flags = input.readVarInt();
+
+        if ((flags & JSON_CONTENT) != 0)
+            return (SyncResponse) input.readJson(SyncResponse.class);
+
+        SyncResponse response = new SyncResponse();
+        response.setPath(path);
+
+        readCommon(input, response, flags);
+
+        return response;
+    }
+
+    private void writeCommon(Output output, SyncCommonSharing common, int flags) throws IOException {
+        if (common.isSuccess())
+            flags |= SUCCESS;
+
+        output.writeVarLong(flags);
+        output.writeString(common.getErrorMessage());
+
+        List<SyncFileBase64> files = common.getFiles();
+
+        //Zero means there is not list
+        output.writeVarLong(files == null ? 0 : files.size() + 1);
+
+        if (files == null)
+            return;
+
+        for (SyncFileBase64 file: files){
+            String encodedContent = file.getEncodedContent();
+            byte[] rawContent = encodedContent == null ? null : toRawContent(encodedContent);
+
+            output.writeVarLong(rawContent != null ? RAW_CONTENT : 0);
+            output.writeString(file.getName());
+            output.writeString(file.getVersion());
+            output.writeString(file.getSourcePath());
+            output.writeString(file.getDestinationPath());
+            output.writeString(file.getType());
+
+            if (rawContent != null)
+                output.writeBytes(rawContent);
+            else
+                output.writeString(encodedContent);
+
+            output.writeString(file.getTemporaryPath());
+        }
+    }
+
+    private void readCommon(Input input, SyncCommonSharing common, int flags) throws IOException {
+        common.setSuccess((flags & SUCCESS) != 0);
+        common.setErrorMessage(input.readString());
+
+        int filesCount = input.readVarInt() - 1;
+
+        if (filesCount < 0)
+            return;
+
+        //Each file takes some bytes, so a bigger count is not trusted, and the list is not sized by it
+        if (filesCount > input.remaining())
+            throw new IOException("Malformed files count in the binary message!");
+
+        List<SyncFileBase64> files = new ArrayList<>();
+
+        for (int i = 0; i < filesCount; i++){
+            int fileFlags = input.readVarInt();
+
+            SyncFileBase64 file = new SyncFileBase64();
+            file.setName(input.readString());
+            file.setVersion(input.readString());
+            file.setSourcePath(input.readString());
+            file.setDestinationPath(input.readString());
+            file.setType(input.readString());
+
+            if ((fileFlags & RAW_CONTENT) != 0)
+                file.setEncodedContent(Base64.getEncoder().encodeToString(input.readBytes()));
+            else
+                file.setEncodedContent(input.readString());
+
+            file.setTemporaryPath(input.readString());
+
+            files.add(file);
+        }
+
+        common.setFiles(files);
+    }
+
+    /**
+     * The content is sent as raw bytes just when encoding them again gives exactly the same text,
+     * otherwise the receiver would not get what was sent.
+     * @param encodedContent
+     * @return The raw bytes or null if the content must be sent as it is.
+     */
+    private static byte[] toRawContent(String encodedContent) {
+        if (encodedContent.length() % 4 != 0)
+            return null;
+
+        byte[] rawContent;
+
+        try {
+            rawContent = Base64.getDecoder().decode(encodedContent);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        //Every group of 4 chars but the last one has just one way to be written, so it is enough to check the last one
+        int lastGroupBytes = rawContent.length % 3 == 0 ? Math.min(3, rawContent.length) : rawContent.length % 3;
+        String lastGroup = Base64.getEncoder().encodeToString(Arrays.copyOfRange(rawContent, rawContent.length - lastGroupBytes, rawContent.length));
+
+        return encodedContent.endsWith(lastGroup) ? rawContent : null;
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static class Output {
+        private final OutputStream outputStream;
+
+        Output(OutputStream outputStream) {
+            this.outputStream = outputStream;
+        }
+
+        void writeByte(int value) throws IOException {
+            outputStream.write(value);
+        }
+
+        void writeVarLong(long value) throws IOException {
+            while ((value & ~0x7FL) != 0){
+                outputStream.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+
+            outputStream.write((int) value);
+        }
+
+        void writeBytes(byte[] bytes) throws IOException {
+            writeBytes(bytes, bytes.length);
+        }
+
+        void writeBytes(byte[] bytes, int length) throws IOException {
+            writeVarLong(length + 1L);
+
+            outputStream.write(bytes, 0, length);
+        }
+
+        void writeString(String value) throws IOException {
+            if (value == null){
+                writeVarLong(0);
+                return;
+            }
+
+            writeBytes(value.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static class Input {
+        private final byte[] buffer;
+        private final int limit;
+        private int position;
+
+        Input(byte[] buffer, int offset, int length) {
+            this.buffer = buffer;
+            this.position = offset;
+            this.limit = offset + length;
+        }
+
+        int remaining() {
+            return limit - position;
+        }
+
+        int readByte() throws IOException {
+            if (position >= limit)
+                throw new IOException("Unexpected end of the binary message!");
+
+            return buffer[position++] & 0xFF;
+        }
+
+        long readVarLong() throws IOException {
+            long value = 0;
+
+            for (int shift = 0; shift < 64; shift += 7){
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+
+            throw new IOException("Malformed varint in the binary message!");
+        }
+
+        /**
+         * The flags, the counts and the lengths. A bigger value would wrap when cast, and pass the checks of the length.
+         */
+        int readVarInt() throws IOException {
+            long value = readVarLong();
+
+            if (value < 0 || value > Integer.MAX_VALUE)
+                throw new IOException("Malformed number in the binary message!");
+
+            return (int) value;
+        }
+
+        byte[] readBytes() throws IOException {
+            int length = readVarInt() - 1;
+
+            if (length < 0 || length > limit - position)
+                throw new IOException("Malformed length in the binary message!");
+
+            byte[] bytes = Arrays.copyOfRange(buffer, position, position + length);
+            position += length;
+
+            return bytes;
+        }
+
+        Object readJson(Type type) throws IOException {
+            InputStreamReader reader = new InputStreamReader(new ByteArrayInputStream(buffer, position, limit - position), StandardCharsets.UTF_8);
+            position = limit;
+
+            try {
+                return JsonUtils.readJson(reader, type);
+            } catch (RuntimeException e) {
+                throw new IOException("Malformed JSON content in the binary message!", e);
+            }
+        }
+
+        String readString() throws IOException {
+            int length = readVarInt() - 1;
+
+            if (length == -1)
+                return null;
+
+            if (length < 0 || length > limit - position)
+                throw new IOException("Malformed length in the binary message!");
+
+            String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+
+            return value;
+        }
+    }
+}
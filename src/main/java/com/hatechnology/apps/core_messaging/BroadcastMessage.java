@@ -0,0 +1,99 @@
+package com.hatechnology.apps.core_messaging;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A message sent to many connections at once, see {@link MessagingService#broadcastMessage(BroadcastMessage)}.
+ * It is stamped once when created, and encoded once for each codec the connections use, so all of them write the same bytes.
+ * It keeps its own copy of the message, nobody changes it after that.
+ * The bytes are shared by the connections, so they must never be modified.
+ */
+public class BroadcastMessage {
+    private final SyncMessage message;
+    private final Map<MessageCodec, byte[]> encodedMessages = new ConcurrentHashMap<>();
+    private volatile byte[] legacyMessage;
+
+    public BroadcastMessage(SyncMessage message) {
+        this(message, message.getTopic());
+    }
+
+    /**
+     * @param message
+     * @param topic The topic it is published to, see {@link SyncMessage#getTopic()}.
+     */
+    public BroadcastMessage(SyncMessage message, String topic) {
+        this(message, topic, message.getTo());
+    }
+
+    /**
+     * @param message
+     * @param topic The topic it is published to, see {@link SyncMessage#getTopic()}.
+     * @param to Who the connections must forward it to, instead of the one of the message.
+     */
+    public BroadcastMessage(SyncMessage message, String topic, String to) {
+        this.message = new SyncMessage(message);
+        this.message.setTopic(topic);
+        this.message.setTo(to);
+        this.message._setDateTime();
+    }
+
+    /**
+     * @return The message as it is sent. It must not be modified.
+     */
+    public SyncMessage getMessage() {
+        return message;
+    }
+
+    /**
+     * @return A copy for the connections that send the message on their own.
+     */
+    SyncMessage copyMessage() {
+        return new SyncMessage(message);
+    }
+
+    /**
+     * @param codec
+     * @param legacyFormat The legacy endpoints read the date time instead of the timestamp.
+     * @return The encoded message, the same array for every connection.
+     * @throws IOException
+     */
+    byte[] getData(MessageCodec codec, boolean legacyFormat) throws IOException {
+        byte[] data = legacyFormat ? legacyMessage : encodedMessages.get(codec);
+
+        if (data != null)
+            return data;
+
+        synchronized (this){
+            data = legacyFormat ? legacyMessage : encodedMessages.get(codec);
+
+            if (data != null)
+                return data;
+
+            SyncMessage encodedMessage = message;
+
+            if (legacyFormat){
+                encodedMessage = copyMessage();
+                encodedMessage._setLegacyDateTime();
+            }
+
+            MessageBuffer buffer = MessageBuffer.acquire();
+
+            try {
+                codec.encode(encodedMessage, buffer);
+
+                data = buffer.toByteArray();
+            } finally {
+                MessageBuffer.release(buffer);
+            }
+
+            if (legacyFormat)
+                legacyMessage = data;
+            else
+                encodedMessages.put(codec, data);
+        }
+
+        return data;
+    }
+}
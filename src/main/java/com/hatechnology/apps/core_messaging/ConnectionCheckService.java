@@ -43,7 +43,12 @@ public class ConnectionCheckService extends Thread {
                 try {
                     //DefaultLogger.logEvent("ConnectionCheckService.checkConnection(ClientId=" + this.messagingService.getmInternalId() + ")", "Pinging endpoint...", DefaultLogger.DEBUG_LEVEL);
 
-                    messagingService.sendRequestMessage(message, true, 0);
+                    long pingStart = System.nanoTime();
+
+                    SyncResponse response = messagingService.sendRequestMessage(message, true, 0).getSyncResponse();
+
+                    if (response != null && response.isSuccess())
+                        messagingService.onRoundTrip(System.nanoTime() - pingStart);
 
                     //DefaultLogger.logEvent("ConnectionCheckService.checkConnection(ClientId=" + this.messagingService.getmInternalId() + ")", message.getSyncResponse().isSuccess() ? "Ping successfully!" : "Ping not successfully!", DefaultLogger.DEBUG_LEVEL);
 
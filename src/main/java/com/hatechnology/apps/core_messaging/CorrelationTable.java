@@ -0,0 +1,105 @@
+package com.hatechnology.apps.core_messaging;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * The requests of a connection waiting for a response, by their correlation id.
+ * The ids of a connection are a sequence, so the requests in flight at the same time take consecutive slots of a ring
+ * and almost never collide. When the slot of an id is still taken by an old request, the new one goes to an overflow map.
+ * Nothing is locked, and the ids are boxed just when they go to the overflow.
+ * The ring is created with the first request, since most of the connections of a server never send one.
+ */
+class CorrelationTable<V> {
+    private static final int RING_SIZE = 1024;
+    private static final int MASK = RING_SIZE - 1;
+
+    private volatile AtomicReferenceArray<Entry<V>> ring;
+    private final ConcurrentHashMap<Long, V> overflow = new ConcurrentHashMap<>();
+
+    void put(long id, V value) {
+        if ( !ring().compareAndSet(slot(id), null, new Entry<>(id, value)))
+            overflow.put(id, value);
+    }
+
+    V get(long id) {
+        AtomicReferenceArray<Entry<V>> ring = this.ring;
+
+        if (ring == null)
+            return null;
+
+        Entry<V> entry = ring.get(slot(id));
+
+        if (entry != null && entry.id == id)
+            return entry.value;
+
+        return overflow.isEmpty() ? null : overflow.get(id);
+    }
+
+    /**
+     * Remove the id if it still has this value.
+     * @param id
+     * @param value
+     * @return true if it was removed by this call.
+     */
+    boolean remove(long id, V value) {
+        AtomicReferenceArray<Entry<V>> ring = this.ring;
+
+        if (ring == null)
+            return false;
+
+        int slot = slot(id);
+        Entry<V> entry = ring.get(slot);
+
+        if (entry != null && entry.id == id && entry.value == value)
+            return ring.compareAndSet(slot, entry, null);
+
+        return !overflow.isEmpty() && overflow.remove(id, value);
+    }
+
+    void forEach(Consumer<V> action) {
+        AtomicReferenceArray<Entry<V>> ring = this.ring;
+
+        if (ring == null)
+            return;
+
+        for (int i = 0; i < RING_SIZE; i++){
+            Entry<V> entry = ring.get(i);
+
+            if (entry != null)
+                action.accept(entry.value);
+        }
+
+        overflow.values().forEach(action);
+    }
+
+    private AtomicReferenceArray<Entry<V>> ring() {
+        AtomicReferenceArray<Entry<V>> ring = this.ring;
+
+        if (ring == null){
+            synchronized (this){
+                if (this.ring == null)
+                    this.ring = new AtomicReferenceArray<>(RING_SIZE);
+
+                ring = this.ring;
+            }
+        }
+
+        return ring;
+    }
+
+    private static int slot(long id) {
+        return (int) (id & MASK);
+    }
+
+    private static class Entry<V> {
+        private final long id;
+        private final V value;
+
+        Entry(long id, V value) {
+            this.id = id;
+            this.value = value;
+        }
+    }
+}
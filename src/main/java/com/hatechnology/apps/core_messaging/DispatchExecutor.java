@@ -0,0 +1,540 @@
+package com.hatechnology.apps.core_messaging;
+
+import com.hatechnology.apps.logger.DefaultLogger;
+import com.hatechnology.apps.utilities.BackgroundProcessHelper;
+import com.hatechnology.apps.utilities.HAGeneralUtils;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The receivers of the messages are called from here, instead of starting a thread for each message.
+ * There is a fixed number of workers and a bounded queue, so a burst of messages can not create more threads than that,
+ * and when both are full the {@link SaturationPolicy} decides what happens.
+ * The tasks can also be given a key, see {@link #execute(Object, Runnable)}. The tasks with the same key run one after
+ * the other in the order they came, while the ones with different keys still run in parallel.
+ * The workers come from the {@link com.hatechnology.apps.utilities.ThreadProvider} of {@link BackgroundProcessHelper},
+ * and they finish when they are idle for a while, so an executor nobody uses does not hold any thread.
+ * One executor is usually shared by all the connections of a server.
+ */
+public class DispatchExecutor {
+    public static final int DEFAULT_WORKERS = Runtime.getRuntime().availableProcessors() * 2;
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    private static final long IDLE_SECONDS = 60;
+    //The tasks of one key run before giving the worker to the other keys
+    private static final int MAX_TASKS_PER_TURN = 16;
+    private static final long SATURATED_WAIT_MILLIS = 10;
+
+    private static final ThreadLocal<DispatchExecutor> currentExecutor = new ThreadLocal<>();
+    private static volatile DispatchExecutor sharedExecutor;
+
+    private final String name;
+    private final int queueCapacity;
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger lastWorkerId = new AtomicInteger();
+    private final AtomicLong rejectedTasks = new AtomicLong();
+    private volatile SaturationPolicy saturationPolicy;
+
+    //Ordered tasks
+    private final ConcurrentHashMap<Object, SerialQueue> serialQueues = new ConcurrentHashMap<>();
+    private final AtomicInteger queuedKeyedTasks = new AtomicInteger();
+    private final AtomicInteger queuedSerialQueues = new AtomicInteger();
+    private final AtomicInteger saturatedCallers = new AtomicInteger();
+    //Told when there is room again, see execute(Object, Runnable, Runnable)
+    private final ConcurrentLinkedQueue<Runnable> pausedCallers = new ConcurrentLinkedQueue<>();
+    //Unordered tasks of the paused callers that did not fit in the queue
+    private final ConcurrentLinkedDeque<Runnable> overflowTasks = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger queuedOverflowTasks = new AtomicInteger();
+
+    public DispatchExecutor(String name) {
+        this(name, DEFAULT_WORKERS, DEFAULT_QUEUE_CAPACITY, SaturationPolicy.CALLER_RUNS);
+    }
+
+    /**
+     * @param name Used to name the workers.
+     * @param workers The max number of receivers running at the same time.
+     * @param queueCapacity The max number of messages waiting for a worker.
+     * @param saturationPolicy What to do when the workers and the queue are full.
+     */
+    public DispatchExecutor(String name, int workers, int queueCapacity, SaturationPolicy saturationPolicy) {
+        if (workers < 1 || queueCapacity < 1)
+            throw new IllegalArgumentException("The workers and the queue capacity must be greater than zero!");
+
+        this.name = name;
+        this.queueCapacity = queueCapacity;
+        this.saturationPolicy = saturationPolicy == null ? SaturationPolicy.CALLER_RUNS : saturationPolicy;
+
+        executor = new ThreadPoolExecutor(workers, workers, IDLE_SECONDS, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity), task -> {
+            Thread thread = BackgroundProcessHelper.getThreadProvider().newThread(() -> {
+                currentExecutor.set(this);
+
+                task.run();
+            });
+            thread.setName(name + "-dispatch-" + lastWorkerId.incrementAndGet());
+
+            return thread;
+        }, (task, pool) -> saturated(task)) {
+            @Override
+            protected void afterExecute(Runnable task, Throwable error) {
+                //A place in the queue is free
+                if ( !overflowTasks.isEmpty() || !pausedCallers.isEmpty())
+                    drainOverflowTasks();
+            }
+        };
+
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * The executor used by the connections that were not given one.
+     * @return
+     */
+    public static DispatchExecutor getShared() {
+        DispatchExecutor executor = sharedExecutor;
+
+        if (executor == null){
+            synchronized (DispatchExecutor.class){
+                if (sharedExecutor == null)
+                    sharedExecutor = new DispatchExecutor("MessagingService");
+
+                executor = sharedExecutor;
+            }
+        }
+
+        return executor;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public SaturationPolicy getSaturationPolicy() {
+        return saturationPolicy;
+    }
+
+    public void setSaturationPolicy(SaturationPolicy saturationPolicy) {
+        this.saturationPolicy = saturationPolicy == null ? SaturationPolicy.CALLER_RUNS : saturationPolicy;
+    }
+
+    /**
+     * Run the task in a worker, or as the {@link SaturationPolicy} says if all of them are busy.
+     * A task that fails is logged, it does not affect the other ones.
+     * @param task
+     */
+    public void execute(Runnable task) {
+        try {
+            executor.execute(guard(task));
+        } catch (RejectedExecutionException e) {
+            //Shut down, nothing else is dispatched
+            DefaultLogger.logEvent("DispatchExecutor.execute(Name=" + name + ")", e.getMessage(), DefaultLogger.DEBUG_LEVEL);
+        }
+    }
+
+    /**
+     * Run the task after the previous ones with the same key, in a worker.
+     * When the queue is full the {@link SaturationPolicy#CALLER_RUNS} policy makes the caller wait for room instead,
+     * since running the task right away would break the order. The threads that must not wait use
+     * {@link #execute(Object, Runnable, Runnable)}.
+     * @param key Usually the connection or the client that sent the message. null is the same as {@link #execute(Runnable)}.
+     * @param task
+     */
+    public void execute(Object key, Runnable task) {
+        if (key == null){
+            execute(task);
+            return;
+        }
+
+        if ( !reserveKeyedTask(saturationPolicy))
+            return;
+
+        offerKeyedTask(key, guard(task));
+    }
+
+    /**
+     * Like {@link #execute(Object, Runnable)}, but when the queue is full the caller always waits for room, whatever the
+     * {@link SaturationPolicy}. For the tasks that are not received messages and must not be lost, like the broadcasts.
+     * @param key Not null.
+     * @param task
+     */
+    public void executeOrWait(Object key, Runnable task) {
+        if ( !reserveKeyedTask(SaturationPolicy.CALLER_RUNS))
+            return;
+
+        offerKeyedTask(key, guard(task));
+    }
+
+    /**
+     * Like {@link #execute(Object, Runnable)}, but the caller is never made to wait. When the queue is full the
+     * {@link SaturationPolicy#CALLER_RUNS} policy queues the task anyway and tells the caller to stop giving tasks,
+     * so a thread that drives many connections can stop reading just the one that sends too fast.
+     * {@link SaturationPolicy#PAUSE_READING} does the same with the tasks without a key too.
+     * @param key null is the same as {@link #execute(Runnable)}, except with {@link SaturationPolicy#PAUSE_READING}.
+     * @param task
+     * @param onRoom Run once when the queue is half empty again, just when this returned false. It must not block.
+     * @return false if the caller must not give more tasks until onRoom is run.
+     */
+    public boolean execute(Object key, Runnable task, Runnable onRoom) {
+        if (key == null){
+            if (saturationPolicy == SaturationPolicy.PAUSE_READING)
+                return executeOrPause(new PausableTask(guard(task)), onRoom);
+
+            execute(task);
+            return true;
+        }
+
+        boolean room = true;
+
+        if (queuedKeyedTasks.incrementAndGet() > queueCapacity){
+            rejectedTasks.incrementAndGet();
+
+            //Our own workers just go over the capacity, as in reserveKeyedTask
+            if (currentExecutor.get() != this){
+                if (saturationPolicy == SaturationPolicy.DISCARD){
+                    queuedKeyedTasks.decrementAndGet();
+                    return true;
+                }
+
+                room = false;
+                pausedCallers.add(onRoom);
+            }
+        }
+
+        offerKeyedTask(key, guard(task));
+
+        //The workers could have drained the queue before the caller was added
+        if ( !room && hasRoom())
+            resumePausedCallers();
+
+        return room;
+    }
+
+    private boolean executeOrPause(PausableTask task, Runnable onRoom) {
+        //The ones that did not fit go first
+        if (overflowTasks.isEmpty() && offerToWorkers(task))
+            return true;
+
+        rejectedTasks.incrementAndGet();
+        pausedCallers.add(onRoom);
+        queuedOverflowTasks.incrementAndGet();
+        overflowTasks.add(task);
+
+        //The workers could have drained the queue before the task was added
+        drainOverflowTasks();
+
+        return false;
+    }
+
+    /**
+     * @param task
+     * @return false if the queue is full.
+     */
+    private boolean offerToWorkers(PausableTask task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            if ( !executor.isShutdown())
+                return false;
+
+            DefaultLogger.logEvent("DispatchExecutor.execute(Name=" + name + ")", e.getMessage(), DefaultLogger.DEBUG_LEVEL);
+        }
+
+        return true;
+    }
+
+    private void drainOverflowTasks() {
+        Runnable task;
+
+        while ((task = overflowTasks.poll()) != null){
+            if ( !offerToWorkers((PausableTask) task)){
+                overflowTasks.addFirst(task);
+
+                //The queued tasks tell us when they finish, unless they already did
+                if (executor.getQueue().remainingCapacity() == 0)
+                    return;
+
+                continue;
+            }
+
+            queuedOverflowTasks.decrementAndGet();
+        }
+
+        if ( !pausedCallers.isEmpty() && hasRoom())
+            resumePausedCallers();
+    }
+
+    private void offerKeyedTask(Object key, Runnable guardedTask) {
+        while (true){
+            SerialQueue serialQueue = serialQueues.computeIfAbsent(key, SerialQueue::new);
+
+            //It could have just finished with its last task
+            if (serialQueue.offer(guardedTask))
+                return;
+        }
+    }
+
+    private Runnable guard(Runnable task) {
+        return () -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                DefaultLogger.logEvent("DispatchExecutor.execute(Name=" + name + ")", HAGeneralUtils.getStackTrace(e), DefaultLogger.ERROR_LEVEL);
+            }
+        };
+    }
+
+    /**
+     * Take a place in the queue for an ordered task.
+     * @param saturationPolicy
+     * @return false if the task must be discarded.
+     */
+    private boolean reserveKeyedTask(SaturationPolicy saturationPolicy) {
+        if (queuedKeyedTasks.incrementAndGet() <= queueCapacity)
+            return true;
+
+        queuedKeyedTasks.decrementAndGet();
+        rejectedTasks.incrementAndGet();
+
+        //Our own workers must not wait for themselves, they just go over the capacity
+        if (currentExecutor.get() == this){
+            queuedKeyedTasks.incrementAndGet();
+            return true;
+        }
+
+        if (saturationPolicy == SaturationPolicy.DISCARD)
+            return false;
+
+        //The reading thread stops while waiting, as it does when it runs the receivers itself
+        saturatedCallers.incrementAndGet();
+
+        try {
+            while ( !executor.isShutdown()){
+                if (queuedKeyedTasks.incrementAndGet() <= queueCapacity)
+                    return true;
+
+                queuedKeyedTasks.decrementAndGet();
+
+                synchronized (saturatedCallers){
+                    saturatedCallers.wait(SATURATED_WAIT_MILLIS);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            saturatedCallers.decrementAndGet();
+        }
+
+        return false;
+    }
+
+    private void releaseKeyedTask() {
+        queuedKeyedTasks.decrementAndGet();
+
+        if (saturatedCallers.get() > 0){
+            synchronized (saturatedCallers){
+                saturatedCallers.notifyAll();
+            }
+        }
+
+        if ( !pausedCallers.isEmpty() && hasRoom())
+            resumePausedCallers();
+    }
+
+    //Half of the queue, so the paused callers do not stop again right after resuming
+    private boolean hasRoom() {
+        return queuedKeyedTasks.get() <= queueCapacity / 2 && overflowTasks.isEmpty()
+                && executor.getQueue().size() - queuedSerialQueues.get() <= queueCapacity / 2;
+    }
+
+    private void resumePausedCallers() {
+        Runnable onRoom;
+
+        while ((onRoom = pausedCallers.poll()) != null){
+            try {
+                onRoom.run();
+            } catch (RuntimeException e) {
+                DefaultLogger.logEvent("DispatchExecutor.resumePausedCallers(Name=" + name + ")", HAGeneralUtils.getStackTrace(e), DefaultLogger.ERROR_LEVEL);
+            }
+        }
+    }
+
+    private void saturated(Runnable task) {
+        if (executor.isShutdown())
+            throw new RejectedExecutionException("The dispatch executor " + name + " was shut down!");
+
+        //Its tasks were already accepted, and nobody else can run them
+        if (task instanceof SerialQueue){
+            task.run();
+            return;
+        }
+
+        //It waits with the overflow tasks, see executeOrPause
+        if (task instanceof PausableTask)
+            throw new RejectedExecutionException("The dispatch queue of " + name + " is full!");
+
+        rejectedTasks.incrementAndGet();
+
+        if (saturationPolicy != SaturationPolicy.DISCARD)
+            task.run();
+    }
+
+    /**
+     * @return The number of messages waiting for a worker.
+     */
+    public int getQueuedTasks() {
+        return executor.getQueue().size() - queuedSerialQueues.get() + queuedKeyedTasks.get() + queuedOverflowTasks.get();
+    }
+
+    /**
+     * @return The number of keys with ordered tasks waiting or running.
+     */
+    public int getOrderedKeys() {
+        return serialQueues.size();
+    }
+
+    /**
+     * @return The number of workers running a task right now.
+     */
+    public int getActiveWorkers() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return The number of workers alive, busy or idle.
+     */
+    public int getWorkers() {
+        return executor.getPoolSize();
+    }
+
+    public int getMaxWorkers() {
+        return executor.getMaximumPoolSize();
+    }
+
+    /**
+     * @return The number of tasks that found the executor saturated, either run by the caller, delayed or discarded.
+     */
+    public long getRejectedTasks() {
+        return rejectedTasks.get();
+    }
+
+    public long getCompletedTasks() {
+        return executor.getCompletedTaskCount();
+    }
+
+    /**
+     * Stop taking new tasks. The ones already queued still run.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    /**
+     * A task without a key of a caller that can stop giving tasks. It is never run by the caller.
+     */
+    private static class PausableTask implements Runnable {
+        private final Runnable task;
+
+        PausableTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+
+    /**
+     * The tasks of one key. It is given to a worker while it has tasks, and removed when it runs out of them.
+     */
+    private class SerialQueue implements Runnable {
+        private final Object key;
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private boolean scheduled;
+        private boolean closed;
+
+        SerialQueue(Object key) {
+            this.key = key;
+        }
+
+        /**
+         * @param task
+         * @return false if it was closed, so the task must go to a new one.
+         */
+        boolean offer(Runnable task) {
+            synchronized (this){
+                if (closed)
+                    return false;
+
+                tasks.add(task);
+
+                if (scheduled)
+                    return true;
+
+                scheduled = true;
+            }
+
+            schedule();
+
+            return true;
+        }
+
+        private void schedule() {
+            queuedSerialQueues.incrementAndGet();
+
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                queuedSerialQueues.decrementAndGet();
+
+                DefaultLogger.logEvent("DispatchExecutor.execute(Name=" + name + ")", e.getMessage(), DefaultLogger.DEBUG_LEVEL);
+            }
+        }
+
+        @Override
+        public void run() {
+            queuedSerialQueues.decrementAndGet();
+
+            while (true){
+                for (int i = 0; i < MAX_TASKS_PER_TURN; i++){
+                    Runnable task;
+
+                    synchronized (this){
+                        task = tasks.poll();
+
+                        if (task == null){
+                            scheduled = false;
+                            closed = true;
+                            serialQueues.remove(key, this);
+
+                            return;
+                        }
+                    }
+
+                    releaseKeyedTask();
+
+                    task.run();
+                }
+
+                //Let the other keys use this worker, unless there is no room to wait in the queue
+                queuedSerialQueues.incrementAndGet();
+
+                if (executor.getQueue().offer(this))
+                    return;
+
+                queuedSerialQueues.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.hatechnology.apps.core_messaging;
+
+/**
+ * Which received messages must reach the receivers in the order they were received.
+ * The messages with the same key are handled one after the other, the ones with different keys in parallel.
+ * @see MessagingService#setDispatchOrder(DispatchOrder)
+ */
+public enum DispatchOrder {
+    /**
+     * Every message is handled as soon as there is a worker, so two of them can be handled at the same time.
+     */
+    NONE,
+
+    /**
+     * The messages received by one connection are handled in order.
+     */
+    CONNECTION,
+
+    /**
+     * The messages from one sender are handled in order, even if they come through different connections.
+     */
+    SOURCE_ID,
+
+    /**
+     * The key is given by the {@link com.hatechnology.apps.core_messaging.behaviors.DispatchKeyBehavior} of the connection.
+     */
+    CUSTOM
+}
@@ -0,0 +1,48 @@
+package com.hatechnology.apps.core_messaging;
+
+import java.io.IOException;
+
+/**
+ * The request or the response of a received message, kept as the bytes written by the codec.
+ * Just the path is known, the rest is decoded the first time the message is asked for it,
+ * so the messages that are forwarded, rejected or not read by any receiver do not pay for it.
+ * When the message is sent again with the same codec, these bytes are written as they are.
+ */
+final class EncodedPayload {
+
+    interface Decoder {
+        SyncCommonSharing decode(String path, byte[] data) throws IOException;
+    }
+
+    private final MessageCodec codec;
+    private final String path;
+    private final byte[] data;
+    private final Decoder decoder;
+
+    EncodedPayload(MessageCodec codec, String path, byte[] data, Decoder decoder) {
+        this.codec = codec;
+        this.path = path;
+        this.data = data;
+        this.decoder = decoder;
+    }
+
+    MessageCodec getCodec() {
+        return codec;
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    byte[] getData() {
+        return data;
+    }
+
+    SyncCommonSharing decode() {
+        try {
+            return decoder.decode(path, data);
+        } catch (IOException e) {
+            throw new IllegalStateException("The payload of the path " + path + " could not be decoded!", e);
+        }
+    }
+}
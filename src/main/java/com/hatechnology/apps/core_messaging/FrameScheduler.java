@@ -0,0 +1,238 @@
+package com.hatechnology.apps.core_messaging;
+
+import com.hatechnology.apps.core_messaging.framing.Frame;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * This is the fair scheduler of the frames of a connection.
+ * Each turn takes just one frame of the next stream in a round robin way, so a small message waits at most
+ * one fragment of each big message being written, instead of the complete messages.
+ * The messages of many fragments that are interleaved are limited by the number and the bytes the other endpoint
+ * assembles at the same time, which it tells in the handshake, see {@link #setStreamLimits(int, long)}.
+ * The next ones wait for them to finish, so the other endpoint does not fail the connection.
+ * It also counts what is waiting to be written. Once the high watermark is reached the connection is not writable
+ * until it goes down to the low watermark, see {@link BackpressurePolicy}.
+ */
+class FrameScheduler {
+    //Until the other endpoint tells its limits
+    static final int DEFAULT_MAX_OPEN_STREAMS = MessagingService.DEFAULT_MAX_OPEN_STREAMS / 2;
+    static final long DEFAULT_MAX_OPEN_BYTES = MessagingService.DEFAULT_MAX_STREAM_BYTES;
+
+    private final ArrayDeque<OutboundStream> streams = new ArrayDeque<>();
+    //The messages of many fragments that wait for a place among the open streams
+    private final ArrayDeque<OutboundStream> heldStreams = new ArrayDeque<>();
+    private int openStreams;
+    private long openBytes;
+    private int maxOpenStreams = DEFAULT_MAX_OPEN_STREAMS;
+    private long maxOpenBytes = DEFAULT_MAX_OPEN_BYTES;
+    private long queuedBytes;
+    private long lowWatermarkBytes = Long.MAX_VALUE;
+    private long highWatermarkBytes = Long.MAX_VALUE;
+    private int lowWatermarkMessages = Integer.MAX_VALUE;
+    private int highWatermarkMessages = Integer.MAX_VALUE;
+    private boolean writable = true;
+
+    synchronized void submit(OutboundStream stream) {
+        queuedBytes += stream.getRemaining();
+
+        if (stream.isSingleFrame()){
+            streams.addLast(stream);
+        }else if (heldStreams.isEmpty() && canOpen(stream)){
+            openStream(stream);
+        }else {
+            heldStreams.addLast(stream);
+        }
+
+        updateWritable();
+
+        //Wake up the writer waiting for frames, if any
+        if (getQueuedMessages() == 1)
+            notifyAll();
+    }
+
+    /**
+     * @return The next frame to be written or null if there is nothing pending.
+     */
+    synchronized Frame poll() {
+        OutboundStream stream = streams.pollFirst();
+
+        if (stream == null)
+            return null;
+
+        Frame frame = stream.next();
+        queuedBytes -= frame.getLength();
+
+        if (stream.hasNext())
+            streams.addLast(stream);
+        else if ( !stream.isSingleFrame())
+            closeStream(stream);
+
+        updateWritable();
+
+        return frame;
+    }
+
+    /**
+     * Wait until there is something to be written, the time is over or {@link #wakeUp()} is called.
+     * @param millis
+     * @throws InterruptedException
+     */
+    synchronized void await(long millis) throws InterruptedException {
+        if (isEmpty())
+            wait(millis);
+    }
+
+    synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    synchronized boolean isEmpty() {
+        return streams.isEmpty() && heldStreams.isEmpty();
+    }
+
+    synchronized void clear() {
+        streams.clear();
+        heldStreams.clear();
+        openStreams = 0;
+        openBytes = 0;
+        queuedBytes = 0;
+
+        updateWritable();
+    }
+
+    synchronized void setWatermarks(long lowWatermarkBytes, long highWatermarkBytes, int lowWatermarkMessages, int highWatermarkMessages) {
+        this.lowWatermarkBytes = lowWatermarkBytes;
+        this.highWatermarkBytes = highWatermarkBytes;
+        this.lowWatermarkMessages = lowWatermarkMessages;
+        this.highWatermarkMessages = highWatermarkMessages;
+
+        updateWritable();
+    }
+
+    /**
+     * @param maxOpenStreams The max number of streams the other endpoint assembles at the same time.
+     * @param maxOpenBytes The max number of bytes it keeps for all of them.
+     */
+    synchronized void setStreamLimits(int maxOpenStreams, long maxOpenBytes) {
+        this.maxOpenStreams = maxOpenStreams;
+        this.maxOpenBytes = maxOpenBytes;
+
+        openHeldStreams();
+    }
+
+    synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    synchronized int getQueuedMessages() {
+        return streams.size() + heldStreams.size();
+    }
+
+    synchronized boolean isWritable() {
+        return writable;
+    }
+
+    /**
+     * @return true if the high watermark is reached.
+     */
+    synchronized boolean isFull() {
+        return queuedBytes >= highWatermarkBytes || getQueuedMessages() >= highWatermarkMessages;
+    }
+
+    /**
+     * Wait until the queue goes down to the low watermark.
+     * @param millis The max time to wait.
+     * @return true if it is writable.
+     * @throws InterruptedException
+     */
+    synchronized boolean awaitWritable(long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+
+        while ( !writable){
+            long remaining = deadline - System.currentTimeMillis();
+
+            if (remaining <= 0)
+                return false;
+
+            wait(remaining);
+        }
+
+        return true;
+    }
+
+    /**
+     * Discard the oldest message that can be discarded and was not started yet, a started one can not be cut.
+     * @return false if there was nothing to discard.
+     */
+    synchronized boolean dropOldest() {
+        return dropOldest(streams) || dropOldest(heldStreams);
+    }
+
+    private boolean dropOldest(ArrayDeque<OutboundStream> queue) {
+        Iterator<OutboundStream> iterator = queue.iterator();
+
+        while (iterator.hasNext()){
+            OutboundStream stream = iterator.next();
+
+            if (stream.isDroppable() && !stream.isStarted()){
+                iterator.remove();
+                queuedBytes -= stream.getRemaining();
+
+                if (queue == streams && !stream.isSingleFrame())
+                    closeStream(stream);
+                else if (queue == heldStreams)
+                    openHeldStreams();
+
+                updateWritable();
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * A message is opened alone even if it is bigger than the bytes, it was already checked against the max length.
+     */
+    private boolean canOpen(OutboundStream stream) {
+        return openStreams == 0 || (openStreams < maxOpenStreams && openBytes + stream.getLength() <= maxOpenBytes);
+    }
+
+    private void openStream(OutboundStream stream) {
+        openStreams++;
+        openBytes += stream.getLength();
+
+        streams.addLast(stream);
+    }
+
+    /**
+     * A message of many fragments finished or was dropped, the next held ones take its place.
+     */
+    private void closeStream(OutboundStream stream) {
+        openStreams--;
+        openBytes -= stream.getLength();
+
+        openHeldStreams();
+    }
+
+    //In the order they came, so a big one is not passed forever by the small ones
+    private void openHeldStreams() {
+        while ( !heldStreams.isEmpty() && canOpen(heldStreams.peekFirst())){
+            openStream(heldStreams.pollFirst());
+        }
+    }
+
+    private void updateWritable() {
+        if (writable && isFull()){
+            writable = false;
+        }else if ( !writable && queuedBytes <= lowWatermarkBytes && getQueuedMessages() <= lowWatermarkMessages){
+            writable = true;
+
+            //Wake up the blocked senders
+            notifyAll();
+        }
+    }
+}
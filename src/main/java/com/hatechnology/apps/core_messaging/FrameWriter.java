@@ -0,0 +1,99 @@
+package com.hatechnology.apps.core_messaging;
+
+import com.hatechnology.apps.core_messaging.framing.Frame;
+import com.hatechnology.apps.core_messaging.framing.FrameCodec;
+import com.hatechnology.apps.logger.DefaultLogger;
+import com.hatechnology.apps.utilities.HAGeneralUtils;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * This is the only thread that writes into a blocking connection.
+ * The senders just put their messages into the scheduler, so they do not wait for each other nor for a slow endpoint.
+ * Each time it wakes up, every pending frame is written into the buffered stream and flushed once,
+ * so many small messages end up in a few writes into the socket instead of one each.
+ * A writer belongs to one connection, a new one is started when reconnecting.
+ */
+class FrameWriter implements Runnable {
+    //Just to check from time to time if it was stopped
+    private static final long MAX_WAIT_MILLIS = 1000;
+
+    private final MessagingService messagingService;
+    private final FrameScheduler frameScheduler = new FrameScheduler();
+    private final FrameCodec frameCodec;
+    private final DataOutputStream outputStream;
+    private volatile boolean running = true;
+
+    FrameWriter(MessagingService messagingService, FrameCodec frameCodec, DataOutputStream outputStream) {
+        this.messagingService = messagingService;
+        this.frameCodec = frameCodec;
+        this.outputStream = outputStream;
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    FrameScheduler getFrameScheduler() {
+        return frameScheduler;
+    }
+
+    /**
+     * Queue a message to be written. It can be called from any thread.
+     * @param stream
+     * @throws IOException If the writer was stopped.
+     */
+    void write(OutboundStream stream) throws IOException {
+        if ( !running)
+            throw new IOException("Connection is closed!");
+
+        frameScheduler.submit(stream);
+    }
+
+    /**
+     * Stop writing. The frames that were not written yet are discarded.
+     */
+    void stop() {
+        running = false;
+
+        frameScheduler.clear();
+        frameScheduler.wakeUp();
+    }
+
+    @Override
+    public void run() {
+        try {
+            boolean pendingFlush = false;
+
+            while (running){
+                Frame frame = frameScheduler.poll();
+
+                if (frame != null){
+                    frameCodec.writeFrame(outputStream, messagingService.compressFrame(frame));
+                    pendingFlush = true;
+                    continue;
+                }
+
+                //Nothing else to write, so everything goes to the socket at once
+                if (pendingFlush){
+                    outputStream.flush();
+                    pendingFlush = false;
+                }
+
+                frameScheduler.await(MAX_WAIT_MILLIS);
+            }
+        } catch (IOException e) {
+            //Nothing to report when the connection was closed on purpose
+            if (running){
+                running = false;
+
+                DefaultLogger.logEvent("FrameWriter.run(ClientId=" + messagingService.getmInternalId() + ")", HAGeneralUtils.getStackTrace(e), DefaultLogger.ERROR_LEVEL);
+
+                messagingService.disconnect(true);
+            }
+        } catch (InterruptedException e) {
+            running = false;
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package com.hatechnology.apps.core_messaging;
+
+import com.hatechnology.apps.utilities.JsonUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The default codec. The messages are written as JSON, the same way the legacy endpoints do.
+ * The JSON is streamed from and to the bytes, so the complete text never exists as a String.
+ * When decoding, the request and the response are just located in the bytes and kept as they are,
+ * see {@link EncodedPayload}. The rest of the message is small, so it is decoded right away.
+ */
+public class GsonMessageCodec implements MessageCodec {
+    public static final byte ID = 1;
+
+    private static final String REQUEST_FIELD = "syncRequest";
+    private static final String RESPONSE_FIELD = "syncResponse";
+    private static final String PATH_FIELD = "path";
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public void encode(SyncMessage message, OutputStream output) throws IOException {
+        //The payloads received with another codec must be decoded to be written as JSON
+        message._decodePayloads(this);
+
+        EncodedPayload encodedRequest = message._getEncodedRequest();
+        EncodedPayload encodedResponse = message._getEncodedResponse();
+
+        if (encodedRequest != null && encodedRequest.getCodec() != this)
+            encodedRequest = null;
+
+        if (encodedResponse != null && encodedResponse.getCodec() != this)
+            encodedResponse = null;
+
+        if (encodedRequest == null && encodedResponse == null){
+            writeJson(message, output);
+            return;
+        }
+
+        //The fields that are null are not written, so the encoded payloads can be added at the end
+        SyncMessage envelope = new SyncMessage(message);
+
+        if (encodedRequest != null)
+            envelope.setSyncRequest(null);
+        else
+            envelope.setSyncRequest(message.getSyncRequest());
+
+        if (encodedResponse != null)
+            envelope.setSyncResponse(null);
+        else
+            envelope.setSyncResponse(message.getSyncResponse());
+
+        MessageBuffer buffer = MessageBuffer.acquire();
+
+        try {
+            writeJson(envelope, buffer);
+
+            //Everything but the closing brace
+            output.write(buffer.getData(), 0, buffer.size() - 1);
+
+            boolean empty = buffer.size() <= 2;
+
+            if (encodedRequest != null){
+                writeMember(output, REQUEST_FIELD, encodedRequest.getData(), empty);
+                empty = false;
+            }
+
+            if (encodedResponse != null)
+                writeMember(output, RESPONSE_FIELD, encodedResponse.getData(), empty);
+
+            output.write('}');
+        } finally {
+            MessageBuffer.release(buffer);
+        }
+    }
+
+    private static void writeJson(SyncMessage message, OutputStream output) throws IOException {
+        Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+
+        JsonUtils.writeJson(message, SyncMessage.class, writer);
+
+        writer.flush();
+    }
+
+    private static void writeMember(OutputStream output, String name, byte[] value, boolean first) throws IOException {
+        if ( !first)
+            output.write(',');
+
+        output.write('"');
+        output.write(name.getBytes(StandardCharsets.UTF_8));
+        output.write('"');
+        output.write(':');
+        output.write(value);
+    }
+
+    @Override
+    public SyncMessage decode(byte[] data, int offset, int length) throws IOException {
+        JsonScanner scanner = new JsonScanner(data, offset, offset + length);
+
+        //Where the request and the response are, and where the rest of the message is
+        int[] request = null;
+        int[] response = null;
+        MessageBuffer envelope = new MessageBuffer(256);
+
+        envelope.write('{');
+
+        if ( !scanner.beginObject())
+            return readMessage(data, offset, length);
+
+        while (scanner.hasNextMember()){
+            int memberStart = scanner.position();
+            String name = scanner.nextName();
+            int valueStart = scanner.position();
+            scanner.skipValue();
+            int valueEnd = scanner.position();
+
+            //A null payload is the same as no payload
+            boolean isNull = valueEnd - valueStart == 4 && data[valueStart] == 'n';
+
+            if (REQUEST_FIELD.equals(name) && !isNull){
+                request = new int[]{valueStart, valueEnd};
+            }else if (RESPONSE_FIELD.equals(name) && !isNull){
+                response = new int[]{valueStart, valueEnd};
+            }else if ( !REQUEST_FIELD.equals(name) && !RESPONSE_FIELD.equals(name)){
+                if (envelope.size() > 1)
+                    envelope.write(',');
+
+                envelope.write(data, memberStart, valueEnd - memberStart);
+            }
+        }
+
+        envelope.write('}');
+
+        SyncMessage message = readMessage(envelope.getData(), 0, envelope.size());
+
+        if (request != null){
+            byte[] requestData = Arrays.copyOfRange(data, request[0], request[1]);
+
+            message._setEncodedRequest(new EncodedPayload(this, readPath(requestData), requestData,
+                    (path, bytes) -> readJson(bytes, 0, bytes.length, PayloadTypes.getRequestType(path))));
+        }
+
+        if (response != null){
+            byte[] responseData = Arrays.copyOfRange(data, response[0], response[1]);
+
+            message._setEncodedResponse(new EncodedPayload(this, readPath(responseData), responseData,
+                    (path, bytes) -> readJson(bytes, 0, bytes.length, SyncResponse.class)));
+        }
+
+        return message;
+    }
+
+    /**
+     * @param payload The JSON of a request or a response.
+     * @return The path, without decoding the rest.
+     * @throws IOException
+     */
+    private static String readPath(byte[] payload) throws IOException {
+        JsonScanner scanner = new JsonScanner(payload, 0, payload.length);
+
+        if ( !scanner.beginObject())
+            throw new IOException("The payload is not a JSON object!");
+
+        while (scanner.hasNextMember()){
+            String name = scanner.nextName();
+            int valueStart = scanner.position();
+            scanner.skipValue();
+
+            if (PATH_FIELD.equals(name))
+                return readJson(payload, valueStart, scanner.position() - valueStart, String.class);
+        }
+
+        return null;
+    }
+
+    private static SyncMessage readMessage(byte[] data, int offset, int length) throws IOException {
+        SyncMessage message = readJson(data, offset, length, SyncMessage.class);
+
+        if (message == null)
+            throw new IOException("The JSON message is empty!");
+
+        return message;
+    }
+
+    /**
+     * The bytes come from the other endpoint, so a text Gson can not parse is a broken message and not a bug.
+     * @throws IOException If the JSON is malformed or it does not match the type.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T readJson(byte[] data, int offset, int length, Type type) throws IOException {
+        InputStreamReader reader = new InputStreamReader(new ByteArrayInputStream(data, offset, length), StandardCharsets.UTF_8);
+
+        try {
+            return (T) JsonUtils.readJson(reader, type);
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed JSON message!", e);
+        }
+    }
+
+    /**
+     * Walk through the members of a JSON object over its UTF-8 bytes, skipping the values without decoding them.
+     */
+    private static class JsonScanner {
+        private final byte[] data;
+        private final int limit;
+        private int position;
+
+        JsonScanner(byte[] data, int offset, int limit) {
+            this.data = data;
+            this.position = offset;
+            this.limit = limit;
+        }
+
+        int position() {
+            return position;
+        }
+
+        boolean beginObject() {
+            skipWhitespaces();
+
+            if (position >= limit || data[position] != '{')
+                return false;
+
+            position++;
+
+            return true;
+        }
+
+        boolean hasNextMember() throws IOException {
+            skipWhitespaces();
+
+            if (position >= limit)
+                throw new IOException("Unexpected end of the JSON message!");
+
+            if (data[position] == ','){
+                position++;
+                skipWhitespaces();
+            }
+
+            if (position < limit && data[position] == '}'){
+                position++;
+                return false;
+            }
+
+            return true;
+        }
+
+        String nextName() throws IOException {
+            int start = position;
+            skipString();
+
+            String name = new String(data, start + 1, position - start - 2, StandardCharsets.UTF_8);
+
+            skipWhitespaces();
+
+            if (position >= limit || data[position] != ':')
+                throw new IOException("Malformed JSON message!");
+
+            position++;
+            skipWhitespaces();
+
+            return name;
+        }
+
+        void skipValue() throws IOException {
+            skipWhitespaces();
+
+            if (position >= limit)
+                throw new IOException("Unexpected end of the JSON message!");
+
+            byte b = data[position];
+
+            if (b == '"'){
+                skipString();
+                return;
+            }
+
+            if (b == '{' || b == '['){
+                int depth = 0;
+
+                while (position < limit){
+                    b = data[position];
+
+                    if (b == '"'){
+                        skipString();
+                        continue;
+                    }
+
+                    if (b == '{' || b == '[')
+                        depth++;
+                    else if (b == '}' || b == ']')
+                        depth--;
+
+                    position++;
+
+                    if (depth == 0)
+                        return;
+                }
+
+                throw new IOException("Unexpected end of the JSON message!");
+            }
+
+            //Numbers, true, false and null
+            while (position < limit && data[position] != ',' && data[position] != '}' && data[position] != ']' && !isWhitespace(data[position])){
+                position++;
+            }
+        }
+
+        private void skipString() throws IOException {
+            if (position >= limit || data[position] != '"')
+                throw new IOException("Malformed JSON message!");
+
+            position++;
+
+            while (position < limit){
+                byte b = data[position];
+
+                if (b == '\\'){
+                    position += 2;
+                }else {
+                    position++;
+
+                    if (b == '"')
+                        return;
+                }
+            }
+
+            throw new IOException("Unexpected end of the JSON message!");
+        }
+
+        private void skipWhitespaces() {
+            while (position < limit && isWhitespace(data[position])){
+                position++;
+            }
+        }
+
+        private static boolean isWhitespace(byte b) {
+            return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.hatechnology.apps.core_messaging;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A growable buffer where the messages are encoded and assembled.
+ * Unlike {@link java.io.ByteArrayOutputStream} it is not synchronized and it exposes its array,
+ * so the codecs can read from it and write into it without copying the whole message again.
+ * Each thread keeps one buffer that is reused between messages, see {@link #acquire()} and {@link #release(MessageBuffer)}.
+ */
+public class MessageBuffer extends OutputStream {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    //The bigger buffers are not kept, so a big message does not hold its memory forever
+    private static final int MAX_POOLED_CAPACITY = 1024 * 1024;
+
+    private static final ThreadLocal<MessageBuffer> pool = new ThreadLocal<>();
+
+    private byte[] data;
+    private int size;
+
+    public MessageBuffer() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public MessageBuffer(int capacity) {
+        this.data = new byte[Math.max(capacity, 16)];
+    }
+
+    /**
+     * @return The buffer of this thread if it is free, otherwise a new one.
+     */
+    public static MessageBuffer acquire() {
+        MessageBuffer buffer = pool.get();
+
+        if (buffer == null)
+            return new MessageBuffer();
+
+        pool.set(null);
+        buffer.reset();
+
+        return buffer;
+    }
+
+    /**
+     * Give the buffer back to the pool of this thread. It must not be used after this.
+     * @param buffer
+     */
+    public static void release(MessageBuffer buffer) {
+        if (buffer.data.length <= MAX_POOLED_CAPACITY)
+            pool.set(buffer);
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(1);
+        data[size++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, data, size, length);
+        size += length;
+    }
+
+    public void reset() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The internal array, just the first {@link #size()} bytes are valid.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(data, size);
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (size + bytes <= data.length)
+            return;
+
+        long capacity = Math.max((long) data.length * 2, (long) size + bytes);
+
+        if (capacity > Integer.MAX_VALUE - 8)
+            capacity = (long) size + bytes;
+
+        if (capacity > Integer.MAX_VALUE - 8)
+            throw new OutOfMemoryError("The message is too big!");
+
+        data = Arrays.copyOf(data, (int) capacity);
+    }
+}
@@ -0,0 +1,31 @@
+package com.hatechnology.apps.core_messaging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * This is the way a {@link SyncMessage} is turned into the bytes of a frame and back.
+ * Each endpoint selects its codec and the connecting endpoint proposes it in the handshake,
+ * so both endpoints of a connection use the same one. Register the custom codecs in {@link MessageCodecs}.
+ * The codecs must be stateless, since the same instance is shared by many connections.
+ * The messages are written into and read from the buffers of the connection, so a codec should not
+ * build the complete message as a String or as another array.
+ */
+public interface MessageCodec {
+
+    /**
+     * @return The id sent in the handshake, it must be unique.
+     */
+    byte getId();
+
+    void encode(SyncMessage message, OutputStream output) throws IOException;
+
+    /**
+     * @param data The array holding the message.
+     * @param offset Where the message starts.
+     * @param length The bytes of the message.
+     * @return The decoded message.
+     * @throws IOException
+     */
+    SyncMessage decode(byte[] data, int offset, int length) throws IOException;
+}
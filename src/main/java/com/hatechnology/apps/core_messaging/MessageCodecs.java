@@ -0,0 +1,35 @@
+package com.hatechnology.apps.core_messaging;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The codecs known by this endpoint. When the other endpoint proposes a codec that is not here,
+ * the connection falls back to {@link #GSON}.
+ */
+public final class MessageCodecs {
+    public static final MessageCodec GSON = new GsonMessageCodec();
+    public static final MessageCodec BINARY = new BinaryMessageCodec();
+
+    private static final Map<Byte, MessageCodec> codecs = new ConcurrentHashMap<>();
+
+    static {
+        register(GSON);
+        register(BINARY);
+    }
+
+    private MessageCodecs() {
+    }
+
+    public static void register(MessageCodec codec) {
+        codecs.put(codec.getId(), codec);
+    }
+
+    /**
+     * @param id
+     * @return The codec with this id or {@link #GSON} if it is not known.
+     */
+    public static MessageCodec get(byte id) {
+        return codecs.getOrDefault(id, GSON);
+    }
+}
@@ -0,0 +1,15 @@
+package com.hatechnology.apps.core_messaging;
+
+/**
+ * The way the ids of the messages are created. Every endpoint and every message must get a different one,
+ * since the responses and the delivery confirmations are matched by it.
+ * @see SyncMessage#setIdGenerator(MessageIdGenerator)
+ */
+public interface MessageIdGenerator {
+
+    /**
+     * It is called for every message created, from any thread.
+     * @return A new id, never returned before by any endpoint.
+     */
+    String newId();
+}
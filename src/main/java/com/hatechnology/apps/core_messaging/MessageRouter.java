@@ -0,0 +1,224 @@
+package com.hatechnology.apps.core_messaging;
+
+import com.hatechnology.apps.core_messaging.behaviors.OnMessageBehavior;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * It finds the receivers of each message by the path of its request or its response.
+ * The receivers can be registered for a path, so they are not called for the messages they do not care about,
+ * or for every message, as {@link MessagingService#addReceiver(OnMessageBehavior)} always did.
+ * The receivers are registered once and looked up for every message, so the index is rebuilt on each change
+ * and the lookups just read the last one built, without locking.
+ * The receivers of a message are called in the order they were registered.
+ */
+public class MessageRouter {
+    private static final OnMessageBehavior[] NO_RECEIVERS = new OnMessageBehavior[0];
+
+    private final List<Route> routes = new ArrayList<>();
+    private volatile Index index = new Index(Collections.emptyList());
+
+    /**
+     * The receiver will get every message.
+     * @param receiver
+     */
+    public void addReceiver(OnMessageBehavior receiver) {
+        addRoute(new Route(null, true, true, receiver));
+    }
+
+    /**
+     * The receiver will get the messages with a request or a response for the path.
+     * @param path
+     * @param receiver
+     */
+    public void addReceiver(String path, OnMessageBehavior receiver) {
+        addRoute(new Route(requirePath(path), true, true, receiver));
+    }
+
+    /**
+     * The receiver will get the messages with a request for the path.
+     * @param path
+     * @param receiver
+     */
+    public void addRequestReceiver(String path, OnMessageBehavior receiver) {
+        addRoute(new Route(requirePath(path), true, false, receiver));
+    }
+
+    /**
+     * The receiver will get the messages with a response for the path.
+     * @param path
+     * @param receiver
+     */
+    public void addResponseReceiver(String path, OnMessageBehavior receiver) {
+        addRoute(new Route(requirePath(path), false, true, receiver));
+    }
+
+    /**
+     * Add all the routes of another router, after the ones that are already here.
+     * @param router
+     */
+    public void addRoutes(MessageRouter router) {
+        List<Route> otherRoutes;
+
+        synchronized (router){
+            otherRoutes = new ArrayList<>(router.routes);
+        }
+
+        synchronized (this){
+            routes.addAll(otherRoutes);
+            index = new Index(routes);
+        }
+    }
+
+    /**
+     * Remove the receiver from every path it was registered for.
+     * @param receiver
+     */
+    public synchronized void removeReceiver(OnMessageBehavior receiver) {
+        if (routes.removeIf(route -> route.receiver == receiver))
+            index = new Index(routes);
+    }
+
+    private synchronized void addRoute(Route route) {
+        if (route.receiver == null)
+            throw new IllegalArgumentException("The receiver can not be null!");
+
+        routes.add(route);
+        index = new Index(routes);
+    }
+
+    private static String requirePath(String path) {
+        if (path == null)
+            throw new IllegalArgumentException("The path can not be null!");
+
+        return path;
+    }
+
+    /**
+     * @param message
+     * @return The receivers of the message, in the order they were registered. It must not be modified.
+     */
+    public OnMessageBehavior[] getReceivers(SyncMessage message) {
+        Index current = index;
+
+        OnMessageBehavior[] requestReceivers = message.hasSyncRequest() ? current.getRequestReceivers(message.getRequestPath()) : null;
+        OnMessageBehavior[] responseReceivers = message.hasSyncResponse() ? current.getResponseReceivers(message.getResponsePath()) : null;
+
+        if (requestReceivers == null)
+            return responseReceivers != null ? responseReceivers : current.allMessagesReceivers;
+
+        //The receivers of a path already include the ones for every message
+        if (responseReceivers == null || responseReceivers == current.allMessagesReceivers)
+            return requestReceivers;
+
+        if (requestReceivers == current.allMessagesReceivers)
+            return responseReceivers;
+
+        //Both, the receivers of the two paths are mixed keeping the order
+        return current.merge(requestReceivers, responseReceivers);
+    }
+
+    public synchronized boolean isEmpty() {
+        return routes.isEmpty();
+    }
+
+    private static class Route {
+        private final String path;
+        private final boolean requests;
+        private final boolean responses;
+        private final OnMessageBehavior receiver;
+
+        Route(String path, boolean requests, boolean responses, OnMessageBehavior receiver) {
+            this.path = path;
+            this.requests = requests;
+            this.responses = responses;
+            this.receiver = receiver;
+        }
+    }
+
+    /**
+     * The receivers for each path, including the ones for every message. It is never modified once built.
+     */
+    private static class Index {
+        private final OnMessageBehavior[] allMessagesReceivers;
+        private final Map<String, OnMessageBehavior[]> requestReceivers = new HashMap<>();
+        private final Map<String, OnMessageBehavior[]> responseReceivers = new HashMap<>();
+        private final Map<OnMessageBehavior, Integer> order = new IdentityHashMap<>();
+
+        Index(List<Route> routes) {
+            List<OnMessageBehavior> allMessages = new ArrayList<>();
+
+            for (Route route: routes){
+                order.putIfAbsent(route.receiver, order.size());
+
+                if (route.path == null)
+                    allMessages.add(route.receiver);
+            }
+
+            allMessagesReceivers = allMessages.toArray(NO_RECEIVERS);
+
+            for (Route route: routes){
+                if (route.path == null)
+                    continue;
+
+                if (route.requests)
+                    requestReceivers.computeIfAbsent(route.path, path -> NO_RECEIVERS);
+
+                if (route.responses)
+                    responseReceivers.computeIfAbsent(route.path, path -> NO_RECEIVERS);
+            }
+
+            requestReceivers.replaceAll((path, receivers) -> build(routes, path, true));
+            responseReceivers.replaceAll((path, receivers) -> build(routes, path, false));
+        }
+
+        private OnMessageBehavior[] build(List<Route> routes, String path, boolean request) {
+            List<OnMessageBehavior> receivers = new ArrayList<>();
+
+            for (Route route: routes){
+                boolean matches = route.path == null || (route.path.equals(path) && (request ? route.requests : route.responses));
+
+                if (matches && !receivers.contains(route.receiver))
+                    receivers.add(route.receiver);
+            }
+
+            //A receiver keeps the place of its first registration
+            receivers.sort((first, second) -> Integer.compare(order.get(first), order.get(second)));
+
+            return receivers.toArray(NO_RECEIVERS);
+        }
+
+        OnMessageBehavior[] getRequestReceivers(String path) {
+            return path != null ? requestReceivers.getOrDefault(path, allMessagesReceivers) : allMessagesReceivers;
+        }
+
+        OnMessageBehavior[] getResponseReceivers(String path) {
+            return path != null ? responseReceivers.getOrDefault(path, allMessagesReceivers) : allMessagesReceivers;
+        }
+
+        OnMessageBehavior[] merge(OnMessageBehavior[] first, OnMessageBehavior[] second) {
+            List<OnMessageBehavior> receivers = new ArrayList<>(first.length + second.length);
+            int i = 0;
+            int j = 0;
+
+            while (i < first.length || j < second.length){
+                OnMessageBehavior next;
+
+                if (j >= second.length || (i < first.length && order.get(first[i]) <= order.get(second[j])))
+                    next = first[i++];
+                else
+                    next = second[j++];
+
+                if (receivers.isEmpty() || receivers.get(receivers.size() - 1) != next)
+                    receivers.add(next);
+            }
+
+            return receivers.toArray(NO_RECEIVERS);
+        }
+    }
+}
@@ -3,18 +3,31 @@ package com.hatechnology.apps.core_messaging;
 import com.hatechnology.apps.exceptions.BusinessException;
 import com.hatechnology.apps.exceptions.MessageTimeoutException;
 import com.hatechnology.apps.logger.DefaultLogger;
+import com.hatechnology.apps.core_messaging.behaviors.DispatchKeyBehavior;
 import com.hatechnology.apps.core_messaging.behaviors.ForwardMessageBehavior;
 import com.hatechnology.apps.core_messaging.behaviors.OnMessageBehavior;
+import com.hatechnology.apps.core_messaging.framing.Frame;
+import com.hatechnology.apps.core_messaging.framing.FrameCodec;
+import com.hatechnology.apps.core_messaging.framing.FrameCompressor;
+import com.hatechnology.apps.core_messaging.framing.LegacyUtfFrameCodec;
+import com.hatechnology.apps.core_messaging.framing.LengthPrefixedFrameCodec;
+import com.hatechnology.apps.core_messaging.framing.ProtocolHandshake;
+import com.hatechnology.apps.core_messaging.tasks.HashedWheelTimer;
 import com.hatechnology.apps.utilities.*;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
 
 /**
  * This class hold the core logic for managing the messages exchange.
@@ -28,19 +41,64 @@ import java.util.concurrent.TimeUnit;
  * @author Yenfry Herrera Feliz
  */
 public abstract class MessagingService extends Thread{
+    public static final int DEFAULT_MAX_OPEN_STREAMS = 32;
+    public static final int DEFAULT_MAX_STREAM_BYTES = 64 * 1024 * 1024;
     private static final int MAX_ALLOWED_BYTES_TO_TRANSFER = 65535;
     private static final String CONNECTION_TEST_REQUEST = "0000";
     private static final String CONNECTION_TEST_RESPONSE = "1111";
+    private static final byte[] CONNECTION_TEST_REQUEST_BYTES = CONNECTION_TEST_REQUEST.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CONNECTION_TEST_RESPONSE_BYTES = CONNECTION_TEST_RESPONSE.getBytes(StandardCharsets.UTF_8);
     private static final long SECONDS_TO_DISCONNECT = 30;
+    //Enough for the authentication, an endpoint that is not authenticated can not make us inflate more
+    static final int MAX_UNAUTHENTICATED_FRAME_LENGTH = 64 * 1024;
+    private static final long DEFAULT_LOW_WATERMARK_BYTES = 8 * 1024 * 1024;
+    private static final long DEFAULT_HIGH_WATERMARK_BYTES = 16 * 1024 * 1024;
+    private static final int DEFAULT_LOW_WATERMARK_MESSAGES = 5000;
+    private static final int DEFAULT_HIGH_WATERMARK_MESSAGES = 10000;
 
     //Internal use only
     private final String mInternalId = UUID.randomUUID().toString();
     protected Socket mSocket;
     private DataInputStream mDataInputStream;
     private DataOutputStream mDataOutputStream;
-    private Map<String, SyncMessageQueue> syncMessageQueueList = new HashMap<>();
-    private Map<String, SyncMessage> secureDeliveryMessages = new HashMap<>();
+    //The requests waiting for a response, by the sequence number of this connection
+    private final CorrelationTable<SyncMessageQueue> syncMessageQueueList = new CorrelationTable<>();
+    private final AtomicLong lastCorrelationId = new AtomicLong();
+    //The legacy endpoints drop the correlation ids, so their responses are matched by the message id
+    private final Map<String, SyncMessageQueue> legacySyncMessageQueueList = new ConcurrentHashMap<>();
+    private final Map<String, SyncMessage> secureDeliveryMessages = new ConcurrentHashMap<>();
     private SyncMessage pingMessage;
+    private NioConnection nioConnection;
+    private final boolean acceptedConnection;
+    private volatile FrameCodec frameCodec;
+    private int maxFrameLength = LengthPrefixedFrameCodec.DEFAULT_MAX_FRAME_LENGTH;
+    private volatile MessageCodec messageCodec = MessageCodecs.GSON;
+    private boolean compressionEnabled;
+    private int compressionThreshold = FrameCompressor.DEFAULT_THRESHOLD;
+    private volatile FrameCompressor frameCompressor;
+    private boolean relayEnabled;
+    private volatile FrameWriter frameWriter;
+    private volatile DispatchExecutor dispatchExecutor;
+    private volatile DispatchOrder dispatchOrder = DispatchOrder.NONE;
+
+    //Backpressure
+    private volatile BackpressurePolicy backpressurePolicy = BackpressurePolicy.BLOCK;
+    private long lowWatermarkBytes = DEFAULT_LOW_WATERMARK_BYTES;
+    private long highWatermarkBytes = DEFAULT_HIGH_WATERMARK_BYTES;
+    private int lowWatermarkMessages = DEFAULT_LOW_WATERMARK_MESSAGES;
+    private int highWatermarkMessages = DEFAULT_HIGH_WATERMARK_MESSAGES;
+    private final AtomicLong droppedMessages = new AtomicLong();
+    private final AtomicInteger lastStreamId = new AtomicInteger();
+    private int maxOpenStreams = DEFAULT_MAX_OPEN_STREAMS;
+    private int maxStreamBytes = DEFAULT_MAX_STREAM_BYTES;
+    private StreamAssembler streamAssembler = new StreamAssembler(maxOpenStreams, maxStreamBytes);
+    //What the other endpoint told in the handshake
+    private volatile int peerMaxOpenStreams = DEFAULT_MAX_OPEN_STREAMS;
+    private volatile int peerMaxStreamBytes = DEFAULT_MAX_STREAM_BYTES;
+
+    //Split message state
+    private int pendingMessageParts;
+    private MessageBuffer splitMessageBuffer;
 
     //General use
     private String uniqueId;
@@ -50,10 +108,12 @@ public abstract class MessagingService extends Thread{
     private String secureTokenPath;
     private String secureToken;
     private final ConnectionCheckService connectionCheckService = new ConnectionCheckService(this);
+    private final AtomicBoolean connectionCheckStarted = new AtomicBoolean();
 
     //Behaviors
-    private List<OnMessageBehavior> receivers = new ArrayList<>();
+    private final MessageRouter messageRouter = new MessageRouter();
     private ForwardMessageBehavior forwardMessageBehavior;
+    private volatile DispatchKeyBehavior dispatchKeyBehavior;
 
     public MessagingService(Socket mSocket, int maxBytesToTransfer, int timeoutSeconds, boolean secureMessages, String secureTokenPath) throws BusinessException {
         this.mSocket = mSocket;
@@ -62,6 +122,10 @@ public abstract class MessagingService extends Thread{
         this.secureMessages = secureMessages;
         this.secureTokenPath = secureTokenPath;
 
+        //The format is detected when the other endpoint connects
+        this.acceptedConnection = true;
+        this.frameCodec = new LegacyUtfFrameCodec();
+
         if (this.mSocket == null)
             throw new BusinessException("Socket can not be null!");
     }
@@ -71,6 +135,8 @@ public abstract class MessagingService extends Thread{
         this.timeoutSeconds = timeoutSeconds;
         this.secureMessages = secureMessages;
         this.secureTokenPath = secureTokenPath;
+        this.acceptedConnection = false;
+        this.frameCodec = new LengthPrefixedFrameCodec();
 
         loadSecuredToken();
     }
@@ -124,8 +190,300 @@ public abstract class MessagingService extends Thread{
         this.secureTokenPath = secureTokenPath;
     }
 
+    public FrameCodec getFrameCodec() {
+        return frameCodec;
+    }
+
+    /**
+     * The format used to write the messages into the socket.
+     * Per default the connecting endpoints use the {@link LengthPrefixedFrameCodec}, use the {@link LegacyUtfFrameCodec}
+     * to connect to endpoints that just know the writeUTF format. The accepting endpoints detect it by themselves.
+     * It must be set before connecting.
+     * @param frameCodec
+     */
+    public void setFrameCodec(FrameCodec frameCodec) {
+        this.frameCodec = frameCodec;
+    }
+
+    public int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    /**
+     * The max number of bytes of a frame read from the other endpoint, also once decompressed.
+     * The connection is closed when a frame says it is bigger, so the other endpoint can not make us allocate more.
+     * The big messages are written as streams of frames of maxBytesToTransfer, so this does not limit the size of the messages.
+     * It must be set before connecting.
+     * @param maxFrameLength
+     */
+    public void setMaxFrameLength(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+
+        if (frameCodec instanceof LengthPrefixedFrameCodec)
+            frameCodec = new LengthPrefixedFrameCodec(maxFrameLength);
+    }
+
+    public int getMaxOpenStreams() {
+        return maxOpenStreams;
+    }
+
+    public int getMaxStreamBytes() {
+        return maxStreamBytes;
+    }
+
+    /**
+     * Limit the big messages being received as streams, see {@link StreamAssembler}.
+     * They are told to the other endpoint in the handshake, so it does not send more.
+     * The connection is closed when the other endpoint goes over any of them. It must be set before connecting.
+     * @param maxOpenStreams The max number of messages being received at the same time.
+     * @param maxStreamBytes The max number of bytes kept for all of them, which is also the max length of a message.
+     */
+    public void setStreamLimits(int maxOpenStreams, int maxStreamBytes) {
+        this.maxOpenStreams = maxOpenStreams;
+        this.maxStreamBytes = maxStreamBytes;
+        this.streamAssembler = new StreamAssembler(maxOpenStreams, maxStreamBytes);
+    }
+
+    public MessageCodec getMessageCodec() {
+        return messageCodec;
+    }
+
+    /**
+     * The way the messages are encoded. The connecting endpoint proposes it in the handshake
+     * and the accepting endpoint uses it if it knows it, otherwise both use the JSON codec.
+     * The legacy format always uses JSON. It must be set before connecting.
+     * @param messageCodec
+     */
+    public void setMessageCodec(MessageCodec messageCodec) {
+        this.messageCodec = messageCodec;
+    }
+
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    /**
+     * Compress the frames of this connection when the other endpoint agrees, which is proposed in the handshake.
+     * The old endpoints do not know it, so they keep working without compression. It must be set before connecting.
+     * @param compressionEnabled
+     */
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * @param compressionThreshold The frames with less bytes than this are written without compression.
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * @return The compressor of this connection with its counters, or null if the compression was not agreed.
+     */
+    public FrameCompressor getFrameCompressor() {
+        return frameCompressor;
+    }
+
+    public boolean isRelayEnabled() {
+        return relayEnabled;
+    }
+
+    /**
+     * Keep the bytes of the received messages that are sent to another client, see {@link #relayMessage(SyncMessage)}.
+     * @param relayEnabled
+     */
+    public void setRelayEnabled(boolean relayEnabled) {
+        this.relayEnabled = relayEnabled;
+    }
+
+    /**
+     * @return The executor that calls the receivers, the shared one if none was set.
+     */
+    public DispatchExecutor getDispatchExecutor() {
+        DispatchExecutor executor = dispatchExecutor;
+
+        return executor != null ? executor : DispatchExecutor.getShared();
+    }
+
+    /**
+     * The executor that calls the receivers of the messages received by this connection.
+     * @param dispatchExecutor null to use the shared one.
+     */
+    public void setDispatchExecutor(DispatchExecutor dispatchExecutor) {
+        this.dispatchExecutor = dispatchExecutor;
+    }
+
+    public DispatchOrder getDispatchOrder() {
+        return dispatchOrder;
+    }
+
+    /**
+     * Which received messages must reach the receivers in order. Per default none, see {@link DispatchOrder}.
+     * @param dispatchOrder
+     */
+    public void setDispatchOrder(DispatchOrder dispatchOrder) {
+        this.dispatchOrder = dispatchOrder == null ? DispatchOrder.NONE : dispatchOrder;
+    }
+
+    public DispatchKeyBehavior getDispatchKeyBehavior() {
+        return dispatchKeyBehavior;
+    }
+
+    /**
+     * Give the key of each message for the {@link DispatchOrder#CUSTOM} order.
+     * The keys are shared by all the connections that use the same {@link DispatchExecutor}.
+     * @param dispatchKeyBehavior
+     */
+    public void setDispatchKeyBehavior(DispatchKeyBehavior dispatchKeyBehavior) {
+        this.dispatchKeyBehavior = dispatchKeyBehavior;
+    }
+
+    /**
+     * @param message
+     * @return The key to handle the message in order, or null.
+     */
+    private Object getDispatchKey(SyncMessage message) {
+        switch (dispatchOrder){
+            case CONNECTION:
+                return this;
+            case SOURCE_ID:
+                return message.getSourceId();
+            case CUSTOM:
+                DispatchKeyBehavior behavior = dispatchKeyBehavior;
+
+                return behavior != null ? behavior.getDispatchKey(message) : null;
+            default:
+                return null;
+        }
+    }
+
+    public BackpressurePolicy getBackpressurePolicy() {
+        return backpressurePolicy;
+    }
+
+    /**
+     * What to do with the messages sent while the queue of this connection is over its high watermark.
+     * Per default the sender waits, see {@link BackpressurePolicy}.
+     * @param backpressurePolicy
+     */
+    public void setBackpressurePolicy(BackpressurePolicy backpressurePolicy) {
+        this.backpressurePolicy = backpressurePolicy;
+    }
+
+    public long getLowWatermarkBytes() {
+        return lowWatermarkBytes;
+    }
+
+    public long getHighWatermarkBytes() {
+        return highWatermarkBytes;
+    }
+
+    public int getLowWatermarkMessages() {
+        return lowWatermarkMessages;
+    }
+
+    public int getHighWatermarkMessages() {
+        return highWatermarkMessages;
+    }
+
+    /**
+     * The limits of the messages waiting to be written. The connection stops being writable when the bytes or the messages
+     * reach the high watermark, and it is writable again when both go down to the low watermark.
+     * @param lowWatermarkBytes
+     * @param highWatermarkBytes
+     * @param lowWatermarkMessages
+     * @param highWatermarkMessages
+     */
+    public synchronized void setWatermarks(long lowWatermarkBytes, long highWatermarkBytes, int lowWatermarkMessages, int highWatermarkMessages) {
+        if (lowWatermarkBytes > highWatermarkBytes || lowWatermarkMessages > highWatermarkMessages)
+            throw new IllegalArgumentException("The low watermarks must not be greater than the high watermarks!");
+
+        this.lowWatermarkBytes = lowWatermarkBytes;
+        this.highWatermarkBytes = highWatermarkBytes;
+        this.lowWatermarkMessages = lowWatermarkMessages;
+        this.highWatermarkMessages = highWatermarkMessages;
+
+        FrameScheduler scheduler = getFrameScheduler();
+
+        if (scheduler != null)
+            applyWatermarks(scheduler);
+    }
+
+    private synchronized void applyWatermarks(FrameScheduler scheduler) {
+        scheduler.setWatermarks(lowWatermarkBytes, highWatermarkBytes, lowWatermarkMessages, highWatermarkMessages);
+    }
+
+    /**
+     * @return false when the other endpoint is not reading as fast as we write and the high watermark was reached,
+     * so the senders can wait or send less before the {@link BackpressurePolicy} is applied.
+     */
+    public boolean isWritable() {
+        FrameScheduler scheduler = getFrameScheduler();
+
+        return scheduler == null || scheduler.isWritable();
+    }
+
+    /**
+     * @return The bytes waiting to be written.
+     */
+    public long getQueuedBytes() {
+        FrameScheduler scheduler = getFrameScheduler();
+
+        return scheduler == null ? 0 : scheduler.getQueuedBytes();
+    }
+
+    /**
+     * @return The messages waiting to be written.
+     */
+    public int getQueuedMessages() {
+        FrameScheduler scheduler = getFrameScheduler();
+
+        return scheduler == null ? 0 : scheduler.getQueuedMessages();
+    }
+
+    /**
+     * @return The messages discarded by {@link BackpressurePolicy#DROP_OLDEST}.
+     */
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    /**
+     * The receiver will get every message, see {@link MessageRouter} to get just the ones of some paths.
+     * @param receiver
+     */
     public void addReceiver(OnMessageBehavior receiver){
-        receivers.add(receiver);
+        messageRouter.addReceiver(receiver);
+    }
+
+    /**
+     * The receiver will get the messages with a request or a response for the path.
+     * @param path
+     * @param receiver
+     */
+    public void addReceiver(String path, OnMessageBehavior receiver){
+        messageRouter.addReceiver(path, receiver);
+    }
+
+    public void addRequestReceiver(String path, OnMessageBehavior receiver){
+        messageRouter.addRequestReceiver(path, receiver);
+    }
+
+    public void addResponseReceiver(String path, OnMessageBehavior receiver){
+        messageRouter.addResponseReceiver(path, receiver);
+    }
+
+    public void removeReceiver(OnMessageBehavior receiver){
+        messageRouter.removeReceiver(receiver);
+    }
+
+    public MessageRouter getMessageRouter() {
+        return messageRouter;
     }
 
     public ForwardMessageBehavior getForwardMessageBehavior() {
@@ -150,12 +508,28 @@ public abstract class MessagingService extends Thread{
 
     protected abstract String getTemporaryMessagesFolder();
 
+    /**
+     * Called when the other endpoint answers a ping of {@link ConnectionCheckService}.
+     * @param roundTripNanos The time since the ping was sent.
+     */
+    protected void onRoundTrip(long roundTripNanos) {
+    }
+
     /**
      * This method send a message. It receives as parameter a message object.
      * @param message
      * @throws BusinessException
      */
     public void sendMessage(SyncMessage message) throws BusinessException {
+        sendMessage(message, false);
+    }
+
+    /**
+     * @param message
+     * @param relayed True when the message comes from another client, so it keeps the source id of that client.
+     * @throws BusinessException
+     */
+    private void sendMessage(SyncMessage message, boolean relayed) throws BusinessException {
         if (mSocket != null){
             try {
                 if (message == null)
@@ -167,7 +541,7 @@ public abstract class MessagingService extends Thread{
 
                         this.pingMessage = message;
 
-                        writeUTF(CONNECTION_TEST_REQUEST);
+                        writeFrame(CONNECTION_TEST_REQUEST);
                     } catch (IOException e) {
                         DefaultLogger.logEvent("MessagingService.sendMessage(ClientId=" + getmInternalId() + ")", HAGeneralUtils.getStackTrace(e), DefaultLogger.ERROR_LEVEL);
                     }
@@ -175,91 +549,336 @@ public abstract class MessagingService extends Thread{
                     return;
                 }
 
+                //Wait or make room for the message if the other endpoint is slow
+                applyBackpressure();
+
                 //Set message properties
                 String uniqueId = getUniqueId();
 
-                message.setSourceId(uniqueId);
+                if ( !relayed)
+                    message.setSourceId(uniqueId);
                 message._setDateTime();
                 message.setValidationToken(generateValidationToken());
 
-                //
-                String writeUTF = JsonUtils.convertToJson(message);
+                //The legacy endpoints just know JSON, and the pending messages are stored as JSON as well
+                boolean legacyFormat = frameCodec.isLengthLimited();
+                boolean storeMessage = message.isSecureDelivery() && !message.isConfirmingDelivery();
+                MessageCodec codec = legacyFormat ? MessageCodecs.GSON : messageCodec;
+
+                if (legacyFormat)
+                    message._setLegacyDateTime();
+
+                //The message is encoded straight into the reused buffer of this thread
+                MessageBuffer buffer = MessageBuffer.acquire();
 
-                /*
-                * To make the message have a secure delivery.
-                **/
-                if (message.isSecureDelivery() && !message.isConfirmingDelivery()){
+                try {
+                    /*
+                    * To make the message have a secure delivery.
+                    **/
+                    if (storeMessage){
+
+                        if (uniqueId == null || uniqueId.equals("")){
+                            throw new BusinessException("Client id must not be null!");
+                        }
 
-                    if (uniqueId == null || uniqueId.equals("")){
-                        throw new BusinessException("Client id must not be null!");
+                        MessageCodecs.GSON.encode(message, buffer);
+
+                        String messageFile = getTemporaryMessagesFolder() + uniqueId + "/SyncMessage." + message.getId() + ".smsg";
+                        String encodedMessage = HAStringUtils.encodeBytesToBase64(buffer.getData(), 0, buffer.size());
+
+                        HAFileHelper.createFile(messageFile, encodedMessage);
+
+
+                        secureDeliveryMessages.put(message.getId(), message);
                     }
 
-                    String messageFile = getTemporaryMessagesFolder() + uniqueId + "/SyncMessage." + message.getId() + ".smsg";
-                    String encodedMessage = HAStringUtils.encodeStringToBase64(writeUTF);
+                    //The stored JSON is sent as it is when the codec is the same
+                    if ( !storeMessage || codec != MessageCodecs.GSON){
+                        buffer.reset();
+                        codec.encode(message, buffer);
+                    }
+
+                    if (legacyFormat)
+                        writeLegacyMessage(buffer.getData(), buffer.size(), isDroppable(message));
+                    else
+                        //The complete message fits in just one frame or stream
+                        writeMessage(buffer.toByteArray(), isDroppable(message));
+
+                } finally {
+                    MessageBuffer.release(buffer);
+                }
+
+            } catch (IOException e) {
+
+                DefaultLogger.logEvent("MessagingService.sendMessage(ClientId=" + getmInternalId() + ")", HAGeneralUtils.getStackTrace(e), DefaultLogger.ERROR_LEVEL);
+
+                disconnect(true);
+            }
+
+        }
+    }
+
+    /**
+     * This method send a message received from another connection, like the messages forwarded by the server.
+     * The bytes are written as they were received, so the message is neither decoded nor encoded again,
+     * and it keeps the source id, the date and the token given by its sender.
+     * When that is not possible, because the bytes were not kept, the codecs are not the same,
+     * or the messages of this connection are validated, the message is encoded again like in {@link #sendMessage(SyncMessage)},
+     * but still with the source id of its sender.
+     * @param message
+     * @throws BusinessException
+     */
+    public void relayMessage(SyncMessage message) throws BusinessException {
+        if (message == null)
+            throw new BusinessException("Please specify a valid message");
+
+        byte[] data = message._getReceivedData();
+        boolean legacyFormat = frameCodec.isLengthLimited();
+        MessageCodec codec = legacyFormat ? MessageCodecs.GSON : messageCodec;
+
+        //The bytes from the new endpoints do not have the date time the legacy ones read
+        if (data == null || message._getReceivedCodec() != codec || isSecureMessages() || (legacyFormat && !message._hasLegacyDateTime())){
+            sendMessage(message, true);
+            return;
+        }
+
+        if (mSocket == null)
+            return;
+
+        applyBackpressure();
 
-                    HAFileHelper.createFile(messageFile, encodedMessage);
+        try {
+            //The pending messages are stored as JSON, which is what we have
+            if (message.isSecureDelivery() && !message.isConfirmingDelivery()){
+                String uniqueId = getUniqueId();
 
+                if (uniqueId == null || uniqueId.equals("")){
+                    throw new BusinessException("Client id must not be null!");
+                }
 
-                    secureDeliveryMessages.put(message.getId(), message);
+                if (codec != MessageCodecs.GSON){
+                    sendMessage(message, true);
+                    return;
                 }
 
-                if (maxBytesToTransfer > MAX_ALLOWED_BYTES_TO_TRANSFER)
-                    throw new BusinessException("The amount of bytes allowed to transfer are " + MAX_ALLOWED_BYTES_TO_TRANSFER + " and you are trying " + maxBytesToTransfer + ". \nPlease fix this in order to have the messaging service working properly.");
+                String messageFile = getTemporaryMessagesFolder() + uniqueId + "/SyncMessage." + message.getId() + ".smsg";
+
+                HAFileHelper.createFile(messageFile, HAStringUtils.encodeBytesToBase64(data, 0, data.length));
+
+                secureDeliveryMessages.put(message.getId(), message);
+            }
+
+            if (legacyFormat)
+                writeLegacyMessage(data, data.length, isDroppable(message));
+            else
+                writeMessage(data, isDroppable(message));
+
+        } catch (IOException e) {
+
+            DefaultLogger.logEvent("MessagingService.relayMessage(ClientId=" + getmInternalId() + ")", HAGeneralUtils.getStackTrace(e), DefaultLogger.ERROR_LEVEL);
+
+            disconnect(true);
+        }
+    }
 
-                int bytesLength = writeUTF.getBytes().length;
+    /**
+     * This method send a message that is sent to many connections at the same time.
+     * The message is encoded by the first connection with each codec, and the others write the same bytes,
+     * so it keeps the source id, the date and the token it was created with.
+     * The messages that must be stored or validated for each connection are sent as a copy with {@link #sendMessage(SyncMessage)}.
+     * @param broadcast
+     * @throws BusinessException
+     */
+    public void broadcastMessage(BroadcastMessage broadcast) throws BusinessException {
+        if (broadcast == null)
+            throw new BusinessException("Please specify a valid message");
 
-                if (bytesLength > maxBytesToTransfer){
+        SyncMessage message = broadcast.getMessage();
 
-                    int messagesCount = bytesLength / maxBytesToTransfer;
+        if (isSecureMessages() || !isDroppable(message) || message.isPingingServer()){
+            sendMessage(broadcast.copyMessage());
+            return;
+        }
 
-                    if (bytesLength % maxBytesToTransfer != 0)
-                        messagesCount = messagesCount + 1;
+        if (mSocket == null)
+            return;
 
-                    //Sending the message to prepare the receiver
-                    //to receive the message by separated parts
-                    SyncMessage splitSyncMessage = new SyncMessage();
-                    splitSyncMessage.setSplitMessage(true);
-                    splitSyncMessage.setMessageParts(messagesCount);
+        applyBackpressure();
 
-                    String writeSplitMessage = JsonUtils.convertToJson(splitSyncMessage);
+        try {
+            boolean legacyFormat = frameCodec.isLengthLimited();
+            byte[] data = broadcast.getData(legacyFormat ? MessageCodecs.GSON : messageCodec, legacyFormat);
 
-                    writeUTF(writeSplitMessage);
+            if (legacyFormat)
+                writeLegacyMessage(data, data.length, true);
+            else
+                writeMessage(data, true);
 
-                    // ** //
+        } catch (IOException e) {
 
-                    String[] strParts = new String[messagesCount];
+            DefaultLogger.logEvent("MessagingService.broadcastMessage(ClientId=" + getmInternalId() + ")", HAGeneralUtils.getStackTrace(e), DefaultLogger.ERROR_LEVEL);
 
-                    for (int i = 0; i < messagesCount; i++){
-                        int begin = (i * maxBytesToTransfer);
-                        int end = begin + (maxBytesToTransfer);
+            disconnect(true);
+        }
+    }
 
-                        if (end > bytesLength)
-                            end = bytesLength;
+    /**
+     * Write a JSON message in the legacy format. When it is bigger than maxBytesToTransfer we first send a split message
+     * with the number of parts, and then the parts. The parts are measured as they are written, see
+     * {@link LegacyUtfFrameCodec#split(String, int)}, and each one is a valid text by itself.
+     * @param data
+     * @param size The number of valid bytes in data.
+     * @param droppable If the message can be discarded when the connection is not writable. The split messages never are.
+     * @throws IOException
+     * @throws BusinessException
+     */
+    private void writeLegacyMessage(byte[] data, int size, boolean droppable) throws IOException, BusinessException {
+        if (maxBytesToTransfer > MAX_ALLOWED_BYTES_TO_TRANSFER)
+            throw new BusinessException("The amount of bytes allowed to transfer are " + MAX_ALLOWED_BYTES_TO_TRANSFER + " and you are trying " + maxBytesToTransfer + ". \nPlease fix this in order to have the messaging service working properly.");
 
-                        strParts[i] = writeUTF.substring(begin , end);
-                    }
+        List<String> parts = LegacyUtfFrameCodec.split(new String(data, 0, size, StandardCharsets.UTF_8), maxBytesToTransfer);
 
-                    for (String str: strParts) {
-                        writeUTF(str);
-                    }
-                }else{
-                    //Else send the complete message without dividing it
-                    writeUTF(writeUTF);
+        if (parts.size() == 1){
+            //Send the complete message without dividing it
+            OutboundStream stream = new OutboundStream(Arrays.copyOf(data, size));
+            stream.setDroppable(droppable);
+
+            write(stream);
+            return;
+        }
+
+        //Sending the message to prepare the receiver
+        //to receive the message by separated parts
+        SyncMessage splitSyncMessage = new SyncMessage();
+        splitSyncMessage.setSplitMessage(true);
+        splitSyncMessage.setMessageParts(parts.size());
+
+        writeFrame(JsonUtils.convertToJson(splitSyncMessage));
+
+        for (String part: parts){
+            writeFrame(part);
+        }
+    }
+
+    private void writeFrame(String content) throws IOException {
+        write(new OutboundStream(content.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Write a message as a single frame, or as a stream of fragments of maxBytesToTransfer when it is bigger,
+     * so the other messages do not need to wait until the complete message is written.
+     * @param payload
+     * @param droppable If the message can be discarded when the connection is not writable.
+     * @throws IOException
+     * @throws BusinessException If the stream is bigger than what the other endpoint accepts, which would close the connection.
+     */
+    private void writeMessage(byte[] payload, boolean droppable) throws IOException, BusinessException {
+        OutboundStream stream;
+
+        if (payload.length <= maxBytesToTransfer){
+            stream = new OutboundStream(payload);
+        }else {
+            int peerMaxStreamBytes = this.peerMaxStreamBytes;
+
+            if (payload.length > peerMaxStreamBytes)
+                throw new BusinessException("The message has " + payload.length + " bytes and the other endpoint accepts " + peerMaxStreamBytes + "!");
+
+            int streamId = lastStreamId.incrementAndGet();
+
+            //Zero is not a valid stream id
+            if (streamId == 0)
+                streamId = lastStreamId.incrementAndGet();
+
+            stream = new OutboundStream(payload, streamId, maxBytesToTransfer);
+        }
+
+        stream.setDroppable(droppable);
+
+        write(stream);
+    }
+
+    /**
+     * The secure delivery messages and the confirmations must not be lost.
+     */
+    private static boolean isDroppable(SyncMessage message) {
+        return !message.isSecureDelivery() && !message.isConfirmingDelivery();
+    }
+
+    private FrameScheduler getFrameScheduler() {
+        NioConnection connection = nioConnection;
+
+        if (connection != null)
+            return connection.getFrameScheduler();
+
+        FrameWriter writer = frameWriter;
+
+        return writer != null ? writer.getFrameScheduler() : null;
+    }
+
+    /**
+     * Apply the {@link BackpressurePolicy} when the queue of this connection is over its high watermark.
+     * @throws BusinessException If the message must not be sent.
+     */
+    private void applyBackpressure() throws BusinessException {
+        FrameScheduler scheduler = getFrameScheduler();
+
+        if (scheduler == null || scheduler.isWritable())
+            return;
+
+        BackpressurePolicy policy = backpressurePolicy;
+
+        //The event loops are the ones writing, so they can not wait for themselves
+        if (policy == BackpressurePolicy.BLOCK && Thread.currentThread() instanceof NioEventLoop)
+            policy = BackpressurePolicy.FAIL;
+
+        switch (policy){
+            case BLOCK:
+                try {
+                    if (scheduler.awaitWritable(TimeUnit.SECONDS.toMillis(timeoutSeconds)))
+                        return;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
 
-            } catch (IOException e) {
+                throw new BusinessException("Time exceeded waiting for the connection to be writable. DefinedTimeout=" + timeoutSeconds);
+            case DROP_OLDEST:
+                while (scheduler.isFull()){
+                    if ( !scheduler.dropOldest())
+                        throw new BusinessException("The connection is not writable and there are not messages that can be discarded!");
 
-                DefaultLogger.logEvent("MessagingService.sendMessage(ClientId=" + getmInternalId() + ")", HAGeneralUtils.getStackTrace(e), DefaultLogger.ERROR_LEVEL);
+                    droppedMessages.incrementAndGet();
+                }
+
+                return;
+            case DISCONNECT:
+                DefaultLogger.logEvent("MessagingService.applyBackpressure", "ClientId=" + getmInternalId() + " will be disconnected due that is not reading the messages", DefaultLogger.DEBUG_LEVEL);
 
                 disconnect(true);
-            }
 
+                throw new BusinessException("The connection was closed because the other endpoint is not reading the messages!");
+            default:
+                throw new BusinessException("The connection is not writable, the other endpoint is not reading the messages!");
         }
     }
 
-    private synchronized void writeUTF(String content) throws IOException {
-        this.mDataOutputStream.writeUTF(content);
-        this.mDataOutputStream.flush();
+    /**
+     * Queue a message to be written. Non blocking connections write from their event loop,
+     * the blocking ones from their {@link FrameWriter}, so the sender does not wait for the socket.
+     * @param stream
+     * @throws IOException If the connection is closed.
+     */
+    private void write(OutboundStream stream) throws IOException {
+        if (nioConnection != null){
+            nioConnection.write(stream);
+            return;
+        }
+
+        FrameWriter writer = frameWriter;
+
+        if (writer == null)
+            throw new IOException("Connection is closed!");
+
+        writer.write(stream);
     }
     /**
      * Here we send a message and we wait for a response.
@@ -275,30 +894,89 @@ public abstract class MessagingService extends Thread{
                                           boolean reconnectOnTimeOut,
                                           int customTimeoutSeconds) throws BusinessException, MessageTimeoutException {
 
-        //Place the message into the queue
-        SyncMessageQueue newMessageQueue = addNewMessageToTheQueue(message);
+        SyncMessageQueue messageQueue = sendRequest(message, customTimeoutSeconds);
+        CompletableFuture<SyncMessage> response = messageQueue.getResponse();
+        MessageTimeoutException timeoutException;
 
-        //Send the message
-        sendMessage(message);
+        try {
+            return response.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof BusinessException)
+                throw (BusinessException) e.getCause();
 
-        //Message must wait for a response
-        message.setWaitResponse(true);
+            timeoutException = e.getCause() instanceof MessageTimeoutException ? (MessageTimeoutException) e.getCause() : new MessageTimeoutException(e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
 
-        try {
-            waitUntilMyQueueMessageIsReceived(newMessageQueue, customTimeoutSeconds);
-        } catch (MessageTimeoutException e) {
+            //Nobody is waiting for it anymore
+            removeMessageQueue(messageQueue);
+
+            timeoutException = new MessageTimeoutException("Interrupted while waiting for a response.");
+        }
 
-            DefaultLogger.logEvent("MessagingService.sendRequestMessage(ClientId=" + getmInternalId() + ", MessageId=" + message.getId() +")", HAGeneralUtils.getStackTrace(e), DefaultLogger.ERROR_LEVEL);
+        DefaultLogger.logEvent("MessagingService.sendRequestMessage(ClientId=" + getmInternalId() + ", MessageId=" + message.getId() +")", HAGeneralUtils.getStackTrace(timeoutException), DefaultLogger.ERROR_LEVEL);
 
-            if (reconnectOnTimeOut){
-                //Disconnected
-                disconnect(true);
-            }
+        if (reconnectOnTimeOut){
+            //Disconnected
+            disconnect(true);
+        }
+
+        throw new MessageTimeoutException(timeoutException.getMessage());
+    }
+
+    /**
+     * Send a message and get its response later, without holding a thread while waiting.
+     * @param message
+     * @return See {@link #sendRequestAsync(SyncMessage, int)}.
+     */
+    public CompletableFuture<SyncMessage> sendRequestAsync(SyncMessage message) {
+        return sendRequestAsync(message, 0);
+    }
+
+    /**
+     * Send a message and get its response later, without holding a thread while waiting.
+     * The future is completed by the thread that reads the connection, so the long tasks should go to the async methods of the future.
+     * If there is no connection the response says so, as it happens with {@link #sendRequestMessage(SyncMessage, boolean, int)}.
+     * @param message
+     * @param customTimeoutSeconds The max seconds to wait for the response, 0 to use the timeout of the connection.
+     * @return Completed with the message and its response. It fails with {@link MessageTimeoutException} if the response does not come in time,
+     * or with {@link BusinessException} if the message could not be sent.
+     */
+    public CompletableFuture<SyncMessage> sendRequestAsync(SyncMessage message, int customTimeoutSeconds) {
+        return sendRequest(message, customTimeoutSeconds).getResponse();
+    }
+
+    private SyncMessageQueue sendRequest(SyncMessage message, int customTimeoutSeconds) {
+        SyncMessageQueue messageQueue = addNewMessageToTheQueue(message);
+        CompletableFuture<SyncMessage> response = messageQueue.getResponse();
+
+        int timeoutSeconds = customTimeoutSeconds != 0 ? customTimeoutSeconds : getTimeoutSeconds();
+
+        //One thread times out the requests of every connection
+        HashedWheelTimer.Timeout timeout = HashedWheelTimer.getShared().newTimeout(() -> {
+            if (removeMessageQueue(messageQueue))
+                response.completeExceptionally(new MessageTimeoutException("Time exceeded for a response. DefinedTimeout=" + timeoutSeconds));
+        }, timeoutSeconds, TimeUnit.SECONDS);
 
-            throw new MessageTimeoutException(e.getMessage());
+        response.whenComplete((responseMessage, e) -> timeout.cancel());
+
+        try {
+            sendMessage(message);
+        } catch (BusinessException e) {
+            removeMessageQueue(messageQueue);
+            response.completeExceptionally(e);
+
+            return messageQueue;
         }
 
-        return newMessageQueue.getSyncMessage();
+        //Message must wait for a response
+        message.setWaitResponse(true);
+
+        //Nobody is going to answer it
+        if ( !isConnected())
+            setNotConnectedResponse(messageQueue);
+
+        return messageQueue;
     }
 
     private SyncMessageQueue addNewMessageToTheQueue(SyncMessage message) {
@@ -308,26 +986,76 @@ public abstract class MessagingService extends Thread{
         syncMessageQueue.setSyncMessage(message);
         syncMessageQueue.setSent(true);
 
-        syncMessageQueueList.put(message.getId(), syncMessageQueue);
+        //The message carries it, so the response is found without hashing its id
+        long correlationId = lastCorrelationId.incrementAndGet();
+        message._setCorrelationId(correlationId);
+        syncMessageQueue.setCorrelationId(correlationId);
+
+        syncMessageQueueList.put(correlationId, syncMessageQueue);
+
+        if (frameCodec.isLengthLimited())
+            legacySyncMessageQueueList.put(message.getId(), syncMessageQueue);
 
         return syncMessageQueue;
     }
 
-    private void setResponseToMessageQueue(String messageId, SyncResponse response){
+    /**
+     * @param correlationId
+     * @param messageId
+     * @return The request waiting for this response, or null if there is none.
+     */
+    private SyncMessageQueue findMessageQueue(long correlationId, String messageId){
+        if (correlationId != 0){
+            SyncMessageQueue messageQueue = syncMessageQueueList.get(correlationId);
 
-        SyncMessageQueue messageQueue = syncMessageQueueList.get(messageId);
+            //The requests of the other endpoint and the forwarded messages carry the numbers of other connections
+            return messageQueue != null && messageQueue.getId().equals(messageId) ? messageQueue : null;
+        }
 
-        if (messageQueue != null){
-            messageQueue.setResponded(true);
+        return legacySyncMessageQueueList.isEmpty() || messageId == null ? null : legacySyncMessageQueueList.get(messageId);
+    }
+
+    /**
+     * @param messageQueue
+     * @return true if it was still waiting, so the caller is the one that must answer it.
+     */
+    private boolean removeMessageQueue(SyncMessageQueue messageQueue){
+        boolean removed = syncMessageQueueList.remove(messageQueue.getCorrelationId(), messageQueue);
+
+        if ( !legacySyncMessageQueueList.isEmpty())
+            removed |= legacySyncMessageQueueList.remove(messageQueue.getId(), messageQueue);
+
+        return removed;
+    }
+
+    private void setResponseToMessageQueue(SyncMessageQueue messageQueue, SyncResponse response){
+
+        if (messageQueue != null && removeMessageQueue(messageQueue)){
+            //The response must be there before waking up the sender
             SyncMessage message = messageQueue.getSyncMessage();
             message.setSyncResponse(response);
-
-            syncMessageQueueList.remove(messageId);
+            messageQueue.setResponded(true);
         }
     }
 
+    /**
+     * Respond the message with a connection problem, since its response will never come.
+     * @param messageQueue
+     */
+    private void setNotConnectedResponse(SyncMessageQueue messageQueue){
+        if ( !removeMessageQueue(messageQueue))
+            return;
+
+        SyncResponse syncResponse = new SyncResponse();
+        syncResponse.setSuccess(false);
+        syncResponse.setErrorMessage("Not connection available");
+
+        messageQueue.getSyncMessage().setSyncResponse(syncResponse);
+        messageQueue.setResponded(true);
+    }
+
     private void setMessageDelivered(String messageId){
-        SyncMessage message = secureDeliveryMessages.remove(messageId);
+        SyncMessage message = messageId != null ? secureDeliveryMessages.remove(messageId) : null;
 
         if (message != null){
             releaseTempMessage(messageId);
@@ -335,186 +1063,412 @@ public abstract class MessagingService extends Thread{
     }
 
     /**
-     * This method wait a response for messages that requires it.
-     * @param syncMessageQueue
-     * @param customWaitingSeconds
-     * @throws MessageTimeoutException
+     * This is the message listener.
+     * We basically started reading our socket input stream in a thread(background).
      */
-    private void waitUntilMyQueueMessageIsReceived(SyncMessageQueue syncMessageQueue, int customWaitingSeconds) throws MessageTimeoutException {
-        //Wait for a response
-        int millisecondsAwaiting = 0;
-        int timeoutSeconds = getTimeoutSeconds();
+    protected void startListener() throws IOException {
 
-        if (customWaitingSeconds != 0)
-            timeoutSeconds = customWaitingSeconds;
+        if (mSocket == null)
+            return;
 
-        while (isConnected() && !syncMessageQueue.isResponded()){
+        //The streams must be ready before sending anything
+        openStreams();
 
-            long seconds = millisecondsAwaiting / 1000L;
+        BackgroundProcessHelper.startThread(()->{
 
-            if ( seconds > timeoutSeconds){
-                throw new MessageTimeoutException("Time exceeded for a response. DefinedTimeout=" + getTimeoutSeconds());
-            }else{
-                try {
-                    TimeUnit.MILLISECONDS.sleep(1);
-                    millisecondsAwaiting++;
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+            if (mSocket != null){
+                try{
+                    //It keeps checking across the reconnections, so it is started just once
+                    if (connectionCheckStarted.compareAndSet(false, true))
+                        BackgroundProcessHelper.startThread(connectionCheckService);
+
+                    while (true){
+                        onFrameReceived(readFrame());
+                    }
+                }catch (Exception e){
+                    DefaultLogger.logEvent("MessagingService.startListener(ClientId=" + getmInternalId() + ")", HAGeneralUtils.getStackTrace(e), DefaultLogger.ERROR_LEVEL);
+
+                    disconnect(true);
                 }
             }
+        });
+    }
+
+    /**
+     * Open the socket streams and agree with the other endpoint the format of the frames.
+     * @throws IOException
+     */
+    private synchronized void openStreams() throws IOException {
+        this.mDataInputStream = new DataInputStream(new BufferedInputStream(mSocket.getInputStream()));
+        this.mDataOutputStream = new DataOutputStream(new BufferedOutputStream(mSocket.getOutputStream()));
+
+        mSocket.setKeepAlive(true);
+
+        //Nothing from a previous connection must be mixed with this one
+        stopFrameWriter();
+        streamAssembler = new StreamAssembler(maxOpenStreams, maxStreamBytes);
+        frameCompressor = null;
+        peerMaxOpenStreams = DEFAULT_MAX_OPEN_STREAMS;
+        peerMaxStreamBytes = DEFAULT_MAX_STREAM_BYTES;
+
+        if (acceptedConnection){
+            ProtocolHandshake.Preface preface = ProtocolHandshake.accept(mDataInputStream);
+
+            if (preface != null){
+                frameCodec = new LengthPrefixedFrameCodec(maxFrameLength);
+
+                ProtocolHandshake.reply(mDataOutputStream, acceptPreface(preface));
+            }
+        }else if (frameCodec.isHandshakeRequired()){
+            //Do not wait forever for an endpoint that does not know the handshake
+            mSocket.setSoTimeout((int) TimeUnit.SECONDS.toMillis(timeoutSeconds));
+
+            byte features = compressionEnabled ? ProtocolHandshake.FEATURE_COMPRESSION : 0;
+
+            ProtocolHandshake.Preface reply = ProtocolHandshake.connect(mDataInputStream, mDataOutputStream, new ProtocolHandshake.Preface(features, messageCodec.getId(), maxOpenStreams, maxStreamBytes));
+
+            //Use what the other endpoint accepted
+            messageCodec = MessageCodecs.get(reply.getMessageCodecId());
+            useFeatures(reply.getFeatures());
+            usePeerStreamLimits(reply);
+
+            mSocket.setSoTimeout(0);
         }
 
-        //If a connection problem occurred
-        if ( !syncMessageQueue.isResponded())
-        {
-            SyncResponse syncResponse = new SyncResponse();
-            syncResponse.setSuccess(false);
-            syncResponse.setErrorMessage("Not connection available");
+        //From now on just the writer writes into the socket
+        FrameWriter writer = new FrameWriter(this, frameCodec, mDataOutputStream);
+        applyWatermarks(writer.getFrameScheduler());
+        writer.getFrameScheduler().setStreamLimits(peerMaxOpenStreams, peerMaxStreamBytes);
+        frameWriter = writer;
 
-            syncMessageQueue.getSyncMessage().setSyncResponse(syncResponse);
+        BackgroundProcessHelper.startThread(writer);
+    }
+
+    private void stopFrameWriter(){
+        FrameWriter writer = frameWriter;
+
+        if (writer != null){
+            writer.stop();
+            frameWriter = null;
         }
+    }
 
+    /**
+     * Agree with the connecting endpoint what will be used in this connection.
+     * @param preface What the connecting endpoint proposed.
+     * @return The reply with what was accepted.
+     */
+    ProtocolHandshake.Preface acceptPreface(ProtocolHandshake.Preface preface){
+        messageCodec = MessageCodecs.get(preface.getMessageCodecId());
+
+        byte features = compressionEnabled ? (byte) (preface.getFeatures() & ProtocolHandshake.FEATURE_COMPRESSION) : 0;
+        useFeatures(features);
+        usePeerStreamLimits(preface);
+
+        return new ProtocolHandshake.Preface(features, messageCodec.getId(), maxOpenStreams, maxStreamBytes);
+    }
+
+    private void usePeerStreamLimits(ProtocolHandshake.Preface preface){
+        peerMaxOpenStreams = preface.getMaxOpenStreams();
+        peerMaxStreamBytes = preface.getMaxStreamBytes();
+
+        //The blocking connections create the scheduler after the handshake
+        FrameScheduler scheduler = getFrameScheduler();
+
+        if (scheduler != null)
+            scheduler.setStreamLimits(peerMaxOpenStreams, peerMaxStreamBytes);
+    }
+
+    private void useFeatures(byte features){
+        if ((features & ProtocolHandshake.FEATURE_COMPRESSION) != 0)
+            frameCompressor = new FrameCompressor(compressionThreshold, Deflater.BEST_SPEED, maxFrameLength);
+        else
+            frameCompressor = null;
     }
 
     /**
-     * This is the message listener.
-     * We basically started reading our socket input stream in a thread(background).
+     * @param frame
+     * @return The frame to be written, compressed when it was agreed and it is worth it.
      */
-    protected void startListener(){
+    Frame compressFrame(Frame frame){
+        FrameCompressor compressor = frameCompressor;
 
-        BackgroundProcessHelper.startThread(()->{
+        return compressor == null ? frame : compressor.compress(frame);
+    }
 
-            if (mSocket != null){
-                try{
-                    this.mDataInputStream = new DataInputStream(mSocket.getInputStream());
-                    this.mDataOutputStream = new DataOutputStream(mSocket.getOutputStream());
+    /**
+     * Attach this service to a non blocking connection driven by a {@link NioEventLoop}.
+     * Once attached, the writes are queued to the connection and the frames are pushed to {@link #onFrameReceived(Frame)}
+     * by the event loop, so neither the listener thread nor the connection check thread are needed.
+     * @param nioConnection
+     */
+    void attachNioConnection(NioConnection nioConnection){
+        applyWatermarks(nioConnection.getFrameScheduler());
 
-                    mSocket.setKeepAlive(true);
+        this.nioConnection = nioConnection;
+    }
 
-                    connectionCheckService.start();
+    /**
+     * This method process each frame read from the other endpoint, no matter if it comes from the listener thread
+     * or from an event loop. The fragments of the streams are put together before processing the message.
+     * @param frame
+     * @throws BusinessException
+     * @throws IOException
+     */
+    void onFrameReceived(Frame frame) throws BusinessException, IOException {
 
-                    while (true){
+        if (frame.isCompressed()){
+            FrameCompressor compressor = frameCompressor;
 
-                        String readUTF = readUTF();
+            if (compressor == null)
+                throw new IOException("Got a compressed frame, but the compression was not agreed!");
 
-                        String firstFourthChars = readUTF.substring(0, 4);
+            frame = compressor.decompress(frame, isAuthenticated() ? compressor.getMaxFrameLength() : MAX_UNAUTHENTICATED_FRAME_LENGTH);
+        }
 
-                        //If this result is equal to 1, so then this means a ping was done from the client
-                        if (firstFourthChars.equals(CONNECTION_TEST_REQUEST)){
-                            //Send the answer back to confirm the connection
-                            writeUTF(CONNECTION_TEST_RESPONSE);
+        if (frame.isStream())
+            frame = streamAssembler.append(frame);
 
-                            continue;
-                        }
+        if (frame != null)
+            onPayloadReceived(frame.getData(), frame.getOffset(), frame.getLength());
+    }
 
-                        //We got a successfully ping response
-                        if (firstFourthChars.equals(CONNECTION_TEST_RESPONSE)){
+    /**
+     * This method process each complete payload.
+     * The split messages are kept as a state, so we do not need to block reading the parts.
+     * The payload is decoded from the array where it was read, it is not copied.
+     * @param data
+     * @param offset
+     * @param length
+     * @throws BusinessException
+     * @throws IOException
+     */
+    private void onPayloadReceived(byte[] data, int offset, int length) throws BusinessException, IOException {
 
-                            setResponseToMessageQueue(pingMessage.getId(), new SyncResponse(true));
+        //We are receiving the parts of a split message
+        if (pendingMessageParts > 0){
 
-                            continue;
-                        }
+            //DefaultLogger.logEvent("MessagingService.onFrameReceived", "{MessageNumber: " + (pendingMessageParts) + "}", DefaultLogger.DEBUG_LEVEL);
 
-                        SyncMessage syncMessage = (SyncMessage) JsonUtils.convertFromJsonToObject(readUTF, SyncMessage.class);
+            splitMessageBuffer.write(data, offset, length);
 
-                        String clientSourceId = syncMessage.getSourceId();
+            pendingMessageParts--;
 
-                        //DefaultLogger.logEvent("MessagingService.startListener", "Getting a message. (Message=" + readUTF+")", DefaultLogger.DEBUG_LEVEL);
+            if (pendingMessageParts > 0)
+                return;
 
-                        String validationToken = syncMessage.getValidationToken();
+            MessageBuffer completeMessage = splitMessageBuffer;
+            splitMessageBuffer = null;
 
-                        if ( !isTrustedMessage(clientSourceId, validationToken)){
+            SyncMessage completeSyncMessage = MessageCodecs.GSON.decode(completeMessage.getData(), 0, completeMessage.size());
+            keepForRelay(completeSyncMessage, MessageCodecs.GSON, completeMessage.getData(), 0, completeMessage.size());
 
-                            replyNotTrustedMessage(syncMessage);
+            onMessageReceived(completeSyncMessage);
 
-                            continue;
-                        }
+            return;
+        }
 
-                        if (syncMessage.isSplitMessage()){
+        //If this is the case, so then this means a ping was done from the other endpoint
+        if (isPayload(data, offset, length, CONNECTION_TEST_REQUEST_BYTES)){
+            //Send the answer back to confirm the connection
+            try {
+                writeFrame(CONNECTION_TEST_RESPONSE);
+            } catch (IOException e) {
+                DefaultLogger.logEvent("MessagingService.onFrameReceived(ClientId=" + getmInternalId() + ")", HAGeneralUtils.getStackTrace(e), DefaultLogger.ERROR_LEVEL);
 
-                            StringBuilder builder = new StringBuilder();
+                disconnect(true);
+            }
 
-                            int messagesCount = syncMessage.getMessageParts();
+            return;
+        }
 
-                            for (int count = 0; count < messagesCount; count++){
-                                readUTF = readUTF();
+        //We got a successfully ping response
+        if (isPayload(data, offset, length, CONNECTION_TEST_RESPONSE_BYTES)){
 
-                                //DefaultLogger.logEvent("MessagingService.startListener", "{MessageId: " + syncMessage.getId() +", MessageNumber: " + (count) + ", MessageContent: " + readUTF + "}", DefaultLogger.DEBUG_LEVEL);
+            SyncMessage pingMessage = this.pingMessage;
 
-                                builder.append(readUTF);
-                            }
+            if (pingMessage != null)
+                setResponseToMessageQueue(findMessageQueue(pingMessage.getCorrelationId(), pingMessage.getId()), new SyncResponse(true));
 
-                            syncMessage = (SyncMessage) JsonUtils.convertFromJsonToObject(builder.toString(), SyncMessage.class);
-                        }
+            return;
+        }
 
-                        //Check if the message will be forward
-                        String messageTo = syncMessage.getTo();
-                        if ( messageTo != null && !messageTo.equals("")){
+        MessageCodec codec = getDecodingCodec(data, offset, length);
+        SyncMessage syncMessage = codec.decode(data, offset, length);
 
-                            if (forwardMessageBehavior == null){
-                                SyncResponse response = new SyncResponse();
-                                response.setSuccess(false);
-                                response.setErrorMessage("Forwarding message is not implemented for this client!");
+        String clientSourceId = syncMessage.getSourceId();
 
-                                reply(null, response, syncMessage);
-                                continue;
-                            }
+        //DefaultLogger.logEvent("MessagingService.onFrameReceived", "Getting a message. (MessageId=" + syncMessage.getId() + ")", DefaultLogger.DEBUG_LEVEL);
 
-                            boolean sent = forwardMessageBehavior.forwardMessage(messageTo, syncMessage);
+        String validationToken = syncMessage.getValidationToken();
 
-                            if ( !sent)
-                                continue;
+        if ( !isTrustedMessage(clientSourceId, validationToken)){
 
-                            //To avoid onMessage behavior
-                            syncMessage.setWaitResponse(true);
-                        }
+            replyNotTrustedMessage(syncMessage);
 
-                        String messageId = syncMessage.getId();
+            return;
+        }
 
-                        //Confirm that a previous message sent was delivered
-                        if (syncMessage.isConfirmingDelivery()){
-                            setMessageDelivered(messageId);
-                            continue;
-                        }
+        if (syncMessage.isSplitMessage()){
+            //The next frames are the parts of the message
+            pendingMessageParts = syncMessage.getMessageParts();
+            splitMessageBuffer = new MessageBuffer();
 
-                        if (messageId == null)
-                            messageId = "";
+            return;
+        }
 
-                        setResponseToMessageQueue(messageId, syncMessage.getSyncResponse());
+        keepForRelay(syncMessage, codec, data, offset, length);
 
-                        //Set last transaction date
-                        setTransactionEvent("Message received", LocalDateTime.now());
+        onMessageReceived(syncMessage);
+    }
 
-                        //if ( !syncMessage.isWaitResponse()) {
-                            SyncMessage finalSyncMessage = syncMessage;
-                            BackgroundProcessHelper.startThread(()->{
+    private MessageCodec getDecodingCodec(byte[] data, int offset, int length) {
+        //The legacy endpoints just know JSON, and so do the messages sent before the codec was agreed
+        if (frameCodec.isLengthLimited() || (length > 0 && data[offset] == '{'))
+            return MessageCodecs.GSON;
 
-                                Object[] currentReceivers = receivers.toArray();
+        return messageCodec;
+    }
 
-                                for (Object object: currentReceivers){
-                                    OnMessageBehavior receiver = (OnMessageBehavior) object;
+    /**
+     * The messages sent to another client keep their bytes, the array where they were read is reused.
+     */
+    private void keepForRelay(SyncMessage syncMessage, MessageCodec codec, byte[] data, int offset, int length) {
+        String messageTo = syncMessage.getTo();
 
-                                    receiver.onMessageReceived(finalSyncMessage, isAuthenticated());
-                                }
-                            });
-                        //}
+        if (relayEnabled && messageTo != null && !messageTo.equals("") && !messageTo.equals(getUniqueId()))
+            syncMessage._setReceivedMessage(codec, Arrays.copyOfRange(data, offset, offset + length));
+    }
 
-                        //Notify the sender that a message was received/delivered
-                        if (syncMessage.isSecureDelivery()){
-                            confirmDelivery(syncMessage);
-                        }
-                    }
-                }catch (Exception e){
-                    DefaultLogger.logEvent("MessagingService.startListener(ClientId=" + getmInternalId() + ")", HAGeneralUtils.getStackTrace(e), DefaultLogger.ERROR_LEVEL);
+    private static boolean isPayload(byte[] data, int offset, int length, byte[] expected) {
+        if (length != expected.length)
+            return false;
 
-                    disconnect(true);
+        for (int i = 0; i < length; i++){
+            if (data[offset + i] != expected[i])
+                return false;
+        }
+
+        return true;
+    }
+
+    private void onMessageReceived(SyncMessage syncMessage) {
+
+        //Check if the message will be forward, the messages sent to us were already delivered
+        String messageTo = syncMessage.getTo();
+        if ( messageTo != null && !messageTo.equals("") && !messageTo.equals(getUniqueId())){
+
+            if (forwardMessageBehavior == null){
+                SyncResponse response = new SyncResponse();
+                response.setSuccess(false);
+                response.setErrorMessage("Forwarding message is not implemented for this client!");
+
+                reply(null, response, syncMessage);
+                return;
+            }
+
+            boolean sent = forwardMessageBehavior.forwardMessage(messageTo, syncMessage);
+
+            if ( !sent)
+                return;
+
+            //To avoid onMessage behavior
+            syncMessage.setWaitResponse(true);
+        }
+
+        String messageId = syncMessage.getId();
+
+        //Confirm that a previous message sent was delivered
+        if (syncMessage.isConfirmingDelivery()){
+            setMessageDelivered(messageId);
+            return;
+        }
+
+        //The response is decoded just when someone is waiting for it
+        SyncMessageQueue messageQueue = findMessageQueue(syncMessage.getCorrelationId(), messageId);
+
+        if (messageQueue != null)
+            setResponseToMessageQueue(messageQueue, decodeResponse(syncMessage));
+
+        //Set last transaction date
+        setTransactionEvent("Message received", LocalDateTime.now());
+
+        //Just the receivers registered for the paths of the message
+        OnMessageBehavior[] currentReceivers = messageRouter.getReceivers(syncMessage);
+
+        if (currentReceivers.length > 0){
+            Runnable task = ()->{
+
+                if ( !decodePayloads(syncMessage))
+                    return;
+
+                for (OnMessageBehavior receiver: currentReceivers){
+                    receiver.onMessageReceived(syncMessage, isAuthenticated());
                 }
+            };
+
+            NioConnection connection = nioConnection;
+
+            //The event loop drives other connections, so it stops reading this one instead of waiting for room
+            if (connection != null){
+                if ( !getDispatchExecutor().execute(getDispatchKey(syncMessage), task, connection::resumeReading))
+                    connection.pauseReading();
+            }else {
+                getDispatchExecutor().execute(getDispatchKey(syncMessage), task);
             }
-        });
+        }
+
+        //Notify the sender that a message was received/delivered
+        if (syncMessage.isSecureDelivery()){
+            confirmDelivery(syncMessage);
+        }
     }
 
-    private String readUTF() throws IOException {
-        return mDataInputStream.readUTF();
+    /**
+     * The response is decoded in the thread reading the connection, so a broken one fails just the request waiting for it.
+     * @param syncMessage
+     * @return The response or a failed one if it could not be decoded.
+     */
+    private SyncResponse decodeResponse(SyncMessage syncMessage) {
+        try {
+            return syncMessage.getSyncResponse();
+        } catch (IllegalStateException e) {
+            DefaultLogger.logEvent("MessagingService.decodeResponse(ClientId=" + getmInternalId() + ")", HAGeneralUtils.getStackTrace(e), DefaultLogger.ERROR_LEVEL);
+
+            SyncResponse response = new SyncResponse(false);
+            response.setErrorMessage("The response could not be decoded!");
+
+            return response;
+        }
+    }
+
+    /**
+     * The payloads are decoded in the dispatch task, before the receivers get the message.
+     * When the request can not be decoded the sender gets a failed response, so it does not wait for the timeout.
+     * @param syncMessage
+     * @return false if the message must not be given to the receivers.
+     */
+    private boolean decodePayloads(SyncMessage syncMessage) {
+        try {
+            syncMessage._decodePayloads(null);
+
+            return true;
+        } catch (IOException e) {
+            DefaultLogger.logEvent("MessagingService.decodePayloads(ClientId=" + getmInternalId() + ")", HAGeneralUtils.getStackTrace(e), DefaultLogger.ERROR_LEVEL);
+
+            if ( !syncMessage.hasSyncResponse()){
+                SyncResponse response = new SyncResponse(false);
+                response.setErrorMessage("The request could not be decoded!");
+
+                reply(null, response, syncMessage);
+            }
+
+            return false;
+        }
+    }
+
+    private Frame readFrame() throws IOException {
+        return frameCodec.readFrame(mDataInputStream);
     }
 
     /**
@@ -590,10 +1544,9 @@ public abstract class MessagingService extends Thread{
 
             for (File messageFile: messageFiles){
                 try {
-                    String strMessage = HAFileHelper.getFileContent(messageFile);
-                    strMessage = HAStringUtils.decodeBase64ToString(strMessage);
+                    byte[] jsonMessage = Base64.getDecoder().decode(HAFileHelper.getFileContent(messageFile));
 
-                    SyncMessage message = (SyncMessage) JsonUtils.convertFromJsonToObject(strMessage, SyncMessage.class);
+                    SyncMessage message = MessageCodecs.GSON.decode(jsonMessage, 0, jsonMessage.length);
 
                     sendMessage(message);
 
@@ -612,6 +1565,12 @@ public abstract class MessagingService extends Thread{
 
     public void disconnect(boolean callOnDisconnected){
 
+        //The writer must not report the closed socket as a new disconnection
+        stopFrameWriter();
+
+        //The responses of this connection will never come
+        syncMessageQueueList.forEach(this::setNotConnectedResponse);
+
         if (mSocket != null){
             try {
                 mSocket.close();
@@ -627,7 +1586,13 @@ public abstract class MessagingService extends Thread{
 
     @Override
     public void run(){
-        startListener();
+        try {
+            startListener();
+        } catch (IOException e) {
+            DefaultLogger.logEvent("MessagingService.run(ClientId=" + getmInternalId() + ")", HAGeneralUtils.getStackTrace(e), DefaultLogger.ERROR_LEVEL);
+
+            disconnect(true);
+        }
     }
 
     /**
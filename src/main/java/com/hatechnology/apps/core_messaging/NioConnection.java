@@ -0,0 +1,336 @@
+package com.hatechnology.apps.core_messaging;
+
+import com.hatechnology.apps.core_messaging.framing.Frame;
+import com.hatechnology.apps.core_messaging.framing.FrameCodec;
+import com.hatechnology.apps.core_messaging.framing.LegacyUtfFrameCodec;
+import com.hatechnology.apps.core_messaging.framing.LengthPrefixedFrameCodec;
+import com.hatechnology.apps.core_messaging.framing.ProtocolHandshake;
+import com.hatechnology.apps.exceptions.BusinessException;
+import com.hatechnology.apps.logger.DefaultLogger;
+import com.hatechnology.apps.utilities.HAGeneralUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class represents a non blocking connection that is driven by a {@link NioEventLoop}.
+ * It keeps the buffers for reading and writing the frames, so the cost of each connection is just a few buffers
+ * and not threads. Every method but {@link #write(OutboundStream)} is called from the event loop thread.
+ * The format of the frames is detected from the first bytes the other endpoint sends, see {@link ProtocolHandshake}.
+ * Until then the frames to be written are kept in the scheduler.
+ * The event loop is the only writer. The pending frames are gathered and written with a single call,
+ * so many small messages do not cost a write into the socket each.
+ */
+class NioConnection {
+    private static final int INITIAL_READ_BUFFER_SIZE = 8 * 1024;
+    //A frame of the max length an endpoint that is not authenticated can send, with room for its header
+    private static final int MAX_UNAUTHENTICATED_READ_BUFFER_SIZE = MessagingService.MAX_UNAUTHENTICATED_FRAME_LENGTH + 16;
+    private static final int MAX_GATHERED_FRAMES = 64;
+    private static final int MAX_GATHERED_BYTES = 256 * 1024;
+
+    private final SocketChannel channel;
+    private final MessagingService messagingService;
+    private final NioEventLoop eventLoop;
+    private final FrameScheduler frameScheduler = new FrameScheduler();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private SelectionKey selectionKey;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+    //The encoded frames being written, from writeIndex to writeCount
+    private final ByteBuffer[] writeBuffers = new ByteBuffer[MAX_GATHERED_FRAMES];
+    private int writeIndex;
+    private int writeCount;
+    private FrameCodec frameCodec;
+    private long lastReadMillis = System.currentTimeMillis();
+    private boolean pingSent;
+    private boolean readPaused;
+
+    NioConnection(SocketChannel channel, MessagingService messagingService, NioEventLoop eventLoop) {
+        this.channel = channel;
+        this.messagingService = messagingService;
+        this.eventLoop = eventLoop;
+    }
+
+    FrameScheduler getFrameScheduler() {
+        return frameScheduler;
+    }
+
+    void register(Selector selector) throws IOException {
+        selectionKey = channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    /**
+     * Read what is available in the channel and process every complete frame.
+     */
+    void read() {
+        try {
+            int read = channel.read(readBuffer);
+
+            if (read == -1){
+                messagingService.disconnect(true);
+                return;
+            }
+
+            lastReadMillis = System.currentTimeMillis();
+            pingSent = false;
+
+            readBuffer.flip();
+
+            if (frameCodec == null && !detectFrameCodec()){
+                readBuffer.compact();
+                return;
+            }
+
+            Frame frame;
+
+            while (channel.isOpen() && (frame = frameCodec.decodeFrame(readBuffer)) != null){
+                messagingService.onFrameReceived(frame);
+            }
+
+            ensureReadCapacity();
+        } catch (IOException | BusinessException | RuntimeException e) {
+            fail("NioConnection.read", e);
+        }
+    }
+
+    /**
+     * Check the first bytes of the connection to know the format of the frames.
+     * @return true if the format is known.
+     * @throws IOException
+     */
+    private boolean detectFrameCodec() throws IOException {
+        int format = ProtocolHandshake.detect(readBuffer);
+
+        if (format == ProtocolHandshake.NEED_MORE_BYTES)
+            return false;
+
+        if (format == ProtocolHandshake.LENGTH_PREFIXED_FORMAT){
+            frameCodec = new LengthPrefixedFrameCodec(messagingService.getMaxFrameLength());
+
+            ProtocolHandshake.Preface preface = ProtocolHandshake.readPreface(readBuffer);
+
+            //The reply must be written before any frame
+            writeBuffers[writeCount++] = ProtocolHandshake.createReply(messagingService.acceptPreface(preface));
+        }else {
+            frameCodec = new LegacyUtfFrameCodec();
+        }
+
+        messagingService.setFrameCodec(frameCodec);
+
+        //Now we can write the frames sent before knowing the format
+        scheduleFlush();
+
+        return true;
+    }
+
+    /**
+     * Leave the read buffer ready for the next read, growing it if the pending frame does not fit,
+     * and going back to the initial size once the big frames were processed.
+     * @throws IOException If the pending frame is too big for an endpoint that is not authenticated.
+     */
+    private void ensureReadCapacity() throws IOException {
+        int required = frameCodec.getFrameLength(readBuffer);
+
+        if (required > readBuffer.capacity()){
+            //Enough for the authentication, an endpoint that is not authenticated can not make us keep more
+            if (required > MAX_UNAUTHENTICATED_READ_BUFFER_SIZE && !messagingService.isAuthenticated())
+                throw new IOException("Got a frame of " + required + " bytes from an endpoint that is not authenticated!");
+
+            resizeReadBuffer(required);
+            return;
+        }
+
+        if (readBuffer.capacity() > INITIAL_READ_BUFFER_SIZE && readBuffer.remaining() <= INITIAL_READ_BUFFER_SIZE && required <= INITIAL_READ_BUFFER_SIZE){
+            resizeReadBuffer(INITIAL_READ_BUFFER_SIZE);
+            return;
+        }
+
+        readBuffer.compact();
+    }
+
+    /**
+     * @param capacity Enough for the bytes not processed yet.
+     */
+    private void resizeReadBuffer(int capacity) {
+        ByteBuffer newBuffer = ByteBuffer.allocate(capacity);
+        newBuffer.put(readBuffer);
+        readBuffer = newBuffer;
+    }
+
+    /**
+     * Stop reading the channel, so the other endpoint is slowed down by the socket itself. The frames already read are still processed.
+     */
+    void pauseReading() {
+        if (readPaused || selectionKey == null || !selectionKey.isValid())
+            return;
+
+        readPaused = true;
+        selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    /**
+     * Read the channel again after {@link #pauseReading()}. It can be called from any thread.
+     */
+    void resumeReading() {
+        eventLoop.execute(()->{
+            if ( !readPaused || !selectionKey.isValid())
+                return;
+
+            readPaused = false;
+            //It was not idle, we were not reading
+            lastReadMillis = System.currentTimeMillis();
+
+            selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_READ);
+        });
+    }
+
+    /**
+     * Queue a message to be written by the event loop. It can be called from any thread.
+     * @param stream
+     * @throws IOException
+     */
+    void write(OutboundStream stream) throws IOException {
+        if ( !channel.isOpen())
+            throw new IOException("Connection is closed!");
+
+        frameScheduler.submit(stream);
+
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)){
+            eventLoop.execute(this::flush);
+        }
+    }
+
+    /**
+     * Write the scheduled frames until the channel does not accept more bytes.
+     * If something is left, we wait for the channel to be writable again.
+     */
+    void flush() {
+        if (selectionKey == null || !selectionKey.isValid()){
+            flushScheduled.set(false);
+            frameScheduler.clear();
+            return;
+        }
+
+        //Wait until the format is known
+        if (frameCodec == null){
+            flushScheduled.set(false);
+            return;
+        }
+
+        try {
+            while (true){
+                if (writeIndex == writeCount && !gatherFrames())
+                    break;
+
+                channel.write(writeBuffers, writeIndex, writeCount - writeIndex);
+
+                while (writeIndex < writeCount && !writeBuffers[writeIndex].hasRemaining()){
+                    writeBuffers[writeIndex++] = null;
+                }
+
+                if (writeIndex < writeCount){
+                    selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+
+            selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_WRITE);
+            flushScheduled.set(false);
+
+            //Something could be queued after we finished
+            if ( !frameScheduler.isEmpty())
+                scheduleFlush();
+
+        } catch (IOException | RuntimeException e) {
+            fail("NioConnection.flush", e);
+        }
+    }
+
+    /**
+     * Disconnect just this connection, the event loop keeps driving the other ones.
+     * @param method Where it failed, for the log.
+     * @param e
+     */
+    private void fail(String method, Exception e) {
+        DefaultLogger.logEvent(method + "(ClientId=" + messagingService.getmInternalId() + ")", HAGeneralUtils.getStackTrace(e), DefaultLogger.ERROR_LEVEL);
+
+        messagingService.disconnect(true);
+    }
+
+    /**
+     * Close the channel without going through the messaging service, when even disconnecting it failed.
+     */
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            DefaultLogger.logEvent("NioConnection.close(ClientId=" + messagingService.getmInternalId() + ")", HAGeneralUtils.getStackTrace(e), DefaultLogger.ERROR_LEVEL);
+        }
+    }
+
+    /**
+     * Encode the next scheduled frames, up to a limit, to be written together.
+     * @return false if there is nothing to be written.
+     * @throws IOException
+     */
+    private boolean gatherFrames() throws IOException {
+        writeIndex = 0;
+        writeCount = 0;
+
+        int bytes = 0;
+
+        while (writeCount < MAX_GATHERED_FRAMES && bytes < MAX_GATHERED_BYTES){
+            Frame frame = frameScheduler.poll();
+
+            if (frame == null)
+                break;
+
+            //The compressed frames point to a reused buffer, but the encoded frame is a copy
+            ByteBuffer encodedFrame = frameCodec.encodeFrame(messagingService.compressFrame(frame));
+
+            writeBuffers[writeCount++] = encodedFrame;
+            bytes += encodedFrame.remaining();
+        }
+
+        return writeCount > 0;
+    }
+
+    /**
+     * Ping the other endpoint when nothing was read for a while, and disconnect it if it still does not answer.
+     * @param now
+     * @param millisToPing
+     * @param millisToDisconnect
+     */
+    void checkIdle(long now, long millisToPing, long millisToDisconnect) {
+        //Nothing is read while the receivers catch up
+        if (readPaused)
+            return;
+
+        long idleMillis = now - lastReadMillis;
+
+        if (idleMillis >= millisToPing + millisToDisconnect){
+            DefaultLogger.logEvent("NioConnection.checkIdle", "ClientId=" + messagingService.getmInternalId() + " will be disconnected due that is not answering", DefaultLogger.DEBUG_LEVEL);
+
+            messagingService.disconnect(true);
+            return;
+        }
+
+        //Do not ping until we know the format of the frames
+        if (idleMillis >= millisToPing && !pingSent && frameCodec != null){
+            pingSent = true;
+
+            try {
+                messagingService.sendMessage(SyncMessage.createPingMessage());
+            } catch (BusinessException e) {
+                DefaultLogger.logEvent("NioConnection.checkIdle(ClientId=" + messagingService.getmInternalId() + ")", HAGeneralUtils.getStackTrace(e), DefaultLogger.ERROR_LEVEL);
+            }
+        }
+    }
+}
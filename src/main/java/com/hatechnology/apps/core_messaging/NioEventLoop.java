@@ -0,0 +1,175 @@
+package com.hatechnology.apps.core_messaging;
+
+import com.hatechnology.apps.logger.DefaultLogger;
+import com.hatechnology.apps.utilities.HAGeneralUtils;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class is a single thread that drives many non blocking connections by using a selector.
+ * Every read, write and idle check of its connections happens here, so the number of threads does not grow
+ * with the number of connections.
+ */
+public class NioEventLoop extends Thread {
+    private static final long SELECT_TIMEOUT_MILLIS = 1000;
+    private static final long MILLIS_TO_PING = TimeUnit.SECONDS.toMillis(30);
+    private static final long MILLIS_TO_DISCONNECT = TimeUnit.SECONDS.toMillis(30);
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running;
+    private long lastIdleCheckMillis;
+
+    public NioEventLoop(String name) throws IOException {
+        super(name);
+        this.selector = Selector.open();
+
+        setDaemon(true);
+    }
+
+    /**
+     * Register a connected channel to be driven by this event loop.
+     * From now on the messaging service receives its frames from here.
+     * @param channel
+     * @param messagingService
+     * @throws IOException
+     */
+    public void register(SocketChannel channel, MessagingService messagingService) throws IOException {
+        channel.configureBlocking(false);
+
+        NioConnection connection = new NioConnection(channel, messagingService, this);
+        messagingService.attachNioConnection(connection);
+
+        execute(()->{
+            try {
+                connection.register(selector);
+            } catch (IOException e) {
+                DefaultLogger.logEvent("NioEventLoop.register(ClientId=" + messagingService.getmInternalId() + ")", HAGeneralUtils.getStackTrace(e), DefaultLogger.ERROR_LEVEL);
+
+                messagingService.disconnect(true);
+            }
+        });
+    }
+
+    /**
+     * Run a task inside the event loop thread.
+     * @param task
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        running = true;
+
+        while (running){
+            try {
+                selector.select(SELECT_TIMEOUT_MILLIS);
+
+                runTasks();
+
+                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+
+                while (selectedKeys.hasNext()){
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+
+                    NioConnection connection = (NioConnection) key.attachment();
+
+                    try {
+                        if (key.isReadable())
+                            connection.read();
+
+                        if (key.isValid() && key.isWritable())
+                            connection.flush();
+
+                    } catch (CancelledKeyException ignored) {
+
+                    } catch (RuntimeException e) {
+                        onConnectionFailed(connection, e);
+                    }
+                }
+
+                checkIdleConnections();
+
+            } catch (IOException e) {
+                DefaultLogger.logEvent("NioEventLoop.run(" + getName() + ")", HAGeneralUtils.getStackTrace(e), DefaultLogger.ERROR_LEVEL);
+            }
+        }
+
+        closeSelector();
+    }
+
+    private void runTasks() {
+        Runnable task;
+
+        while ((task = tasks.poll()) != null){
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                DefaultLogger.logEvent("NioEventLoop.runTasks(" + getName() + ")", HAGeneralUtils.getStackTrace(e), DefaultLogger.ERROR_LEVEL);
+            }
+        }
+    }
+
+    private void checkIdleConnections() {
+        long now = System.currentTimeMillis();
+
+        if (now - lastIdleCheckMillis < SELECT_TIMEOUT_MILLIS)
+            return;
+
+        lastIdleCheckMillis = now;
+
+        for (SelectionKey key: selector.keys()){
+            if ( !key.isValid())
+                continue;
+
+            NioConnection connection = (NioConnection) key.attachment();
+
+            try {
+                connection.checkIdle(now, MILLIS_TO_PING, MILLIS_TO_DISCONNECT);
+            } catch (RuntimeException e) {
+                onConnectionFailed(connection, e);
+            }
+        }
+    }
+
+    /**
+     * Something unexpected happened with a connection, so just that one is closed.
+     * The loop must keep running, otherwise the rest of its connections would stop silently.
+     * @param connection
+     * @param e
+     */
+    private void onConnectionFailed(NioConnection connection, RuntimeException e) {
+        DefaultLogger.logEvent("NioEventLoop.run(" + getName() + ")", HAGeneralUtils.getStackTrace(e), DefaultLogger.ERROR_LEVEL);
+
+        connection.close();
+    }
+
+    private void closeSelector() {
+        try {
+            for (SelectionKey key: selector.keys()){
+                key.channel().close();
+            }
+
+            selector.close();
+        } catch (IOException e) {
+            DefaultLogger.logEvent("NioEventLoop.closeSelector(" + getName() + ")", HAGeneralUtils.getStackTrace(e), DefaultLogger.ERROR_LEVEL);
+        }
+    }
+}
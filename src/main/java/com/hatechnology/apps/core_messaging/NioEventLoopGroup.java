@@ -0,0 +1,39 @@
+package com.hatechnology.apps.core_messaging;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of event loops. The connections are spread across them in a round robin way.
+ */
+public class NioEventLoopGroup {
+    private final NioEventLoop[] eventLoops;
+    private final AtomicInteger nextEventLoop = new AtomicInteger();
+
+    public NioEventLoopGroup(int threads, String name) throws IOException {
+        if (threads < 1)
+            threads = 1;
+
+        eventLoops = new NioEventLoop[threads];
+
+        for (int i = 0; i < threads; i++){
+            eventLoops[i] = new NioEventLoop(name + "-" + i);
+            eventLoops[i].start();
+        }
+    }
+
+    public void register(SocketChannel channel, MessagingService messagingService) throws IOException {
+        next().register(channel, messagingService);
+    }
+
+    private NioEventLoop next() {
+        return eventLoops[Math.abs(nextEventLoop.getAndIncrement() % eventLoops.length)];
+    }
+
+    public void shutdown() {
+        for (NioEventLoop eventLoop: eventLoops){
+            eventLoop.shutdown();
+        }
+    }
+}
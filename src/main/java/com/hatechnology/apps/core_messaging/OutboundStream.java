@@ -0,0 +1,92 @@
+package com.hatechnology.apps.core_messaging;
+
+import com.hatechnology.apps.core_messaging.framing.Frame;
+
+/**
+ * A message waiting to be written. Small messages are written as a single frame,
+ * the big ones are written as a stream of fragments so they can be interleaved with other messages.
+ */
+class OutboundStream {
+    private final byte[] payload;
+    private final int streamId;
+    private final int fragmentLength;
+    private boolean droppable;
+    private int offset;
+    private boolean started;
+
+    /**
+     * @param payload The message bytes.
+     * @param streamId The id of the stream, use 0 to write the message as a single frame.
+     * @param fragmentLength The max bytes of each fragment.
+     */
+    OutboundStream(byte[] payload, int streamId, int fragmentLength) {
+        this.payload = payload;
+        this.streamId = streamId;
+        this.fragmentLength = fragmentLength;
+    }
+
+    OutboundStream(byte[] payload) {
+        this(payload, 0, payload.length);
+    }
+
+    /**
+     * @return true if it can be discarded when the connection is not writable, see {@link BackpressurePolicy#DROP_OLDEST}.
+     */
+    boolean isDroppable() {
+        return droppable;
+    }
+
+    void setDroppable(boolean droppable) {
+        this.droppable = droppable;
+    }
+
+    boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * @return The number of bytes of the message.
+     */
+    int getLength() {
+        return payload.length;
+    }
+
+    /**
+     * @return The number of bytes that were not taken yet.
+     */
+    int getRemaining() {
+        return started ? payload.length - offset : payload.length;
+    }
+
+    /**
+     * @return true if it is written as just one frame, so the other endpoint does not keep it open.
+     */
+    boolean isSingleFrame() {
+        return streamId == 0 || payload.length <= fragmentLength;
+    }
+
+    boolean hasNext() {
+        return !started || offset < payload.length;
+    }
+
+    Frame next() {
+        started = true;
+
+        if (streamId == 0){
+            offset = payload.length;
+            return new Frame(payload);
+        }
+
+        int length = Math.min(fragmentLength, payload.length - offset);
+        int fragmentOffset = offset;
+
+        offset += length;
+
+        byte flags = Frame.FLAG_STREAM;
+
+        if (offset == payload.length)
+            flags |= Frame.FLAG_END_STREAM;
+
+        return new Frame(flags, streamId, payload, fragmentOffset, length);
+    }
+}
@@ -0,0 +1,54 @@
+package com.hatechnology.apps.core_messaging;
+
+import com.hatechnology.apps.utilities.JsonUtils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The type of the request expected for each path. The receivers can register their own subclass of {@link SyncRequest}
+ * for their paths, so the request is decoded straight into it when they ask for it.
+ * The paths that are not here are decoded as {@link SyncRequest}.
+ */
+public final class PayloadTypes {
+    private static final Map<String, Class<? extends SyncRequest>> requestTypes = new ConcurrentHashMap<>();
+
+    private PayloadTypes() {
+    }
+
+    public static void register(String path, Class<? extends SyncRequest> requestType) {
+        requestTypes.put(path, requestType);
+    }
+
+    public static void unregister(String path) {
+        requestTypes.remove(path);
+    }
+
+    /**
+     * @param path
+     * @return The type registered for the path or {@link SyncRequest}.
+     */
+    public static Class<? extends SyncRequest> getRequestType(String path) {
+        if (path == null)
+            return SyncRequest.class;
+
+        return requestTypes.getOrDefault(path, SyncRequest.class);
+    }
+
+    /**
+     * @param path
+     * @return An empty request of the type registered for the path.
+     */
+    static SyncRequest newRequest(String path) {
+        Class<? extends SyncRequest> requestType = getRequestType(path);
+
+        if (requestType == SyncRequest.class)
+            return new SyncRequest(path);
+
+        //The subclasses do not need a particular constructor, as it happens with JSON
+        SyncRequest request = (SyncRequest) JsonUtils.convertFromJsonToObject("{}", requestType);
+        request.setPath(path);
+
+        return request;
+    }
+}
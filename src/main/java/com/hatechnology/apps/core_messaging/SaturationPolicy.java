@@ -0,0 +1,30 @@
+package com.hatechnology.apps.core_messaging;
+
+/**
+ * What to do with a received message when every dispatch worker is busy and the dispatch queue is full.
+ * @see DispatchExecutor
+ */
+public enum SaturationPolicy {
+    /**
+     * The receivers are called by the thread that read the message. That thread stops reading while they run,
+     * so the endpoints that send too fast are slowed down by the socket itself.
+     * A receiver that waits for a response in that moment waits until its timeout, since nobody is reading.
+     * The messages that must be handled in order are queued instead, and the thread stops reading until there is room,
+     * see {@link DispatchExecutor#execute(Object, Runnable, Runnable)}.
+     */
+    CALLER_RUNS,
+
+    /**
+     * The message is not given to the receivers. The responses for the requests sent are still delivered,
+     * because they do not go through the dispatch.
+     */
+    DISCARD,
+
+    /**
+     * The message is queued anyway, and the thread that read it stops reading that connection until the queue is half
+     * empty again, so only the endpoint that sends too fast waits and no message is lost.
+     * See {@link DispatchExecutor#execute(Object, Runnable, Runnable)}. The threads that can not stop reading just one
+     * connection wait for room with the ordered messages, and run the other ones themselves, as with {@link #CALLER_RUNS}.
+     */
+    PAUSE_READING
+}
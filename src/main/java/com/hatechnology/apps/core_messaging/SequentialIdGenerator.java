@@ -0,0 +1,53 @@
+package com.hatechnology.apps.core_messaging;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The default ids: a random prefix chosen once for the process, plus a counter.
+ * The prefix has the same 64 random bits a random UUID would need to keep the processes apart,
+ * so after it the counter is enough, and creating an id does not touch the entropy source nor any lock.
+ * The ids are hexadecimal, shorter than a UUID and safe as file names.
+ */
+public class SequentialIdGenerator implements MessageIdGenerator {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final char[] nodePrefix;
+    private final AtomicLong counter = new AtomicLong();
+
+    public SequentialIdGenerator() {
+        this(new SecureRandom().nextLong());
+    }
+
+    /**
+     * @param nodeId It must be different for every process.
+     */
+    public SequentialIdGenerator(long nodeId) {
+        nodePrefix = new char[17];
+
+        for (int i = 15; i >= 0; i--){
+            nodePrefix[i] = HEX_DIGITS[(int) (nodeId & 0xF)];
+            nodeId >>>= 4;
+        }
+
+        nodePrefix[16] = '-';
+    }
+
+    @Override
+    public String newId() {
+        long sequence = counter.incrementAndGet();
+
+        //Just the digits needed, the prefix has a fixed length
+        int digits = Math.max(1, (67 - Long.numberOfLeadingZeros(sequence)) / 4);
+        char[] id = new char[nodePrefix.length + digits];
+
+        System.arraycopy(nodePrefix, 0, id, 0, nodePrefix.length);
+
+        for (int i = id.length - 1; i >= nodePrefix.length; i--){
+            id[i] = HEX_DIGITS[(int) (sequence & 0xF)];
+            sequence >>>= 4;
+        }
+
+        return new String(id);
+    }
+}
@@ -0,0 +1,66 @@
+package com.hatechnology.apps.core_messaging;
+
+import com.hatechnology.apps.core_messaging.framing.Frame;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class puts together the fragments of the streams that are being received.
+ * Each stream is assembled by its own, so the fragments of many streams can arrive interleaved.
+ * The number of streams open at the same time and the bytes kept for all of them are limited,
+ * so the other endpoint can not make us keep more. Going over a limit fails the connection.
+ * It is used just by the thread reading the connection.
+ */
+class StreamAssembler {
+    private final Map<Integer, MessageBuffer> streams = new HashMap<>();
+    private final int maxStreams;
+    private final int maxBufferedBytes;
+    private long bufferedBytes;
+
+    /**
+     * @param maxStreams The max number of streams being assembled at the same time.
+     * @param maxBufferedBytes The max number of bytes kept for all of them, which is also the max length of a message sent as a stream.
+     */
+    StreamAssembler(int maxStreams, int maxBufferedBytes) {
+        this.maxStreams = maxStreams;
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    /**
+     * @param frame A fragment of a stream.
+     * @return The complete message as a single frame if this was the last fragment, otherwise null.
+     * The frame points to the buffer where the fragments were put together, so the message is not copied again.
+     * @throws IOException
+     */
+    Frame append(Frame frame) throws IOException {
+        MessageBuffer stream = streams.get(frame.getStreamId());
+
+        if (stream == null){
+            //Do not keep a buffer for the streams of just one fragment
+            if (frame.isEndOfStream())
+                return frame;
+
+            if (streams.size() >= maxStreams)
+                throw new IOException("There are more than " + maxStreams + " streams open at the same time!");
+
+            stream = new MessageBuffer(frame.getLength() * 2);
+            streams.put(frame.getStreamId(), stream);
+        }
+
+        if (bufferedBytes + frame.getLength() > maxBufferedBytes)
+            throw new IOException("The streams being received are bigger than " + maxBufferedBytes + " bytes!");
+
+        stream.write(frame.getData(), frame.getOffset(), frame.getLength());
+        bufferedBytes += frame.getLength();
+
+        if ( !frame.isEndOfStream())
+            return null;
+
+        streams.remove(frame.getStreamId());
+        bufferedBytes -= stream.size();
+
+        return new Frame((byte) 0, 0, stream.getData(), 0, stream.size());
+    }
+}
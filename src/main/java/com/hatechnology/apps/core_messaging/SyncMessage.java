@@ -1,15 +1,19 @@
 package com.hatechnology.apps.core_messaging;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.lang.reflect.Method;
+import java.time.Instant;
 import java.time.LocalDateTime;
-import java.util.UUID;
+import java.time.ZoneId;
 
 /***
  * Here you must define every class you want share by messages
  * for the server and for the client as well
 ***/
 public class SyncMessage implements Serializable {
+    private static volatile MessageIdGenerator idGenerator = new SequentialIdGenerator();
 
     //Message id is automatically calculated
     private String id;
@@ -17,6 +21,8 @@ public class SyncMessage implements Serializable {
     //Message properties
     private String sourceId;
     private String to;
+    //Set when it was published to the subscribers of a topic
+    private String topic;
     private String validationToken;
     private boolean waitResponse;
     private boolean splitMessage;
@@ -25,14 +31,26 @@ public class SyncMessage implements Serializable {
     private String sessionId;
     private boolean isPingingServer;
     private boolean secureDelivery;
+    //Milliseconds since the epoch, the date time is just kept for the legacy endpoints, which do not know it
+    private long messageTimestamp;
     private LocalDateTime messageDateTime;
     private boolean confirmingDelivery;
+    //Set by the connection that sends the request, the response brings it back
+    private long correlationId;
 
 
     //Messaging main objects
     private SyncRequest syncRequest;
     private SyncResponse syncResponse;
 
+    //The received objects that were not decoded yet
+    private transient volatile EncodedPayload encodedRequest;
+    private transient volatile EncodedPayload encodedResponse;
+
+    //The message as it was received, kept just for the messages to be relayed
+    private transient volatile byte[] receivedData;
+    private transient volatile MessageCodec receivedCodec;
+
     public SyncMessage() {
         _generateId();
     }
@@ -49,6 +67,7 @@ public class SyncMessage implements Serializable {
         this.id = message.getId();
         this.sourceId = message.sourceId;
         this.to = message.to;
+        this.topic = message.topic;
         this.validationToken = message.getValidationToken();
         this.waitResponse = message.waitResponse;
         this.splitMessage = message.splitMessage;
@@ -57,10 +76,16 @@ public class SyncMessage implements Serializable {
         this.sessionId = message.sessionId;
         this.isPingingServer = message.isPingingServer;
         this.secureDelivery = message.secureDelivery;
+        this.messageTimestamp = message.messageTimestamp;
         this.messageDateTime = message.messageDateTime;
         this.confirmingDelivery = message.confirmingDelivery;
-        this.syncResponse = message.getSyncResponse();
-        this.syncRequest = message.getSyncRequest();
+        this.correlationId = message.correlationId;
+
+        //Do not decode the payloads just to copy them
+        this.encodedRequest = message.encodedRequest;
+        this.encodedResponse = message.encodedResponse;
+        this.syncRequest = this.encodedRequest == null ? message.syncRequest : null;
+        this.syncResponse = this.encodedResponse == null ? message.syncResponse : null;
     }
 
     public String getId() {
@@ -83,6 +108,17 @@ public class SyncMessage implements Serializable {
         this.to = to;
     }
 
+    /**
+     * @return The topic it was published to, null if it was not published.
+     */
+    public String getTopic() {
+        return topic;
+    }
+
+    public void setTopic(String topic) {
+        this.topic = topic;
+    }
+
     public String getValidationToken() {
         return validationToken;
     }
@@ -143,24 +179,98 @@ public class SyncMessage implements Serializable {
         this.secureDelivery = secureDelivery;
     }
 
+    /**
+     * @return When it was sent, in the time zone of this endpoint.
+     */
     public LocalDateTime getMessageDateTime() {
+        if (messageDateTime == null && messageTimestamp != 0)
+            return LocalDateTime.ofInstant(Instant.ofEpochMilli(messageTimestamp), ZoneId.systemDefault());
+
         return messageDateTime;
     }
 
+    /**
+     * @return When it was sent, in milliseconds since the epoch, or 0 if it was not sent yet.
+     */
+    public long getMessageTimestamp() {
+        if (messageTimestamp == 0 && messageDateTime != null)
+            return messageDateTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+
+        return messageTimestamp;
+    }
+
+    /**
+     * The request of a received message is decoded the first time it is asked for,
+     * use {@link #getRequestPath()} when you just need to know the path.
+     * The receivers get the messages with their payloads already decoded, see {@link MessagingService}.
+     * @return
+     * @throws IllegalStateException If the request was received but its bytes could not be decoded.
+     */
     public SyncRequest getSyncRequest() {
+        if (encodedRequest != null)
+            decodeRequest();
+
         return syncRequest;
     }
 
-    public void setSyncRequest(SyncRequest syncRequest) {
+    public synchronized void setSyncRequest(SyncRequest syncRequest) {
         this.syncRequest = syncRequest;
+        this.encodedRequest = null;
+        this.receivedData = null;
     }
 
+    /**
+     * @see #getSyncRequest()
+     * @return
+     * @throws IllegalStateException If the response was received but its bytes could not be decoded.
+     */
     public SyncResponse getSyncResponse() {
+        if (encodedResponse != null)
+            decodeResponse();
+
         return syncResponse;
     }
 
-    public void setSyncResponse(SyncResponse syncResponse) {
+    public synchronized void setSyncResponse(SyncResponse syncResponse) {
         this.syncResponse = syncResponse;
+        this.encodedResponse = null;
+        this.receivedData = null;
+    }
+
+    /**
+     * @return The path of the request without decoding it, or null if there is not request.
+     */
+    public String getRequestPath() {
+        EncodedPayload encoded = encodedRequest;
+
+        if (encoded != null)
+            return encoded.getPath();
+
+        SyncRequest request = syncRequest;
+
+        return request != null ? request.getPath() : null;
+    }
+
+    /**
+     * @return The path of the response without decoding it, or null if there is not response.
+     */
+    public String getResponsePath() {
+        EncodedPayload encoded = encodedResponse;
+
+        if (encoded != null)
+            return encoded.getPath();
+
+        SyncResponse response = syncResponse;
+
+        return response != null ? response.getPath() : null;
+    }
+
+    public boolean hasSyncRequest() {
+        return encodedRequest != null || syncRequest != null;
+    }
+
+    public boolean hasSyncResponse() {
+        return encodedResponse != null || syncResponse != null;
     }
 
     protected boolean isConfirmingDelivery() {
@@ -171,17 +281,146 @@ public class SyncMessage implements Serializable {
         this.confirmingDelivery = confirmingDelivery;
     }
 
+    /**
+     * @return The sequence number given to the request by the connection that sent it, 0 if it was not sent as a request.
+     */
+    public long getCorrelationId() {
+        return correlationId;
+    }
+
     public static SyncMessage createPingMessage(){
 
         return new SyncMessage(true);
     }
 
+    /**
+     * Change the way the ids of the new messages are created, see {@link SequentialIdGenerator} for the default.
+     * @param idGenerator
+     */
+    public static void setIdGenerator(MessageIdGenerator idGenerator) {
+        SyncMessage.idGenerator = idGenerator == null ? new SequentialIdGenerator() : idGenerator;
+    }
+
+    public static MessageIdGenerator getIdGenerator() {
+        return idGenerator;
+    }
+
     protected void _generateId(){
-        id = UUID.randomUUID().toString();
+        id = idGenerator.newId();
     }
 
     protected void _setDateTime(){
-        this.messageDateTime = LocalDateTime.now();
+        this.messageTimestamp = System.currentTimeMillis();
+        this.messageDateTime = null;
+    }
+
+    /**
+     * The legacy endpoints read the date time, not the timestamp.
+     */
+    void _setLegacyDateTime(){
+        this.messageDateTime = getMessageDateTime();
+    }
+
+    boolean _hasLegacyDateTime(){
+        return messageDateTime != null || messageTimestamp == 0;
+    }
+
+    //Used by the codecs to restore the message
+    void _setId(String id){
+        this.id = id;
+    }
+
+    void _setTimestamp(long messageTimestamp){
+        this.messageTimestamp = messageTimestamp;
+        this.messageDateTime = null;
+    }
+
+    void _setCorrelationId(long correlationId){
+        this.correlationId = correlationId;
+    }
+
+    void _setPingingServer(boolean isPingingServer){
+        this.isPingingServer = isPingingServer;
+    }
+
+    void _setEncodedRequest(EncodedPayload encodedRequest){
+        this.syncRequest = null;
+        this.encodedRequest = encodedRequest;
+    }
+
+    void _setEncodedResponse(EncodedPayload encodedResponse){
+        this.syncResponse = null;
+        this.encodedResponse = encodedResponse;
+    }
+
+    EncodedPayload _getEncodedRequest(){
+        return encodedRequest;
+    }
+
+    EncodedPayload _getEncodedResponse(){
+        return encodedResponse;
+    }
+
+    /**
+     * Keep the bytes of a received message, so it can be relayed as it is.
+     * They are dropped when the request or the response is changed.
+     * @param codec The codec the bytes were decoded with.
+     * @param data
+     */
+    synchronized void _setReceivedMessage(MessageCodec codec, byte[] data){
+        this.receivedCodec = codec;
+        this.receivedData = data;
+    }
+
+    byte[] _getReceivedData(){
+        return receivedData;
+    }
+
+    MessageCodec _getReceivedCodec(){
+        return receivedCodec;
+    }
+
+    /**
+     * Decode the payloads that were not encoded with the codec, so the message can be written with it.
+     * @param codec The codec whose payloads are kept as they are, or null to decode every payload.
+     * @throws IOException If a payload could not be decoded.
+     */
+    void _decodePayloads(MessageCodec codec) throws IOException {
+        try {
+            EncodedPayload request = encodedRequest;
+
+            if (request != null && request.getCodec() != codec)
+                decodeRequest();
+
+            EncodedPayload response = encodedResponse;
+
+            if (response != null && response.getCodec() != codec)
+                decodeResponse();
+        } catch (IllegalStateException e) {
+            throw new IOException(e.getMessage(), e.getCause());
+        }
+    }
+
+    private synchronized void decodeRequest(){
+        if (encodedRequest != null){
+            syncRequest = (SyncRequest) encodedRequest.decode();
+            encodedRequest = null;
+        }
+    }
+
+    private synchronized void decodeResponse(){
+        if (encodedResponse != null){
+            syncResponse = (SyncResponse) encodedResponse.decode();
+            encodedResponse = null;
+        }
+    }
+
+    private void writeObject(ObjectOutputStream outputStream) throws IOException {
+        //The encoded payloads are not serializable
+        getSyncRequest();
+        getSyncResponse();
+
+        outputStream.defaultWriteObject();
     }
 
     public SyncMessage createCopy() {
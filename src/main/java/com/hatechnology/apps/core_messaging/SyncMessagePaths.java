@@ -6,4 +6,11 @@ public class SyncMessagePaths {
     public static final String SHARE_FILES = "shareFiles";
     public static final String CHAT_MESSAGE = "chatMessage";
     public static final String TEST_CONNECTION = "testConnection";
+    //The topic is the text of the request
+    public static final String SUBSCRIBE = "subscribe";
+    public static final String UNSUBSCRIBE = "unsubscribe";
+    //From the server, the milliseconds the client must wait to reconnect are the text of the request
+    public static final String RETRY_AFTER = "retryAfter";
+    //Between the nodes of a cluster
+    public static final String CLUSTER_SYNC = "clusterSync";
 }
@@ -1,10 +1,16 @@
 package com.hatechnology.apps.core_messaging;
 
+import java.util.concurrent.CompletableFuture;
+
 public class SyncMessageQueue {
     private String id;
+    private long correlationId;
     private SyncMessage syncMessage;
     private boolean sent;
-    private boolean responded;
+    private volatile boolean responded;
+
+    //Completed with the message when the response is set, so nobody has to poll for it
+    private final CompletableFuture<SyncMessage> response = new CompletableFuture<>();
 
     public String getId() {
         return id;
@@ -14,6 +20,14 @@ public class SyncMessageQueue {
         this.id = id;
     }
 
+    public long getCorrelationId() {
+        return correlationId;
+    }
+
+    public void setCorrelationId(long correlationId) {
+        this.correlationId = correlationId;
+    }
+
     public SyncMessage getSyncMessage() {
         return syncMessage;
     }
@@ -36,5 +50,15 @@ public class SyncMessageQueue {
 
     public void setResponded(boolean responded) {
         this.responded = responded;
+
+        if (responded)
+            response.complete(syncMessage);
+    }
+
+    /**
+     * @return Completed with the message when it is responded.
+     */
+    public CompletableFuture<SyncMessage> getResponse() {
+        return response;
     }
 }
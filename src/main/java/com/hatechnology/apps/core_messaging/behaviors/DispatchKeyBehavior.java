@@ -0,0 +1,12 @@
+package com.hatechnology.apps.core_messaging.behaviors;
+
+import com.hatechnology.apps.core_messaging.SyncMessage;
+
+public interface DispatchKeyBehavior {
+
+    /**
+     * @param message
+     * @return The messages with equal keys are handled in order. null to handle this one without order.
+     */
+    Object getDispatchKey(SyncMessage message);
+}
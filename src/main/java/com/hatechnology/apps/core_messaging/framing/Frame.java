@@ -0,0 +1,76 @@
+package com.hatechnology.apps.core_messaging.framing;
+
+import java.util.Arrays;
+
+/**
+ * This is the unit written into the wire.
+ * A frame carries either a complete message or a fragment of a stream. The fragments of different streams
+ * can be interleaved in the same connection, so a big message does not block the small ones.
+ * The frame can point to a slice of a bigger array, so fragmenting a message does not copy it.
+ * When the compression was agreed in the handshake, the payload can be compressed, see {@link FrameCompressor}.
+ */
+public class Frame {
+    public static final byte FLAG_STREAM = 0x01;
+    public static final byte FLAG_END_STREAM = 0x02;
+    public static final byte FLAG_COMPRESSED = 0x04;
+
+    private final byte flags;
+    private final int streamId;
+    private final byte[] data;
+    private final int offset;
+    private final int length;
+
+    public Frame(byte[] payload) {
+        this((byte) 0, 0, payload, 0, payload.length);
+    }
+
+    public Frame(byte flags, int streamId, byte[] data, int offset, int length) {
+        this.flags = flags;
+        this.streamId = streamId;
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public byte getFlags() {
+        return flags;
+    }
+
+    public boolean isStream() {
+        return (flags & FLAG_STREAM) != 0;
+    }
+
+    public boolean isEndOfStream() {
+        return (flags & FLAG_END_STREAM) != 0;
+    }
+
+    public boolean isCompressed() {
+        return (flags & FLAG_COMPRESSED) != 0;
+    }
+
+    public int getStreamId() {
+        return streamId;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return The bytes of this frame, it is just copied when the frame is a slice.
+     */
+    public byte[] getPayload() {
+        if (offset == 0 && length == data.length)
+            return data;
+
+        return Arrays.copyOfRange(data, offset, offset + length);
+    }
+}
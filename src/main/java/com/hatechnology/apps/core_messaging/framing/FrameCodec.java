@@ -0,0 +1,46 @@
+package com.hatechnology.apps.core_messaging.framing;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * This is the way the messages are written into and read from the wire.
+ * Each frame carries the bytes of one message, one part of a split message or one fragment of a stream.
+ * The blocking methods are used by the listener thread and the buffer methods by the event loops.
+ */
+public interface FrameCodec {
+
+    /**
+     * @return true if the frames are limited to 64 KB, so the messages must be split in parts of maxBytesToTransfer.
+     * These codecs do not carry the frame flags, so they can not interleave streams either.
+     */
+    boolean isLengthLimited();
+
+    /**
+     * @return true if the connection must start with the {@link ProtocolHandshake} so the other endpoint knows this format.
+     */
+    boolean isHandshakeRequired();
+
+    void writeFrame(DataOutputStream outputStream, Frame frame) throws IOException;
+
+    Frame readFrame(DataInputStream inputStream) throws IOException;
+
+    ByteBuffer encodeFrame(Frame frame) throws IOException;
+
+    /**
+     * Decode the frame at the buffer position.
+     * @param buffer A buffer ready to be read.
+     * @return The frame or null if it is not complete yet, in that case the buffer is not consumed.
+     * @throws IOException
+     */
+    Frame decodeFrame(ByteBuffer buffer) throws IOException;
+
+    /**
+     * @param buffer A buffer ready to be read.
+     * @return The total bytes of the frame at the buffer position, or 0 if its header is not complete yet.
+     * @throws IOException
+     */
+    int getFrameLength(ByteBuffer buffer) throws IOException;
+}
@@ -0,0 +1,231 @@
+package com.hatechnology.apps.core_messaging.framing;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This class compresses and decompresses the frames of a connection with deflate.
+ * The deflater and the inflater are reset for each frame instead of created, so a connection just has one of each.
+ * Their buffers are reused too, but the ones of the big frames are not kept, so a connection does not hold them after.
+ * The buffer for a decompressed frame grows as the data is inflated, not up to the length the other endpoint declared.
+ * The frames smaller than the threshold, like the pings and the confirmations, are written as they are,
+ * and so are the frames that do not get smaller.
+ * A compressed frame has the {@link Frame#FLAG_COMPRESSED} flag and its payload is [original length: int][deflate data].
+ * The compression is used by one writer thread and the decompression by one reader thread at the same time,
+ * the counters can be read from any thread.
+ */
+public class FrameCompressor {
+    public static final int DEFAULT_THRESHOLD = 1024;
+    private static final int LENGTH_BYTES = 4;
+    private static final int INITIAL_INFLATE_BYTES = 8 * 1024;
+    //The bigger buffers are used for one frame and released
+    private static final int MAX_RETAINED_BUFFER_BYTES = 256 * 1024;
+
+    private final Deflater deflater;
+    private final Inflater inflater = new Inflater();
+    private final int threshold;
+    private final int maxFrameLength;
+    private byte[] deflateBuffer = new byte[0];
+    private byte[] inflateBuffer = new byte[0];
+
+    //Statistics
+    private final AtomicLong compressedFrames = new AtomicLong();
+    private final AtomicLong skippedFrames = new AtomicLong();
+    private final AtomicLong bytesBeforeCompression = new AtomicLong();
+    private final AtomicLong bytesAfterCompression = new AtomicLong();
+    private final AtomicLong compressionNanos = new AtomicLong();
+    private final AtomicLong decompressedFrames = new AtomicLong();
+    private final AtomicLong decompressionNanos = new AtomicLong();
+
+    public FrameCompressor() {
+        this(DEFAULT_THRESHOLD, Deflater.BEST_SPEED, LengthPrefixedFrameCodec.DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * @param threshold The frames with less bytes than this are not compressed.
+     * @param level The deflate level, from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}.
+     * @param maxFrameLength The max number of bytes accepted for a decompressed frame.
+     */
+    public FrameCompressor(int threshold, int level, int maxFrameLength) {
+        this.threshold = threshold;
+        this.maxFrameLength = maxFrameLength;
+        this.deflater = new Deflater(level);
+    }
+
+    public int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    /**
+     * @param frame
+     * @return The compressed frame, or the same frame when it is not worth it.
+     * The compressed frame points to a buffer that is reused, so it must be written before compressing the next one.
+     */
+    public Frame compress(Frame frame) {
+        int length = frame.getLength();
+
+        if (length < threshold || frame.isCompressed()){
+            skippedFrames.incrementAndGet();
+            return frame;
+        }
+
+        long startNanos = System.nanoTime();
+
+        //It is worth it just if the result is smaller than the original
+        byte[] buffer = deflateBuffer;
+
+        if (buffer.length < length){
+            buffer = new byte[length];
+
+            if (length <= MAX_RETAINED_BUFFER_BYTES)
+                deflateBuffer = buffer;
+        }
+
+        deflater.reset();
+        deflater.setInput(frame.getData(), frame.getOffset(), length);
+        deflater.finish();
+
+        int size = LENGTH_BYTES;
+
+        while ( !deflater.finished() && size < length){
+            size += deflater.deflate(buffer, size, length - size);
+        }
+
+        boolean compressed = deflater.finished() && size < length;
+
+        compressionNanos.addAndGet(System.nanoTime() - startNanos);
+
+        if ( !compressed){
+            skippedFrames.incrementAndGet();
+            return frame;
+        }
+
+        buffer[0] = (byte) (length >>> 24);
+        buffer[1] = (byte) (length >>> 16);
+        buffer[2] = (byte) (length >>> 8);
+        buffer[3] = (byte) length;
+
+        compressedFrames.incrementAndGet();
+        bytesBeforeCompression.addAndGet(length);
+        bytesAfterCompression.addAndGet(size);
+
+        return new Frame((byte) (frame.getFlags() | Frame.FLAG_COMPRESSED), frame.getStreamId(), buffer, 0, size);
+    }
+
+    /**
+     * @param frame A frame with the {@link Frame#FLAG_COMPRESSED} flag.
+     * @return The original frame. It points to a buffer that is reused, so it must be processed before decompressing the next one.
+     * @throws IOException If the frame is corrupted.
+     */
+    public Frame decompress(Frame frame) throws IOException {
+        return decompress(frame, maxFrameLength);
+    }
+
+    /**
+     * @param frame A frame with the {@link Frame#FLAG_COMPRESSED} flag.
+     * @param maxLength The max number of bytes accepted for this frame, lower than the max frame length
+     *                  for the endpoints that are not authenticated yet.
+     * @return The original frame. It points to a buffer that is reused, so it must be processed before decompressing the next one.
+     * @throws IOException If the frame is corrupted or bigger than the max length.
+     */
+    public Frame decompress(Frame frame, int maxLength) throws IOException {
+        maxLength = Math.min(maxLength, maxFrameLength);
+
+        if (frame.getLength() < LENGTH_BYTES)
+            throw new IOException("The compressed frame is corrupted!");
+
+        byte[] data = frame.getData();
+        int offset = frame.getOffset();
+
+        int length = ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+
+        if (length < 0 || length > maxLength)
+            throw new IOException("Decompressed frame length " + length + " is not valid. The max length allowed is " + maxLength);
+
+        long startNanos = System.nanoTime();
+
+        byte[] buffer = inflateBuffer;
+
+        inflater.reset();
+        inflater.setInput(data, offset + LENGTH_BYTES, frame.getLength() - LENGTH_BYTES);
+
+        try {
+            int size = 0;
+
+            while ( !inflater.finished()){
+                if (size == buffer.length){
+                    //One more byte than declared, so a corrupted frame that inflates to more bytes is detected
+                    if (size > length)
+                        break;
+
+                    buffer = Arrays.copyOf(buffer, Math.min(Math.max(buffer.length * 2, INITIAL_INFLATE_BYTES), length + 1));
+                }
+
+                int inflated = inflater.inflate(buffer, size, buffer.length - size);
+
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+
+                size += inflated;
+            }
+
+            if (size != length || !inflater.finished())
+                throw new IOException("The compressed frame is corrupted!");
+
+        } catch (DataFormatException e) {
+            throw new IOException("The compressed frame is corrupted!", e);
+        }
+
+        if (buffer.length <= MAX_RETAINED_BUFFER_BYTES)
+            inflateBuffer = buffer;
+
+        decompressedFrames.incrementAndGet();
+        decompressionNanos.addAndGet(System.nanoTime() - startNanos);
+
+        return new Frame((byte) (frame.getFlags() & ~Frame.FLAG_COMPRESSED), frame.getStreamId(), buffer, 0, length);
+    }
+
+    public long getCompressedFrames() {
+        return compressedFrames.get();
+    }
+
+    public long getSkippedFrames() {
+        return skippedFrames.get();
+    }
+
+    public long getBytesBeforeCompression() {
+        return bytesBeforeCompression.get();
+    }
+
+    public long getBytesAfterCompression() {
+        return bytesAfterCompression.get();
+    }
+
+    /**
+     * @return The compressed size divided by the original size of the compressed frames, 1 if nothing was compressed.
+     */
+    public double getCompressionRatio() {
+        long before = bytesBeforeCompression.get();
+
+        return before == 0 ? 1 : (double) bytesAfterCompression.get() / before;
+    }
+
+    /**
+     * @return The time spent compressing, including the frames that did not get smaller.
+     */
+    public long getCompressionNanos() {
+        return compressionNanos.get();
+    }
+
+    public long getDecompressedFrames() {
+        return decompressedFrames.get();
+    }
+
+    public long getDecompressionNanos() {
+        return decompressionNanos.get();
+    }
+}
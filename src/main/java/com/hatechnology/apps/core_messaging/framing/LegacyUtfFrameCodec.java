@@ -0,0 +1,119 @@
+package com.hatechnology.apps.core_messaging.framing;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The original format, which is the one of {@link DataOutputStream#writeUTF(String)}.
+ * It is kept to be compatible with the endpoints that do not know the length prefixed format.
+ */
+public class LegacyUtfFrameCodec implements FrameCodec {
+    private static final int HEADER_BYTES = 2;
+
+    @Override
+    public boolean isLengthLimited() {
+        return true;
+    }
+
+    @Override
+    public boolean isHandshakeRequired() {
+        return false;
+    }
+
+    @Override
+    public void writeFrame(DataOutputStream outputStream, Frame frame) throws IOException {
+        outputStream.writeUTF(toString(frame));
+    }
+
+    @Override
+    public Frame readFrame(DataInputStream inputStream) throws IOException {
+        return new Frame(inputStream.readUTF().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public ByteBuffer encodeFrame(Frame frame) throws IOException {
+        ByteArrayOutputStream encodedFrame = new ByteArrayOutputStream(frame.getLength() + HEADER_BYTES);
+        new DataOutputStream(encodedFrame).writeUTF(toString(frame));
+
+        return ByteBuffer.wrap(encodedFrame.toByteArray());
+    }
+
+    @Override
+    public Frame decodeFrame(ByteBuffer buffer) throws IOException {
+        int frameLength = getFrameLength(buffer);
+
+        if (frameLength == 0 || buffer.remaining() < frameLength)
+            return null;
+
+        byte[] frame = new byte[frameLength];
+        buffer.get(frame);
+
+        return new Frame(DataInputStream.readUTF(new DataInputStream(new ByteArrayInputStream(frame))).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public int getFrameLength(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_BYTES)
+            return 0;
+
+        return HEADER_BYTES + (buffer.getShort(buffer.position()) & 0xFFFF);
+    }
+
+    /**
+     * Cut a text in parts that can each be written as a frame. They are measured as {@link DataOutputStream#writeUTF(String)}
+     * writes them, where a NUL takes 2 bytes and a supplementary character takes 6, instead of their length in UTF-8.
+     * The two chars of a supplementary character always go to the same part.
+     * @param text
+     * @param maxFrameBytes The max bytes of the text of each frame, 65535 at most.
+     * @return Just the text if it fits in one frame.
+     */
+    public static List<String> split(String text, int maxFrameBytes) {
+        List<String> parts = new ArrayList<>();
+        int begin = 0;
+        int partBytes = 0;
+
+        for (int i = 0; i < text.length();){
+            char c = text.charAt(i);
+            int chars = 1;
+            int bytes;
+
+            if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))){
+                chars = 2;
+                bytes = 6;
+            }else if (c >= 0x0001 && c <= 0x007F){
+                bytes = 1;
+            }else if (c <= 0x07FF){
+                bytes = 2;
+            }else {
+                bytes = 3;
+            }
+
+            if (partBytes + bytes > maxFrameBytes && i > begin){
+                parts.add(text.substring(begin, i));
+                begin = i;
+                partBytes = 0;
+            }
+
+            partBytes += bytes;
+            i += chars;
+        }
+
+        parts.add(begin == 0 ? text : text.substring(begin));
+
+        return parts;
+    }
+
+    private String toString(Frame frame) throws IOException {
+        if (frame.isStream())
+            throw new IOException("The legacy format does not support streams!");
+
+        return new String(frame.getData(), frame.getOffset(), frame.getLength(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,125 @@
+package com.hatechnology.apps.core_messaging.framing;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Each frame is a 32 bits length, a byte of flags and the raw bytes of the message.
+ * This way a message of any size is written in just one frame, so we do not need to split it.
+ * When the frame is a fragment of a stream({@link Frame#FLAG_STREAM}) the flags are followed by the 32 bits stream id.
+ * [length: int][flags: byte][streamId: int, just for streams][payload]
+ */
+public class LengthPrefixedFrameCodec implements FrameCodec {
+    //The big messages are written as streams of small frames, so a frame never needs to be bigger than this
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 4 * 1024 * 1024;
+    private static final int HEADER_BYTES = 5;
+    private static final int STREAM_HEADER_BYTES = HEADER_BYTES + 4;
+
+    private final int maxFrameLength;
+
+    public LengthPrefixedFrameCodec() {
+        this(DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * @param maxFrameLength The max number of bytes accepted for a frame, bigger frames are considered as corrupted.
+     */
+    public LengthPrefixedFrameCodec(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    public int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    @Override
+    public boolean isLengthLimited() {
+        return false;
+    }
+
+    @Override
+    public boolean isHandshakeRequired() {
+        return true;
+    }
+
+    @Override
+    public void writeFrame(DataOutputStream outputStream, Frame frame) throws IOException {
+        checkLength(frame.getLength());
+
+        outputStream.writeInt(frame.getLength());
+        outputStream.writeByte(frame.getFlags());
+
+        if (frame.isStream())
+            outputStream.writeInt(frame.getStreamId());
+
+        outputStream.write(frame.getData(), frame.getOffset(), frame.getLength());
+    }
+
+    @Override
+    public Frame readFrame(DataInputStream inputStream) throws IOException {
+        int length = inputStream.readInt();
+        byte flags = inputStream.readByte();
+        int streamId = (flags & Frame.FLAG_STREAM) != 0 ? inputStream.readInt() : 0;
+
+        checkLength(length);
+
+        byte[] payload = new byte[length];
+        inputStream.readFully(payload);
+
+        return new Frame(flags, streamId, payload, 0, length);
+    }
+
+    @Override
+    public ByteBuffer encodeFrame(Frame frame) throws IOException {
+        checkLength(frame.getLength());
+
+        ByteBuffer encodedFrame = ByteBuffer.allocate((frame.isStream() ? STREAM_HEADER_BYTES : HEADER_BYTES) + frame.getLength());
+        encodedFrame.putInt(frame.getLength());
+        encodedFrame.put(frame.getFlags());
+
+        if (frame.isStream())
+            encodedFrame.putInt(frame.getStreamId());
+
+        encodedFrame.put(frame.getData(), frame.getOffset(), frame.getLength());
+        encodedFrame.flip();
+
+        return encodedFrame;
+    }
+
+    @Override
+    public Frame decodeFrame(ByteBuffer buffer) throws IOException {
+        int frameLength = getFrameLength(buffer);
+
+        if (frameLength == 0 || buffer.remaining() < frameLength)
+            return null;
+
+        int length = buffer.getInt();
+        byte flags = buffer.get();
+        int streamId = (flags & Frame.FLAG_STREAM) != 0 ? buffer.getInt() : 0;
+
+        byte[] payload = new byte[length];
+        buffer.get(payload);
+
+        return new Frame(flags, streamId, payload, 0, length);
+    }
+
+    @Override
+    public int getFrameLength(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER_BYTES)
+            return 0;
+
+        int length = buffer.getInt(buffer.position());
+        checkLength(length);
+
+        boolean stream = (buffer.get(buffer.position() + 4) & Frame.FLAG_STREAM) != 0;
+
+        return (stream ? STREAM_HEADER_BYTES : HEADER_BYTES) + length;
+    }
+
+    private void checkLength(int length) throws IOException {
+        if (length < 0 || length > maxFrameLength)
+            throw new IOException("Frame length " + length + " is not valid. The max length allowed is " + maxFrameLength);
+    }
+}
@@ -0,0 +1,185 @@
+package com.hatechnology.apps.core_messaging.framing;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * This is the first thing the connecting endpoint writes when it uses a format other than the legacy one.
+ * The preface starts with an empty writeUTF frame(two zero bytes), which a legacy endpoint never sends as its first frame,
+ * so the accepting endpoint can detect the format by itself and keep working with the legacy clients.
+ * Preface: [0x00 0x00][magic: int][version: byte][features: byte][message codec: byte][max open streams: int][max stream bytes: int]
+ * Reply:   [magic: int][version: byte][features: byte][message codec: byte][max open streams: int][max stream bytes: int]
+ * The connecting endpoint proposes its message codec and the reply says the one that will be used.
+ * Each endpoint also tells how many streams and how many bytes of them it assembles at the same time,
+ * so the other one does not send more than that.
+ * The features are a bitset, the connecting endpoint proposes the ones it wants and the reply has the ones
+ * both endpoints will use. The endpoints that do not know a feature just leave it out of the reply.
+ */
+public final class ProtocolHandshake {
+    public static final int MAGIC = 0x48414D53;
+    public static final byte VERSION = 2;
+    public static final int PREFACE_BYTES = 17;
+    public static final int REPLY_BYTES = 15;
+
+    //Features
+    public static final byte FEATURE_COMPRESSION = 0x01;
+
+    //Detection results
+    public static final int NEED_MORE_BYTES = 0;
+    public static final int LEGACY_FORMAT = 1;
+    public static final int LENGTH_PREFIXED_FORMAT = 2;
+
+    private static final int MARKER_BYTES = 2;
+
+    private ProtocolHandshake() {
+    }
+
+    /**
+     * Write the preface and wait for the reply of the accepting endpoint.
+     * @param inputStream
+     * @param outputStream
+     * @param preface
+     * @return The reply of the other endpoint.
+     * @throws IOException
+     */
+    public static Preface connect(DataInputStream inputStream, DataOutputStream outputStream, Preface preface) throws IOException {
+        outputStream.writeShort(0);
+        outputStream.writeInt(MAGIC);
+        outputStream.writeByte(VERSION);
+        outputStream.writeByte(preface.getFeatures());
+        outputStream.writeByte(preface.getMessageCodecId());
+        outputStream.writeInt(preface.getMaxOpenStreams());
+        outputStream.writeInt(preface.getMaxStreamBytes());
+        outputStream.flush();
+
+        checkMagic(inputStream.readInt());
+        inputStream.readByte();
+
+        return checkLimits(new Preface(inputStream.readByte(), inputStream.readByte(), inputStream.readInt(), inputStream.readInt()));
+    }
+
+    /**
+     * Detect the format used by the connecting endpoint and read its preface.
+     * The input stream must support mark, so the first frame of a legacy endpoint is not lost.
+     * @param inputStream
+     * @return The preface or null if the connecting endpoint uses the legacy format.
+     * @throws IOException
+     */
+    public static Preface accept(DataInputStream inputStream) throws IOException {
+        inputStream.mark(MARKER_BYTES);
+
+        if (inputStream.readUnsignedShort() != 0){
+            inputStream.reset();
+            return null;
+        }
+
+        checkMagic(inputStream.readInt());
+        inputStream.readByte();
+
+        return checkLimits(new Preface(inputStream.readByte(), inputStream.readByte(), inputStream.readInt(), inputStream.readInt()));
+    }
+
+    public static void reply(DataOutputStream outputStream, Preface reply) throws IOException {
+        outputStream.write(createReply(reply).array());
+        outputStream.flush();
+    }
+
+    /**
+     * Detect the format used by the connecting endpoint from the bytes read so far.
+     * @param buffer A buffer ready to be read.
+     * @return The format or {@link #NEED_MORE_BYTES}.
+     * @throws IOException
+     */
+    public static int detect(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < MARKER_BYTES)
+            return NEED_MORE_BYTES;
+
+        if (buffer.getShort(buffer.position()) != 0)
+            return LEGACY_FORMAT;
+
+        if (buffer.remaining() < PREFACE_BYTES)
+            return NEED_MORE_BYTES;
+
+        checkMagic(buffer.getInt(buffer.position() + MARKER_BYTES));
+
+        return LENGTH_PREFIXED_FORMAT;
+    }
+
+    /**
+     * Consume the preface once {@link #detect(ByteBuffer)} found it.
+     * @param buffer
+     * @return
+     * @throws IOException
+     */
+    public static Preface readPreface(ByteBuffer buffer) throws IOException {
+        buffer.position(buffer.position() + MARKER_BYTES + 5);
+
+        return checkLimits(new Preface(buffer.get(), buffer.get(), buffer.getInt(), buffer.getInt()));
+    }
+
+    public static ByteBuffer createReply(Preface reply) {
+        ByteBuffer buffer = ByteBuffer.allocate(REPLY_BYTES);
+        buffer.putInt(MAGIC);
+        buffer.put(VERSION);
+        buffer.put(reply.getFeatures());
+        buffer.put(reply.getMessageCodecId());
+        buffer.putInt(reply.getMaxOpenStreams());
+        buffer.putInt(reply.getMaxStreamBytes());
+        buffer.flip();
+
+        return buffer;
+    }
+
+    private static void checkMagic(int magic) throws IOException {
+        if (magic != MAGIC)
+            throw new IOException("The other endpoint is not using a known messaging protocol!");
+    }
+
+    private static Preface checkLimits(Preface preface) throws IOException {
+        if (preface.getMaxOpenStreams() < 1 || preface.getMaxStreamBytes() < 1)
+            throw new IOException("The other endpoint does not accept any stream!");
+
+        return preface;
+    }
+
+    /**
+     * What an endpoint proposes or accepts in the handshake.
+     */
+    public static class Preface {
+        private final byte features;
+        private final byte messageCodecId;
+        private final int maxOpenStreams;
+        private final int maxStreamBytes;
+
+        /**
+         * @param features
+         * @param messageCodecId
+         * @param maxOpenStreams The max number of streams this endpoint receives at the same time.
+         * @param maxStreamBytes The max number of bytes this endpoint keeps for all of them.
+         */
+        public Preface(byte features, byte messageCodecId, int maxOpenStreams, int maxStreamBytes) {
+            this.features = features;
+            this.messageCodecId = messageCodecId;
+            this.maxOpenStreams = maxOpenStreams;
+            this.maxStreamBytes = maxStreamBytes;
+        }
+
+        public byte getFeatures() {
+            return features;
+        }
+
+        public byte getMessageCodecId() {
+            return messageCodecId;
+        }
+
+        public int getMaxOpenStreams() {
+            return maxOpenStreams;
+        }
+
+        public int getMaxStreamBytes() {
+            return maxStreamBytes;
+        }
+    }
+}
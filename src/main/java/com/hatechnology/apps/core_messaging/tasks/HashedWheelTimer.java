@@ -0,0 +1,355 @@
+package com.hatechnology.apps.core_messaging.tasks;
+
+import com.hatechnology.apps.logger.DefaultLogger;
+import com.hatechnology.apps.utilities.HAGeneralUtils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One thread for all the timeouts of the process: the deadlines of the requests, the clean up of the connections
+ * that never authenticate and the tasks scheduled with {@link ScheduledTimerTask}.
+ * The time is split in ticks and the timeouts are put in the slot of the wheel for their tick, so scheduling and
+ * cancelling is just adding to a queue, no matter how many timeouts are pending. Each tick the thread runs the
+ * timeouts of its slot. The price is that a timeout can run up to one tick late.
+ * The tasks run in the thread of the timer, so they must be short. The long ones should start their own thread.
+ */
+public class HashedWheelTimer {
+    public static final long DEFAULT_TICK_MILLIS = 100;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    //Do not hold the thread forever if a lot of timeouts are scheduled at once
+    private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+    private static final int INIT = 0;
+    private static final int STARTED = 1;
+    private static final int STOPPED = 2;
+
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private static volatile HashedWheelTimer sharedTimer;
+
+    private final String name;
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pendingTimeouts = new AtomicLong();
+    private final AtomicInteger state = new AtomicInteger(INIT);
+    private final CountDownLatch started = new CountDownLatch(1);
+    private volatile long startTime;
+    private Thread workerThread;
+    private long tick;
+
+    public HashedWheelTimer(String name) {
+        this(name, DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param name The name of the thread.
+     * @param tickDuration How precise the timeouts are.
+     * @param unit
+     * @param wheelSize The number of slots, it is rounded up to a power of two.
+     *                  The timeouts further than a turn of the wheel just wait for more turns.
+     */
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+        if (tickDuration <= 0 || wheelSize <= 0)
+            throw new IllegalArgumentException("The tick duration and the wheel size must be greater than zero!");
+
+        this.name = name;
+        this.tickNanos = unit.toNanos(tickDuration);
+
+        int size = 1;
+
+        while (size < wheelSize){
+            size <<= 1;
+        }
+
+        wheel = new Bucket[size];
+        mask = size - 1;
+
+        for (int i = 0; i < size; i++){
+            wheel[i] = new Bucket();
+        }
+    }
+
+    /**
+     * The timer shared by the whole library. It is started with the first timeout and never stopped.
+     * @return
+     */
+    public static HashedWheelTimer getShared() {
+        HashedWheelTimer timer = sharedTimer;
+
+        if (timer == null){
+            synchronized (HashedWheelTimer.class){
+                if (sharedTimer == null)
+                    sharedTimer = new HashedWheelTimer("HashedWheelTimer");
+
+                timer = sharedTimer;
+            }
+        }
+
+        return timer;
+    }
+
+    /**
+     * Run the task once after the delay.
+     * @param task
+     * @param delay
+     * @param unit
+     * @return The handle to cancel it.
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        if (task == null)
+            throw new IllegalArgumentException("The task can not be null!");
+
+        start();
+
+        long deadline = System.nanoTime() + unit.toNanos(Math.max(delay, 0)) - startTime;
+
+        Timeout timeout = new Timeout(task, deadline);
+
+        pendingTimeouts.incrementAndGet();
+        newTimeouts.add(timeout);
+
+        return timeout;
+    }
+
+    /**
+     * @return The number of timeouts that did not run nor were cancelled yet.
+     */
+    public long getPendingTimeouts() {
+        return pendingTimeouts.get();
+    }
+
+    /**
+     * Stop the thread. The pending timeouts never run.
+     */
+    public void stop() {
+        if (state.getAndSet(STOPPED) == STARTED)
+            workerThread.interrupt();
+    }
+
+    private void start() {
+        switch (state.get()){
+            case INIT:
+                if (state.compareAndSet(INIT, STARTED)){
+                    workerThread = new Thread(this::run, name);
+                    workerThread.setDaemon(true);
+                    workerThread.start();
+                }
+                break;
+            case STARTED:
+                break;
+            default:
+                throw new IllegalStateException("The timer " + name + " was stopped!");
+        }
+
+        //The deadlines are relative to the moment the thread started
+        while (startTime == 0){
+            try {
+                started.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    private void run() {
+        long now = System.nanoTime();
+
+        //Zero means not started
+        startTime = now == 0 ? 1 : now;
+        started.countDown();
+
+        while (state.get() == STARTED){
+            long deadline = waitForNextTick();
+
+            if (deadline < 0)
+                break;
+
+            removeCancelledTimeouts();
+            transferNewTimeouts();
+
+            wheel[(int) (tick & mask)].expireTimeouts(deadline);
+            tick++;
+        }
+    }
+
+    /**
+     * @return The time of the tick, relative to the start time, or -1 if it was stopped.
+     */
+    private long waitForNextTick() {
+        long deadline = tickNanos * (tick + 1);
+
+        while (true){
+            long currentTime = System.nanoTime() - startTime;
+            long sleepMillis = (deadline - currentTime + 999999) / 1000000;
+
+            if (sleepMillis <= 0)
+                return currentTime;
+
+            try {
+                Thread.sleep(sleepMillis);
+            } catch (InterruptedException e) {
+                if (state.get() == STOPPED)
+                    return -1;
+            }
+        }
+    }
+
+    private void transferNewTimeouts() {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++){
+            Timeout timeout = newTimeouts.poll();
+
+            if (timeout == null)
+                return;
+
+            //Already counted when it was cancelled
+            if (timeout.isCancelled())
+                continue;
+
+            long ticks = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (ticks - tick) / wheel.length;
+
+            //The ones already late go to the current slot
+            wheel[(int) (Math.max(ticks, tick) & mask)].add(timeout);
+        }
+    }
+
+    private void removeCancelledTimeouts() {
+        Timeout timeout;
+
+        while ((timeout = cancelledTimeouts.poll()) != null){
+            if (timeout.bucket != null)
+                timeout.bucket.remove(timeout);
+
+            pendingTimeouts.decrementAndGet();
+        }
+    }
+
+    /**
+     * The handle of a scheduled task.
+     */
+    public class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger timeoutState = new AtomicInteger(PENDING);
+
+        //Just the thread of the timer uses these
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout next;
+        private Timeout previous;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return false if it already ran or was cancelled.
+         */
+        public boolean cancel() {
+            if ( !timeoutState.compareAndSet(PENDING, CANCELLED))
+                return false;
+
+            //It is taken out of the wheel in the next tick
+            cancelledTimeouts.add(this);
+
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return timeoutState.get() == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return timeoutState.get() == EXPIRED;
+        }
+
+        private void expire() {
+            if ( !timeoutState.compareAndSet(PENDING, EXPIRED))
+                return;
+
+            pendingTimeouts.decrementAndGet();
+
+            try {
+                task.run();
+            } catch (Throwable e) {
+                DefaultLogger.logEvent("HashedWheelTimer.expire(Name=" + name + ")", HAGeneralUtils.getStackTrace(e), DefaultLogger.ERROR_LEVEL);
+            }
+        }
+    }
+
+    /**
+     * The timeouts of one slot of the wheel, as a linked list so they are removed without searching.
+     */
+    private static class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+
+            if (head == null){
+                head = tail = timeout;
+            }else {
+                tail.next = timeout;
+                timeout.previous = tail;
+                tail = timeout;
+            }
+        }
+
+        void expireTimeouts(long deadline) {
+            Timeout timeout = head;
+
+            while (timeout != null){
+                Timeout next = timeout.next;
+
+                if (timeout.isCancelled()){
+                    remove(timeout);
+                }else if (timeout.remainingRounds <= 0){
+                    //It can not be early, unless the clock moved back
+                    if (timeout.deadline <= deadline){
+                        remove(timeout);
+                        timeout.expire();
+                    }
+                }else {
+                    timeout.remainingRounds--;
+                }
+
+                timeout = next;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.bucket != this)
+                return;
+
+            if (timeout.previous != null)
+                timeout.previous.next = timeout.next;
+
+            if (timeout.next != null)
+                timeout.next.previous = timeout.previous;
+
+            if (timeout == head)
+                head = timeout.next;
+
+            if (timeout == tail)
+                tail = timeout.previous;
+
+            timeout.next = null;
+            timeout.previous = null;
+            timeout.bucket = null;
+        }
+    }
+}
@@ -1,16 +1,13 @@
 package com.hatechnology.apps.core_messaging.tasks;
 
-import java.sql.Date;
+import java.time.Duration;
 import java.time.LocalDateTime;
-import java.time.ZoneId;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 public class ScheduledTimerTask {
     private final String id;
-    private Timer timer;
-    private TimerTask timerTask;
+    private HashedWheelTimer.Timeout timeout;
 
     public ScheduledTimerTask() {
         id = UUID.randomUUID().toString();
@@ -20,30 +17,28 @@ public class ScheduledTimerTask {
         return id;
     }
 
+    /**
+     * The command runs in the thread of the shared {@link HashedWheelTimer}, instead of a new timer thread for each task.
+     * @param command
+     * @param at
+     */
     public void schedule(Runnable command, LocalDateTime at){
         stop();
 
-        timerTask = new TimerTask() {
-            @Override
-            public void run() {
-                command.run();
-            }
-        };
+        long delayMillis = Duration.between(LocalDateTime.now(), at).toMillis();
 
-        timer = new Timer();
-        timer.schedule(timerTask, Date.from(at.atZone(ZoneId.systemDefault()).toInstant()));
+        timeout = HashedWheelTimer.getShared().newTimeout(command, delayMillis, TimeUnit.MILLISECONDS);
 
         System.out.println("Timer task with id " + getId() + " has been scheduled for " + at.toString() + "!");
     }
 
     public void stop(){
-        if (timerTask != null && timer != null){
+        if (timeout != null){
 
             System.out.println("Timer task with id " + getId() + " has been stopped!");
 
-            timerTask.cancel();
-            timer.cancel();
-            timer.purge();
+            timeout.cancel();
+            timeout = null;
         }
     }
 }
@@ -21,19 +21,18 @@ public class ChatReceiver implements OnMessageBehavior {
 
     @Override
     public void onMessageReceived(SyncMessage message, boolean isAuthenticated) {
-        SyncRequest request = message.getSyncRequest();
+        //Just the chat messages are decoded
+        if (SyncMessagePaths.CHAT_MESSAGE.equals(message.getRequestPath())) {
+            SyncRequest request = message.getSyncRequest();
 
-        if (request != null) {
-            if (request.getPath().equals(SyncMessagePaths.CHAT_MESSAGE)) {
-                System.out.println("Message(From=" + message.getSourceId() + ")\n" + request.getText());
+            System.out.println("Message(From=" + message.getSourceId() + ")\n" + request.getText());
 
-                if (request.getFiles() != null) {
+            if (request.getFiles() != null) {
 
-                    try {
-                        downloadFiles(request.getFiles());
-                    } catch (IOException | BusinessException e) {
-                        e.printStackTrace();
-                    }
+                try {
+                    downloadFiles(request.getFiles());
+                } catch (IOException | BusinessException e) {
+                    e.printStackTrace();
                 }
             }
         }
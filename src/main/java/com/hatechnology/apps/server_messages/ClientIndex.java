@@ -0,0 +1,69 @@
+package com.hatechnology.apps.server_messages;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The connected clients by one of their values, the unique id or a property, so they are found without going through all of them.
+ * Each client is under one value at most, and it remembers it, so it is taken out even if the value changed in the meantime.
+ */
+class ClientIndex {
+    private final ConcurrentHashMap<Object, Set<SocketClientService>> clients = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<SocketClientService, Object> values = new ConcurrentHashMap<>();
+
+    /**
+     * Put the client under the value, instead of the one it had.
+     * @param client
+     * @param value null to just take it out.
+     */
+    void put(SocketClientService client, Object value) {
+        if (value == null){
+            remove(client);
+            return;
+        }
+
+        Object oldValue = values.put(client, value);
+
+        if (value.equals(oldValue))
+            return;
+
+        if (oldValue != null)
+            removeFromValue(client, oldValue);
+
+        //Atomic with the removal of an empty set
+        clients.compute(value, (key, set) -> {
+            if (set == null)
+                set = ConcurrentHashMap.newKeySet();
+
+            set.add(client);
+
+            return set;
+        });
+    }
+
+    void remove(SocketClientService client) {
+        Object value = values.remove(client);
+
+        if (value != null)
+            removeFromValue(client, value);
+    }
+
+    private void removeFromValue(SocketClientService client, Object value) {
+        clients.computeIfPresent(value, (key, set) -> {
+            set.remove(client);
+
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    /**
+     * @param value
+     * @return The clients under the value. It is not a copy, it changes as they come and go.
+     */
+    Set<SocketClientService> get(Object value) {
+        Set<SocketClientService> set = value != null ? clients.get(value) : null;
+
+        return set != null ? Collections.unmodifiableSet(set) : Collections.emptySet();
+    }
+}
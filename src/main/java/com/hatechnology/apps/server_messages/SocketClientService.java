@@ -4,12 +4,18 @@ package com.hatechnology.apps.server_messages;
 import com.hatechnology.apps.exceptions.BusinessException;
 import com.hatechnology.apps.logger.DefaultLogger;
 import com.hatechnology.apps.core_messaging.*;
+import com.hatechnology.apps.core_messaging.tasks.HashedWheelTimer;
+import com.hatechnology.apps.server_messages.cluster.ClusterNode;
 import com.hatechnology.apps.server_messages.impl.AuthenticatorReceiver;
+import com.hatechnology.apps.server_messages.impl.SubscriptionReceiver;
 
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.time.LocalDateTime;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * This implementation should be done at the server side.
@@ -19,11 +25,14 @@ import java.util.Map;
  */
 public class SocketClientService extends MessagingService {
 
-    private Map properties = new HashMap();
+    private Map<String, Object> properties = new HashMap<>();
     private SocketServerService socketServerService;
     private boolean behaviorsAreSet;
-    private boolean authenticated;
+    private volatile boolean authenticated;
+    //Disconnects the client if it is not authenticated in time, see SocketServerService
+    private volatile HashedWheelTimer.Timeout authenticationTimeout;
     private SocketClientSession clientSession;
+    private volatile boolean clusterLink;
 
     /**
      *
@@ -38,17 +47,76 @@ public class SocketClientService extends MessagingService {
     public SocketClientService(Socket mSocket, int maxBytesToTransfer, int timeoutSeconds, boolean secureMessages, String secureTokenPath, SocketServerService socketServerService) throws BusinessException {
         super(mSocket, maxBytesToTransfer, timeoutSeconds, secureMessages, secureTokenPath);
 
+        this.socketServerService = socketServerService;
+
         setBehaviors();
+    }
 
-        this.socketServerService = socketServerService;
+    /**
+     *
+     * @param socketChannel The client channel accepted by the server. It must be registered to an event loop to exchange the messages.
+     * @param maxBytesToTransfer The max numbers of bytes to be transferred when sending data through the socket output stream.
+     * @param timeoutSeconds The amount of seconds to timeout when sending messages that waits for answers.
+     * @param secureMessages If true, each message will be checked for integrity.
+     * @param secureTokenPath The token to validate the messages.
+     * @param socketServerService The instance for the server that manages the connections.
+     * @throws BusinessException
+     */
+    public SocketClientService(SocketChannel socketChannel, int maxBytesToTransfer, int timeoutSeconds, boolean secureMessages, String secureTokenPath, SocketServerService socketServerService) throws BusinessException {
+        this(socketChannel.socket(), maxBytesToTransfer, timeoutSeconds, secureMessages, secureTokenPath, socketServerService);
     }
 
-    public Map getProperties() {
+    public Map<String, Object> getProperties() {
         return properties;
     }
 
-    public void setProperties(Map properties) {
+    public void setProperties(Map<String, Object> properties) {
+        Map<String, Object> oldProperties = this.properties;
+
         this.properties = properties;
+
+        if (socketServerService == null)
+            return;
+
+        //The indexes of the server are updated for the keys of both
+        Set<String> keys = new HashSet<>();
+
+        if (oldProperties != null)
+            keys.addAll(oldProperties.keySet());
+
+        if (this.properties != null)
+            keys.addAll(this.properties.keySet());
+
+        for (String key: keys){
+            socketServerService.onPropertyChanged(this, key);
+        }
+    }
+
+    /**
+     * Set a property, updating the indexes of the server.
+     * @param key
+     * @param value null to remove it.
+     */
+    public void setProperty(String key, Object value) {
+        if (properties == null)
+            properties = new HashMap<>();
+
+        if (value == null)
+            properties.remove(key);
+        else
+            properties.put(key, value);
+
+        if (socketServerService != null)
+            socketServerService.onPropertyChanged(this, key);
+    }
+
+    @Override
+    public void setUniqueId(String uniqueId) {
+        super.setUniqueId(uniqueId);
+
+        //The messages for this client are found by it
+        if (socketServerService != null)
+            socketServerService.onUniqueIdChanged(this);
     }
 
     public SocketClientSession getClientSession() {
@@ -61,8 +129,65 @@ public class SocketClientService extends MessagingService {
         onSessionStarted();
     }
 
+    /**
+     * Ask the client to wait before reconnecting, it is going to be disconnected or the server is too busy.
+     * The clients add their own random delay, see {@link com.hatechnology.apps.client_messages.ReconnectPolicy}.
+     * Nobody waits for a response and the clients do not send one.
+     * @param retryAfterMillis
+     */
+    public void sendRetryAfter(long retryAfterMillis) {
+        SyncRequest request = new SyncRequest(SyncMessagePaths.RETRY_AFTER);
+        request.setText(String.valueOf(retryAfterMillis));
+
+        SyncMessage message = new SyncMessage();
+        message.setSyncRequest(request);
+        //Just a hint, the connection is usually closed before any answer could come
+        message.setWaitResponse(false);
+        message.setSecureDelivery(false);
+
+        try {
+            sendMessage(message);
+        } catch (BusinessException e) {
+            DefaultLogger.logEvent("SocketClientService.sendRetryAfter(ClientId=" + getmInternalId() + ")", e.getMessage(), DefaultLogger.ERROR_LEVEL);
+        }
+    }
+
     public void setAuthenticated(boolean authenticated) {
         this.authenticated = authenticated;
+
+        if (authenticated)
+            cancelAuthenticationTimeout();
+    }
+
+    void setAuthenticationTimeout(HashedWheelTimer.Timeout authenticationTimeout) {
+        this.authenticationTimeout = authenticationTimeout;
+
+        //It could have been authenticated before
+        if (authenticated)
+            cancelAuthenticationTimeout();
+    }
+
+    /**
+     * The timer holds the client until the timeout is cancelled, so it is cancelled as soon as it is not needed.
+     */
+    void cancelAuthenticationTimeout() {
+        HashedWheelTimer.Timeout timeout = authenticationTimeout;
+        authenticationTimeout = null;
+
+        if (timeout != null)
+            timeout.cancel();
+    }
+
+    /**
+     * @return true if this is the connection of another node of the cluster, which was checked with the cluster token.
+     * Its messages are trusted as coming from that node, see {@link ClusterNode}.
+     */
+    public boolean isClusterLink() {
+        return clusterLink;
+    }
+
+    public void setClusterLink(boolean clusterLink) {
+        this.clusterLink = clusterLink;
     }
 
     private void setBehaviors(){
@@ -71,12 +196,18 @@ public class SocketClientService extends MessagingService {
             return;
 
         //Add the authenticator receiver per default
-        addReceiver(new AuthenticatorReceiver(this));
+        addReceiver(new AuthenticatorReceiver(this, socketServerService));
+
+        //And the one for the subscriptions to the topics
+        SubscriptionReceiver subscriptionReceiver = new SubscriptionReceiver(this, socketServerService);
+        addRequestReceiver(SyncMessagePaths.SUBSCRIBE, subscriptionReceiver);
+        addRequestReceiver(SyncMessagePaths.UNSUBSCRIBE, subscriptionReceiver);
 
         //Set forward message behavior
         setForwardMessageBehavior((clientIdTo, message) -> {
             try {
-                return socketServerService.sendMessageToClient(clientIdTo, message);
+                //The messages from another node of the cluster are not sent to a third one
+                return socketServerService.sendMessageToClient(clientIdTo, message, isAuthenticated() && isClusterLink());
             } catch (BusinessException e) {
                 SyncResponse response = new SyncResponse(false);
                 response.setErrorMessage(e.getMessage());
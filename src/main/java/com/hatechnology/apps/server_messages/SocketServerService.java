@@ -1,21 +1,37 @@
 package com.hatechnology.apps.server_messages;
 
+import com.hatechnology.apps.core_messaging.BackpressurePolicy;
+import com.hatechnology.apps.core_messaging.BroadcastMessage;
+import com.hatechnology.apps.core_messaging.DispatchExecutor;
+import com.hatechnology.apps.core_messaging.DispatchOrder;
+import com.hatechnology.apps.core_messaging.MessageRouter;
+import com.hatechnology.apps.core_messaging.MessagingService;
+import com.hatechnology.apps.core_messaging.NioEventLoopGroup;
+import com.hatechnology.apps.core_messaging.SaturationPolicy;
 import com.hatechnology.apps.core_messaging.behaviors.OnMessageBehavior;
+import com.hatechnology.apps.core_messaging.framing.LengthPrefixedFrameCodec;
+import com.hatechnology.apps.core_messaging.tasks.HashedWheelTimer;
 import com.hatechnology.apps.exceptions.BusinessException;
 import com.hatechnology.apps.logger.DefaultLogger;
 import com.hatechnology.apps.core_messaging.SyncMessage;
+import com.hatechnology.apps.core_messaging.SyncMessagePaths;
+import com.hatechnology.apps.server_messages.cluster.ClusterNode;
 import com.hatechnology.apps.server_messages.impl.AuthenticatorReceiver;
-import com.hatechnology.apps.utilities.BackgroundProcessHelper;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.time.LocalDateTime;
-import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This is the implementation that will manage the connections.
+ * The connections are accepted by this thread and then driven by a small set of event loops(non blocking sockets),
+ * so the number of threads stays the same no matter how many clients are connected.
  * @author Yenfry Herrera Feliz
  */
 public class SocketServerService extends Thread {
@@ -25,13 +41,44 @@ public class SocketServerService extends Thread {
     private static final int DEFAULT_MAX_BYTES_TO_TRANSFER = 16400;
     private static final int DEFAULT_TIMEOUT_SECONDS = 60;
     private static final boolean DEFAULT_SECURE_MESSAGES = false;
+    private static final int DEFAULT_EVENT_LOOP_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final boolean DEFAULT_COMPRESSION_ENABLED = true;
+    private static final boolean DEFAULT_RELAY_ENABLED = true;
+    private static final BackpressurePolicy DEFAULT_BACKPRESSURE_POLICY = BackpressurePolicy.FAIL;
+    private static final int DEFAULT_DISPATCH_WORKERS = DispatchExecutor.DEFAULT_WORKERS;
+    private static final int DEFAULT_DISPATCH_QUEUE_CAPACITY = DispatchExecutor.DEFAULT_QUEUE_CAPACITY;
+    //The event loops drive every client, they must not run the receivers, and the control messages must not be lost
+    private static final SaturationPolicy DEFAULT_SATURATION_POLICY = SaturationPolicy.PAUSE_READING;
+    private static final DispatchOrder DEFAULT_DISPATCH_ORDER = DispatchOrder.NONE;
+    private static final int DEFAULT_MAX_TOPICS_PER_CLIENT = 1000;
 
     //Settings
     private static final int SOCKET_CLIENT_CLEAN_UP_MINUTES = 5;
+    //How long the hints to reconnect later are given to be written
+    private static final long RETRY_AFTER_FLUSH_MILLIS = 1000;
 
     //Client list
-    private HashMap<String, SocketClientService> mSocketClients = new HashMap<>();
-    private ServerSocket mServerSocket;
+    private final Map<String, SocketClientService> mSocketClients = new ConcurrentHashMap<>();
+    //The same clients, by their unique id and by the indexed properties
+    private final ClientIndex clientsByUniqueId = new ClientIndex();
+    private final Map<String, ClientIndex> clientsByProperty = new ConcurrentHashMap<>();
+    private ServerSocketChannel mServerSocketChannel;
+    private NioEventLoopGroup eventLoopGroup;
+    private int eventLoopThreads = DEFAULT_EVENT_LOOP_THREADS;
+    private boolean compressionEnabled = DEFAULT_COMPRESSION_ENABLED;
+    private boolean relayEnabled = DEFAULT_RELAY_ENABLED;
+    private int maxFrameLength = LengthPrefixedFrameCodec.DEFAULT_MAX_FRAME_LENGTH;
+    private int maxOpenStreams = MessagingService.DEFAULT_MAX_OPEN_STREAMS;
+    private int maxStreamBytes = MessagingService.DEFAULT_MAX_STREAM_BYTES;
+    private BackpressurePolicy backpressurePolicy = DEFAULT_BACKPRESSURE_POLICY;
+    private volatile DispatchExecutor dispatchExecutor;
+    private int dispatchWorkers = DEFAULT_DISPATCH_WORKERS;
+    private int dispatchQueueCapacity = DEFAULT_DISPATCH_QUEUE_CAPACITY;
+    private SaturationPolicy saturationPolicy = DEFAULT_SATURATION_POLICY;
+    private DispatchOrder dispatchOrder = DEFAULT_DISPATCH_ORDER;
+    private int maxTopicsPerClient = DEFAULT_MAX_TOPICS_PER_CLIENT;
+    private final TopicRegistry topicRegistry = new TopicRegistry();
+    private volatile ClusterNode clusterNode;
     private int port;
     private int maxNumberOfConnections;
     private int maxBytesToTransfer;
@@ -39,6 +86,7 @@ public class SocketServerService extends Thread {
     private boolean acceptConnections;
     private int timeoutSeconds;
     private List<OnMessageBehavior> receivers;
+    private final MessageRouter messageRouter = new MessageRouter();
 
     public SocketServerService(int port){
         this(port, DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_BYTES_TO_TRANSFER, DEFAULT_TIMEOUT_SECONDS, DEFAULT_SECURE_MESSAGES, "", null);
@@ -57,15 +105,390 @@ public class SocketServerService extends Thread {
         this.receivers = receivers;
     }
 
-    public HashMap<String, SocketClientService> getmSocketClients() {
+    /**
+     * The receivers added here get the messages of every client for the path. It applies to the new connections.
+     * @param path
+     * @param receiver
+     */
+    public void addReceiver(String path, OnMessageBehavior receiver) {
+        messageRouter.addReceiver(path, receiver);
+    }
+
+    public void addRequestReceiver(String path, OnMessageBehavior receiver) {
+        messageRouter.addRequestReceiver(path, receiver);
+    }
+
+    public void addResponseReceiver(String path, OnMessageBehavior receiver) {
+        messageRouter.addResponseReceiver(path, receiver);
+    }
+
+    public Map<String, SocketClientService> getmSocketClients() {
         return mSocketClients;
     }
 
+    /**
+     * Index the clients by a property, so {@link #removeSocketClientByProp(Map, String)} and {@link #getSocketClientsByProp(String, Object)}
+     * do not go through all of them. The property must be changed with {@link SocketClientService#setProperty(String, Object)}
+     * or {@link SocketClientService#setProperties(Map)}, the changes made straight to the map are not seen by the index.
+     * @param key
+     */
+    public void addIndexedProperty(String key) {
+        if (key == null)
+            throw new IllegalArgumentException("The key can not be null!");
+
+        ClientIndex index = new ClientIndex();
+
+        if (clientsByProperty.putIfAbsent(key, index) != null)
+            return;
+
+        //The clients already connected
+        for (SocketClientService socketClientService: mSocketClients.values()){
+            onPropertyChanged(socketClientService, key);
+        }
+    }
+
+    public Set<String> getIndexedProperties() {
+        return Collections.unmodifiableSet(clientsByProperty.keySet());
+    }
+
+    /**
+     * @param uniqueId
+     * @return The client connected with the id, null if there is none.
+     */
+    public SocketClientService getSocketClientByUniqueId(String uniqueId) {
+        for (SocketClientService socketClientService: clientsByUniqueId.get(uniqueId)){
+            //It could have just changed
+            if (uniqueId.equals(socketClientService.getUniqueId()) && mSocketClients.containsKey(socketClientService.getmInternalId()))
+                return socketClientService;
+        }
+
+        return null;
+    }
+
+    /**
+     * @param key
+     * @param value
+     * @return The clients with the value for the property. Just for the indexed properties, see {@link #addIndexedProperty(String)}.
+     */
+    public List<SocketClientService> getSocketClientsByProp(String key, Object value) {
+        ClientIndex index = clientsByProperty.get(key);
+
+        if (index == null)
+            throw new IllegalArgumentException("The property " + key + " is not indexed!");
+
+        List<SocketClientService> socketClients = new ArrayList<>();
+
+        for (SocketClientService socketClientService: index.get(value)){
+            Map<String, Object> properties = socketClientService.getProperties();
+
+            if (properties != null && value.equals(properties.get(key)))
+                socketClients.add(socketClientService);
+        }
+
+        return socketClients;
+    }
+
+    void onUniqueIdChanged(SocketClientService socketClientService) {
+        clientsByUniqueId.put(socketClientService, socketClientService.getUniqueId());
+
+        //It was removed while the id was being set
+        if ( !mSocketClients.containsKey(socketClientService.getmInternalId())){
+            clientsByUniqueId.remove(socketClientService);
+            return;
+        }
+
+        ClusterNode node = clusterNode;
+
+        if (node != null)
+            node.onClientAdded(socketClientService);
+    }
+
+    void onPropertyChanged(SocketClientService socketClientService, String key) {
+        ClientIndex index = clientsByProperty.get(key);
+
+        if (index == null)
+            return;
+
+        Map<String, Object> properties = socketClientService.getProperties();
+
+        index.put(socketClientService, properties != null ? properties.get(key) : null);
+
+        if ( !mSocketClients.containsKey(socketClientService.getmInternalId()))
+            index.remove(socketClientService);
+    }
+
+    public int getEventLoopThreads() {
+        return eventLoopThreads;
+    }
+
+    /**
+     * The number of threads that will drive all the connections. It must be set before starting the server.
+     * @param eventLoopThreads
+     */
+    public void setEventLoopThreads(int eventLoopThreads) {
+        this.eventLoopThreads = eventLoopThreads;
+    }
+
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    /**
+     * Accept the compression of the frames when a client proposes it. It applies to the new connections.
+     * @param compressionEnabled
+     */
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    public boolean isRelayEnabled() {
+        return relayEnabled;
+    }
+
+    /**
+     * Write the messages forwarded from one client to another as they were received, instead of encoding them again.
+     * It applies to the new connections.
+     * @param relayEnabled
+     */
+    public void setRelayEnabled(boolean relayEnabled) {
+        this.relayEnabled = relayEnabled;
+    }
+
+    public int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    /**
+     * The max number of bytes of a frame read from a client, see {@link MessagingService#setMaxFrameLength(int)}.
+     * It applies to the new connections.
+     * @param maxFrameLength
+     */
+    public void setMaxFrameLength(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    public int getMaxOpenStreams() {
+        return maxOpenStreams;
+    }
+
+    public int getMaxStreamBytes() {
+        return maxStreamBytes;
+    }
+
+    /**
+     * Limit the big messages being received from each client, see {@link MessagingService#setStreamLimits(int, int)}.
+     * It applies to the new connections.
+     * @param maxOpenStreams
+     * @param maxStreamBytes
+     */
+    public void setStreamLimits(int maxOpenStreams, int maxStreamBytes) {
+        this.maxOpenStreams = maxOpenStreams;
+        this.maxStreamBytes = maxStreamBytes;
+    }
+
+    public BackpressurePolicy getBackpressurePolicy() {
+        return backpressurePolicy;
+    }
+
+    /**
+     * What to do with the messages for a client that does not read them as fast as they are sent.
+     * Per default they fail, so a stalled client does not hold the threads of the senders. It applies to the new connections.
+     * @param backpressurePolicy
+     */
+    public void setBackpressurePolicy(BackpressurePolicy backpressurePolicy) {
+        this.backpressurePolicy = backpressurePolicy;
+    }
+
+    public int getDispatchWorkers() {
+        return dispatchWorkers;
+    }
+
+    /**
+     * The max number of receivers running at the same time, for all the clients. It must be set before starting the server.
+     * @param dispatchWorkers
+     */
+    public void setDispatchWorkers(int dispatchWorkers) {
+        this.dispatchWorkers = dispatchWorkers;
+    }
+
+    public int getDispatchQueueCapacity() {
+        return dispatchQueueCapacity;
+    }
+
+    /**
+     * The max number of received messages waiting for a worker. It must be set before starting the server.
+     * @param dispatchQueueCapacity
+     */
+    public void setDispatchQueueCapacity(int dispatchQueueCapacity) {
+        this.dispatchQueueCapacity = dispatchQueueCapacity;
+    }
+
+    public SaturationPolicy getSaturationPolicy() {
+        return saturationPolicy;
+    }
+
+    /**
+     * What to do with the received messages when the workers and the queue are full.
+     * Per default they are queued anyway and the client that sent them is not read until there is room, see
+     * {@link SaturationPolicy#PAUSE_READING}. With {@link SaturationPolicy#CALLER_RUNS} the event loop runs them and
+     * every client it drives waits meanwhile, except the messages handled in order, see {@link #setDispatchOrder(DispatchOrder)}.
+     * {@link SaturationPolicy#DISCARD} drops them, the authentications and the subscriptions too.
+     * @param saturationPolicy
+     */
+    public void setSaturationPolicy(SaturationPolicy saturationPolicy) {
+        this.saturationPolicy = saturationPolicy;
+
+        DispatchExecutor executor = dispatchExecutor;
+
+        if (executor != null)
+            executor.setSaturationPolicy(saturationPolicy);
+    }
+
+    public DispatchOrder getDispatchOrder() {
+        return dispatchOrder;
+    }
+
+    /**
+     * Which messages of the clients must reach the receivers in order. It applies to the new connections.
+     * @param dispatchOrder
+     */
+    public void setDispatchOrder(DispatchOrder dispatchOrder) {
+        this.dispatchOrder = dispatchOrder;
+    }
+
+    public int getMaxTopicsPerClient() {
+        return maxTopicsPerClient;
+    }
+
+    /**
+     * @param maxTopicsPerClient The max number of topics a client can be subscribed to at the same time.
+     */
+    public void setMaxTopicsPerClient(int maxTopicsPerClient) {
+        this.maxTopicsPerClient = maxTopicsPerClient;
+    }
+
+    /**
+     * Subscribe the client to the topic, so it gets the messages published to it.
+     * The clients subscribe themselves with the {@link SyncMessagePaths#SUBSCRIBE} requests.
+     * @param socketClientService
+     * @param topic
+     * @throws BusinessException If the client reached the max number of topics.
+     */
+    public void subscribe(SocketClientService socketClientService, String topic) throws BusinessException {
+        if (topic == null || topic.equals(""))
+            throw new BusinessException("Please specify a valid topic");
+
+        if ( !topicRegistry.subscribe(topic, socketClientService, maxTopicsPerClient))
+            throw new BusinessException("The client can not be subscribed to more than " + maxTopicsPerClient + " topics");
+
+        //It was removed while subscribing
+        if ( !mSocketClients.containsKey(socketClientService.getmInternalId()))
+            topicRegistry.remove(socketClientService);
+
+        onTopicsChanged();
+    }
+
+    public void unsubscribe(SocketClientService socketClientService, String topic) {
+        topicRegistry.unsubscribe(topic, socketClientService);
+
+        onTopicsChanged();
+    }
+
+    private void onTopicsChanged() {
+        ClusterNode node = clusterNode;
+
+        if (node != null)
+            node.onTopicsChanged();
+    }
+
+    /**
+     * @param topic
+     * @return The clients subscribed to the topic right now.
+     */
+    public Set<SocketClientService> getSubscribers(String topic) {
+        return topicRegistry.getSubscribers(topic);
+    }
+
+    /**
+     * @return The topics with at least one subscriber.
+     */
+    public Set<String> getTopics() {
+        return topicRegistry.getTopics();
+    }
+
+    public Set<String> getTopics(SocketClientService socketClientService) {
+        return topicRegistry.getTopics(socketClientService);
+    }
+
+    /**
+     * Send the message to the subscribers of the topic. It is encoded once for all of them, as {@link #sendMessageToAllClients(SyncMessage)} does,
+     * and they get it with the topic set, see {@link SyncMessage#getTopic()}.
+     * In a cluster it is also sent once to each node with subscribers to the topic, see {@link ClusterNode#publish(String, SyncMessage)}.
+     * @param topic
+     * @param syncMessage
+     * @return The number of subscribers of this node it was sent to.
+     */
+    public int publish(String topic, SyncMessage syncMessage) {
+        return publish(topic, syncMessage, false);
+    }
+
+    /**
+     * @param topic
+     * @param syncMessage
+     * @param fromCluster True when it was published in another node, which already sent it to the rest of the nodes.
+     * @return
+     */
+    int publish(String topic, SyncMessage syncMessage, boolean fromCluster) {
+        ClusterNode node = clusterNode;
+
+        if (node != null && !fromCluster)
+            node.publish(topic, syncMessage);
+
+        Set<SocketClientService> subscribers = topicRegistry.getSubscribers(topic);
+
+        if (subscribers.isEmpty())
+            return 0;
+
+        //The address of the other node is not for the subscribers
+        BroadcastMessage broadcast = fromCluster ? new BroadcastMessage(syncMessage, topic, null) : new BroadcastMessage(syncMessage, topic);
+        int sent = 0;
+
+        for (SocketClientService socketClientService: subscribers){
+            sendBroadcast(socketClientService, broadcast);
+            sent++;
+        }
+
+        return sent;
+    }
+
+    public ClusterNode getClusterNode() {
+        return clusterNode;
+    }
+
+    /**
+     * The node of the cluster this server is part of, see {@link ClusterNode#start()}, which sets it.
+     * @param clusterNode
+     */
+    public void setClusterNode(ClusterNode clusterNode) {
+        this.clusterNode = clusterNode;
+    }
+
+    /**
+     * @return The executor that calls the receivers for all the clients, with its counters. It is null until the server starts.
+     */
+    public DispatchExecutor getDispatchExecutor() {
+        return dispatchExecutor;
+    }
+
     private void startServer(){
 
         try {
             //Start server socket
-            mServerSocket = new ServerSocket(port, maxNumberOfConnections);
+            mServerSocketChannel = ServerSocketChannel.open();
+            mServerSocketChannel.bind(new InetSocketAddress(port), maxNumberOfConnections);
+
+            eventLoopGroup = new NioEventLoopGroup(eventLoopThreads, "SocketServerService-" + port);
+            dispatchExecutor = new DispatchExecutor("SocketServerService-" + port, dispatchWorkers, dispatchQueueCapacity, saturationPolicy);
 
             DefaultLogger.logEvent("SocketServerService.startServer", "Starting server at port " + port + " on " + LocalDateTime.now().toString(), DefaultLogger.DEBUG_LEVEL);
 
@@ -73,11 +496,19 @@ public class SocketServerService extends Thread {
             acceptConnections = true;
             while (acceptConnections){
 
-                Socket socket = mServerSocket.accept();
+                SocketChannel socketChannel = mServerSocketChannel.accept();
+                socketChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
 
-                DefaultLogger.logEvent("SocketServerService.startServer", "Accepting connection from " + socket.toString(), DefaultLogger.DEBUG_LEVEL);
+                DefaultLogger.logEvent("SocketServerService.startServer", "Accepting connection from " + socketChannel.toString(), DefaultLogger.DEBUG_LEVEL);
 
-                SocketClientService socketClientService = new SocketClientService(socket, maxBytesToTransfer, timeoutSeconds,false, secureTokenPath, this);
+                SocketClientService socketClientService = new SocketClientService(socketChannel, maxBytesToTransfer, timeoutSeconds,false, secureTokenPath, this);
+                socketClientService.setCompressionEnabled(compressionEnabled);
+                socketClientService.setRelayEnabled(relayEnabled);
+                socketClientService.setMaxFrameLength(maxFrameLength);
+                socketClientService.setStreamLimits(maxOpenStreams, maxStreamBytes);
+                socketClientService.setBackpressurePolicy(backpressurePolicy);
+                socketClientService.setDispatchExecutor(dispatchExecutor);
+                socketClientService.setDispatchOrder(dispatchOrder);
 
                 //Add the custom receivers
                 if (receivers != null) {
@@ -86,16 +517,21 @@ public class SocketServerService extends Thread {
                     }
                 }
 
-                socketClientService.start();
+                //And the ones for some paths
+                socketClientService.getMessageRouter().addRoutes(messageRouter);
 
                 mSocketClients.put(socketClientService.getmInternalId(), socketClientService);
 
+                eventLoopGroup.register(socketChannel, socketClientService);
+
                 //Schedule a task to check if in 5 minutes the client gets authenticated,
                 // if not will be disconnected
                 scheduleServerClientsCleanUp(socketClientService);
             }
         } catch (IOException | BusinessException e) {
-            e.printStackTrace();
+            //Closing the server channel is the way to stop accepting
+            if (acceptConnections)
+                e.printStackTrace();
         }
     }
 
@@ -112,13 +548,44 @@ public class SocketServerService extends Thread {
                 removeSocketClient(socketClientService);
             }
 
-            if ( mServerSocket != null)
-                mServerSocket.close();
+            if ( mServerSocketChannel != null)
+                mServerSocketChannel.close();
+
+            if (eventLoopGroup != null)
+                eventLoopGroup.shutdown();
+
+            if (dispatchExecutor != null)
+                dispatchExecutor.shutdown();
         } catch (IOException e) {
             DefaultLogger.logEvent("SocketServerService.stopServer", e.getMessage(), DefaultLogger.ERROR_LEVEL);
         }
     }
 
+    /**
+     * Stop the server asking the clients to wait before reconnecting, so they do not all come back at once
+     * to this server when it restarts, or to the other servers they know. See {@link SocketClientService#sendRetryAfter(long)}.
+     * @param retryAfterMillis
+     */
+    public void stopServer(long retryAfterMillis){
+        for (SocketClientService socketClientService: mSocketClients.values()){
+            socketClientService.sendRetryAfter(retryAfterMillis);
+        }
+
+        //The hints must be written before closing the connections
+        long deadline = System.currentTimeMillis() + RETRY_AFTER_FLUSH_MILLIS;
+
+        while (System.currentTimeMillis() < deadline && mSocketClients.values().stream().anyMatch(client -> client.getQueuedMessages() > 0)){
+            try {
+                TimeUnit.MILLISECONDS.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        stopServer();
+    }
+
     public void restartServer(){
         stopServer();
         startServer();
@@ -132,76 +599,131 @@ public class SocketServerService extends Thread {
         socketClientService.disconnect(false);
 
         this.mSocketClients.remove(socketClientService.getmInternalId());
+        socketClientService.cancelAuthenticationTimeout();
+
+        clientsByUniqueId.remove(socketClientService);
+        boolean subscribed = !topicRegistry.getTopics(socketClientService).isEmpty();
+        topicRegistry.remove(socketClientService);
+
+        for (ClientIndex index: clientsByProperty.values()){
+            index.remove(socketClientService);
+        }
+
+        //The other nodes are told the client is gone
+        ClusterNode node = clusterNode;
+
+        if (node != null){
+            node.onClientRemoved(socketClientService);
+
+            if (subscribed)
+                node.onTopicsChanged();
+        }
     }
 
+    /**
+     * Send the message to every client. It is encoded once for all of them, see {@link BroadcastMessage}.
+     * @param syncMessage
+     */
     public void sendMessageToAllClients(SyncMessage syncMessage) {
+        BroadcastMessage broadcast = new BroadcastMessage(syncMessage);
 
         for (Map.Entry<String, SocketClientService> entry: mSocketClients.entrySet()){
-            SocketClientService socketClientService = entry.getValue();
+            //Not to the other nodes of the cluster
+            if (entry.getValue().isClusterLink())
+                continue;
 
-            BackgroundProcessHelper.startThread(()-> {
-                try {
-                    socketClientService.sendMessage(syncMessage);
-                } catch (BusinessException e) {
-                    DefaultLogger.logEvent("SocketServerService.sendMessageToAllClients", e.getMessage(), DefaultLogger.ERROR_LEVEL);
-                }
-            });
+            sendBroadcast(entry.getValue(), broadcast);
         }
     }
 
+    private void sendBroadcast(SocketClientService socketClientService, BroadcastMessage broadcast) {
+        DispatchExecutor executor = dispatchExecutor != null ? dispatchExecutor : DispatchExecutor.getShared();
+
+        //The messages for each client keep the order they were sent, and they are not discarded when the receivers are saturated
+        executor.executeOrWait(socketClientService.getmInternalId(), ()-> {
+            try {
+                socketClientService.broadcastMessage(broadcast);
+            } catch (BusinessException e) {
+                DefaultLogger.logEvent("SocketServerService.sendBroadcast", e.getMessage(), DefaultLogger.ERROR_LEVEL);
+            }
+        });
+    }
+
+    /**
+     * Send the message to the client with the unique id. In a cluster, when the client is connected to another node,
+     * it is sent through that node, see {@link ClusterNode#forwardMessage(String, SyncMessage)}.
+     * @param clientIdTo
+     * @param message
+     * @return false if the client is not connected.
+     * @throws BusinessException
+     */
     public boolean sendMessageToClient(String clientIdTo, SyncMessage message) throws BusinessException {
+        return sendMessageToClient(clientIdTo, message, false);
+    }
+
+    /**
+     * @param clientIdTo
+     * @param message
+     * @param fromCluster True when it comes from another node, so it is not sent to another node again.
+     * @return
+     * @throws BusinessException
+     */
+    boolean sendMessageToClient(String clientIdTo, SyncMessage message, boolean fromCluster) throws BusinessException {
 
         if (message.isWaitResponse()){
             throw new BusinessException("Not implemented yet!");
         }
 
-        Map.Entry<String, SocketClientService> entry = mSocketClients.entrySet().stream().filter(item->{
-            String uniqueId = item.getValue().getUniqueId();
+        //Published in another node, for the subscribers of this one
+        if (fromCluster && ClusterNode.PUBLISH_ADDRESS.equals(clientIdTo)){
+            publish(message.getTopic(), message, true);
+
+            return true;
+        }
 
-            return uniqueId != null && uniqueId.equals(clientIdTo);
-        }).findFirst().orElse(null);
+        SocketClientService socketClientService = clientIdTo != null ? getSocketClientByUniqueId(clientIdTo) : null;
 
-        if (entry != null){
-            SocketClientService socketClientService = entry.getValue();
-            socketClientService.sendMessage(message);
+        if (socketClientService != null){
+            //The received bytes are written as they are when possible
+            socketClientService.relayMessage(message);
 
             return true;
         }
 
-        return false;
+        ClusterNode node = clusterNode;
+
+        return node != null && !fromCluster && clientIdTo != null && node.forwardMessage(clientIdTo, message);
     }
 
     private void scheduleServerClientsCleanUp(SocketClientService socketClientService){
         //This method will check in 5 minutes if is authenticated
         //If is not, so then we will disconnect it
 
-        Timer cleanUpTimer = new Timer();
-
-        Calendar cleanUpDateTime = Calendar.getInstance();
-
-        cleanUpDateTime.setTime(Date.from(LocalDateTime.now().atZone(ZoneId.systemDefault()).toInstant()));
+        //All the connections share the thread of the timer, instead of one each
+        HashedWheelTimer.Timeout timeout = HashedWheelTimer.getShared().newTimeout(() -> {
+            if ( !socketClientService.isAuthenticated()){
+                DefaultLogger.logEvent("scheduleServerClientsCleanUp", "SocketClientId=" + socketClientService.getmInternalId()  + " will be disconnected due that is not authenticated", DefaultLogger.DEBUG_LEVEL);
+                removeSocketClient(socketClientService);
+            }
+        }, SOCKET_CLIENT_CLEAN_UP_MINUTES, TimeUnit.MINUTES);
 
-        cleanUpDateTime.add(Calendar.MINUTE, SOCKET_CLIENT_CLEAN_UP_MINUTES);
+        //Cancelled when the client is authenticated or removed, so the timer does not hold it
+        socketClientService.setAuthenticationTimeout(timeout);
 
-        cleanUpTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                if ( !socketClientService.isAuthenticated()){
-                    DefaultLogger.logEvent("scheduleServerClientsCleanUp", "SocketClientId=" + socketClientService.getmInternalId()  + " will be disconnected due that is not authenticated", DefaultLogger.DEBUG_LEVEL);
-                    removeSocketClient(socketClientService);
-                }
+        if ( !mSocketClients.containsKey(socketClientService.getmInternalId()))
+            socketClientService.cancelAuthenticationTimeout();
+    }
 
-                //Finish scheduled task
-                cleanUpTimer.cancel();
-                cleanUpTimer.purge();
+    public void removeSocketClientByProp(Map<String, Object> props, String key) {
+        //Close sessions
 
-                return;
+        if (clientsByProperty.containsKey(key)){
+            for (SocketClientService clientService: getSocketClientsByProp(key, props.get(key))){
+                this.removeSocketClient(clientService);
             }
-        }, cleanUpDateTime.getTime());
-    }
 
-    public void removeSocketClientByProp(Map props, String key) {
-        //Close sessions
+            return;
+        }
 
         for (Map.Entry<String, SocketClientService> socketClientServiceEntry:
                 this.mSocketClients.entrySet()){
@@ -0,0 +1,99 @@
+package com.hatechnology.apps.server_messages;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The clients subscribed to each topic, so a message published to a topic goes just to them.
+ * The topics of each client are kept as well, to take the client out of all of them when it disconnects.
+ */
+class TopicRegistry {
+    private final ConcurrentHashMap<String, Set<SocketClientService>> subscribers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<SocketClientService, Set<String>> topics = new ConcurrentHashMap<>();
+
+    /**
+     * @param topic
+     * @param client
+     * @param maxTopics The max number of topics of the client.
+     * @return false if the client reached the max number of topics.
+     */
+    boolean subscribe(String topic, SocketClientService client, int maxTopics) {
+        Set<String> clientTopics = topics.computeIfAbsent(client, key -> ConcurrentHashMap.newKeySet());
+
+        //The check and the add together, the requests of a client can be dispatched in parallel
+        synchronized (clientTopics){
+            if (clientTopics.contains(topic))
+                return true;
+
+            if (clientTopics.size() >= maxTopics)
+                return false;
+
+            clientTopics.add(topic);
+        }
+
+        //Atomic with the removal of an empty set
+        subscribers.compute(topic, (key, set) -> {
+            if (set == null)
+                set = ConcurrentHashMap.newKeySet();
+
+            set.add(client);
+
+            return set;
+        });
+
+        return true;
+    }
+
+    void unsubscribe(String topic, SocketClientService client) {
+        Set<String> clientTopics = topics.get(client);
+
+        if (clientTopics == null || !clientTopics.remove(topic))
+            return;
+
+        removeSubscriber(topic, client);
+    }
+
+    /**
+     * Take the client out of all its topics.
+     * @param client
+     */
+    void remove(SocketClientService client) {
+        Set<String> clientTopics = topics.remove(client);
+
+        if (clientTopics == null)
+            return;
+
+        for (String topic: clientTopics){
+            removeSubscriber(topic, client);
+        }
+    }
+
+    private void removeSubscriber(String topic, SocketClientService client) {
+        subscribers.computeIfPresent(topic, (key, set) -> {
+            set.remove(client);
+
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    /**
+     * @param topic
+     * @return The subscribers of the topic. It is not a copy, it changes as they come and go.
+     */
+    Set<SocketClientService> getSubscribers(String topic) {
+        Set<SocketClientService> set = topic != null ? subscribers.get(topic) : null;
+
+        return set != null ? Collections.unmodifiableSet(set) : Collections.emptySet();
+    }
+
+    Set<String> getTopics(SocketClientService client) {
+        Set<String> clientTopics = topics.get(client);
+
+        return clientTopics != null ? Collections.unmodifiableSet(clientTopics) : Collections.emptySet();
+    }
+
+    Set<String> getTopics() {
+        return Collections.unmodifiableSet(subscribers.keySet());
+    }
+}
@@ -0,0 +1,72 @@
+package com.hatechnology.apps.server_messages.cluster;
+
+import com.hatechnology.apps.client_messages.AsyncSocketClient;
+import com.hatechnology.apps.core_messaging.Authentication;
+import com.hatechnology.apps.core_messaging.SocketHost;
+import com.hatechnology.apps.core_messaging.SyncMessagePaths;
+import com.hatechnology.apps.exceptions.BusinessException;
+
+import java.util.Collections;
+
+/**
+ * The connection of a node to another node of the cluster. It is a regular client of the other server,
+ * with {@link ClusterNode#LINK_ID_PREFIX} and the id of the node as unique id, and it reconnects until the node is stopped.
+ * The id is reserved, so it is authenticated with the cluster token.
+ */
+class ClusterLink extends AsyncSocketClient {
+
+    private final ClusterNode clusterNode;
+    private final SocketHost host;
+    //Known once the other node answers the first sync
+    private volatile String peerNodeId;
+
+    ClusterLink(ClusterNode clusterNode, SocketHost host, int secondsToReconnect) throws BusinessException {
+        super(ClusterNode.LINK_ID_PREFIX + clusterNode.getNodeId(), Collections.singletonList(host));
+
+        this.clusterNode = clusterNode;
+        this.host = host;
+
+        setSecondsToReconnect(secondsToReconnect);
+
+        //The other node answers the state of this one with its own id
+        addRequestReceiver(SyncMessagePaths.CLUSTER_SYNC, (message, isAuthenticated) -> {
+            if (message.hasSyncResponse() && message.getSyncResponse().isSuccess() && message.getSyncRequest() instanceof ClusterSyncRequest)
+                clusterNode.onLinkIdentified(this, ((ClusterSyncRequest) message.getSyncRequest()).getNodeId());
+        });
+    }
+
+    SocketHost getHost() {
+        return host;
+    }
+
+    String getPeerNodeId() {
+        return peerNodeId;
+    }
+
+    void setPeerNodeId(String peerNodeId) {
+        this.peerNodeId = peerNodeId;
+    }
+
+    @Override
+    protected Authentication createAuthentication() {
+        Authentication authentication = super.createAuthentication();
+        authentication.setToken(clusterNode.getClusterToken());
+
+        return authentication;
+    }
+
+    void close() {
+        setKeepConnectionAlive(false);
+        setOnLineMode(false);
+        setConnected(false);
+        disconnect(false);
+    }
+
+    @Override
+    protected void onSessionStarted() {
+        super.onSessionStarted();
+
+        //The other node gets the whole state again, it could have missed the changes while disconnected
+        clusterNode.onLinkConnected(this);
+    }
+}
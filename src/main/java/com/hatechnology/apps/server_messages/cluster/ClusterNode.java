@@ -0,0 +1,598 @@
+package com.hatechnology.apps.server_messages.cluster;
+
+import com.hatechnology.apps.core_messaging.BroadcastMessage;
+import com.hatechnology.apps.core_messaging.DispatchExecutor;
+import com.hatechnology.apps.core_messaging.DispatchOrder;
+import com.hatechnology.apps.core_messaging.PayloadTypes;
+import com.hatechnology.apps.core_messaging.SocketHost;
+import com.hatechnology.apps.core_messaging.SyncMessage;
+import com.hatechnology.apps.core_messaging.SyncMessagePaths;
+import com.hatechnology.apps.core_messaging.SyncResponse;
+import com.hatechnology.apps.core_messaging.tasks.HashedWheelTimer;
+import com.hatechnology.apps.exceptions.BusinessException;
+import com.hatechnology.apps.logger.DefaultLogger;
+import com.hatechnology.apps.server_messages.SocketClientService;
+import com.hatechnology.apps.server_messages.SocketServerService;
+import com.hatechnology.apps.utilities.HAGeneralUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Makes a server one node of a cluster, so the clients connected to different nodes can send messages to each other.
+ * Each node connects to the others as a regular client, over the same protocol, and tells them which clients are
+ * connected to it and which topics they are subscribed to. Then the messages for a client of another node,
+ * and the ones published to a topic with subscribers in another node, are sent through the connection to that node.
+ * The nodes send the whole state when they connect and from time to time, and the changes in between,
+ * gathered for a short interval so a burst of connections is told in one message.
+ * The messages sent to each node share its connection, so they are written together, many in each write.
+ * It must be started before the server, see {@link #start()}.
+ */
+public class ClusterNode {
+
+    //The unique ids of the connections between the nodes start with it, the clients can not use it
+    public static final String LINK_ID_PREFIX = "cluster:";
+    //The address of the messages published to a topic in another node
+    public static final String PUBLISH_ADDRESS = LINK_ID_PREFIX + "publish";
+
+    //Default
+    private static final long DEFAULT_GOSSIP_INTERVAL_MILLIS = 100;
+    private static final long DEFAULT_FULL_SYNC_SECONDS = 30;
+    private static final int DEFAULT_SECONDS_TO_RECONNECT = 2;
+
+    private final String nodeId;
+    private final SocketServerService socketServerService;
+    private final List<SocketHost> peers;
+    private final List<ClusterLink> links = new CopyOnWriteArrayList<>();
+    //The connections to the other nodes, by the id they answered with
+    private final Map<String, ClusterLink> linksByNode = new ConcurrentHashMap<>();
+    //Which node each client of the other nodes is connected to, and the other way around
+    private final Map<String, String> remoteClients = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> clientsByNode = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> topicsByNode = new ConcurrentHashMap<>();
+    //The changes of the local clients not told yet, true for the ones added
+    private final Map<String, Boolean> pendingClients = new ConcurrentHashMap<>();
+    private final AtomicBoolean topicsChanged = new AtomicBoolean();
+    private String clusterToken = "";
+    private long gossipIntervalMillis = DEFAULT_GOSSIP_INTERVAL_MILLIS;
+    private long fullSyncSeconds = DEFAULT_FULL_SYNC_SECONDS;
+    private int secondsToReconnect = DEFAULT_SECONDS_TO_RECONNECT;
+    private volatile boolean started;
+    private long lastFullSync;
+
+    /**
+     * @param nodeId Unique in the cluster.
+     * @param socketServerService The server of this node, not started yet.
+     * @param peers The other nodes. A node can be listed by the ones started before and after it, it connects to all of them.
+     */
+    public ClusterNode(String nodeId, SocketServerService socketServerService, List<SocketHost> peers) {
+        if (nodeId == null || nodeId.equals(""))
+            throw new IllegalArgumentException("The node id can not be empty!");
+
+        this.nodeId = nodeId;
+        this.socketServerService = socketServerService;
+        this.peers = peers != null ? new ArrayList<>(peers) : new ArrayList<>();
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public SocketServerService getSocketServerService() {
+        return socketServerService;
+    }
+
+    public String getClusterToken() {
+        return clusterToken;
+    }
+
+    /**
+     * The nodes just accept the state of the nodes with the same token. It must be set before starting, a node does not start without it.
+     * @param clusterToken
+     */
+    public void setClusterToken(String clusterToken) {
+        this.clusterToken = clusterToken != null ? clusterToken : "";
+    }
+
+    public long getGossipIntervalMillis() {
+        return gossipIntervalMillis;
+    }
+
+    /**
+     * How long the changes of the local clients are gathered before telling the other nodes.
+     * @param gossipIntervalMillis
+     */
+    public void setGossipIntervalMillis(long gossipIntervalMillis) {
+        this.gossipIntervalMillis = gossipIntervalMillis;
+    }
+
+    public long getFullSyncSeconds() {
+        return fullSyncSeconds;
+    }
+
+    /**
+     * How often the whole state is sent again, to fix anything lost on the way.
+     * @param fullSyncSeconds
+     */
+    public void setFullSyncSeconds(long fullSyncSeconds) {
+        this.fullSyncSeconds = fullSyncSeconds;
+    }
+
+    public int getSecondsToReconnect() {
+        return secondsToReconnect;
+    }
+
+    /**
+     * The seconds to wait to connect again to a node. It must be set before starting.
+     * @param secondsToReconnect
+     */
+    public void setSecondsToReconnect(int secondsToReconnect) {
+        this.secondsToReconnect = secondsToReconnect;
+    }
+
+    /**
+     * Join the cluster. It must be called before the server is started, so no connection is authenticated
+     * with a reserved id before the node can check its token.
+     * @throws BusinessException If the cluster token is not set, anybody could join the cluster without it.
+     */
+    public synchronized void start() throws BusinessException {
+        if (started)
+            return;
+
+        if (clusterToken.isEmpty())
+            throw new BusinessException("The cluster token must be set before starting the node!");
+
+        PayloadTypes.register(SyncMessagePaths.CLUSTER_SYNC, ClusterSyncRequest.class);
+
+        socketServerService.setClusterNode(this);
+
+        started = true;
+        lastFullSync = System.currentTimeMillis();
+
+        for (SocketHost peer: peers){
+            ClusterLink link = new ClusterLink(this, peer, secondsToReconnect);
+
+            //A slow node must not hold the event loops of this one
+            link.setBackpressurePolicy(socketServerService.getBackpressurePolicy());
+
+            links.add(link);
+            link.start();
+        }
+
+        scheduleGossip();
+    }
+
+    /**
+     * Leave the cluster. The server keeps working alone.
+     */
+    public synchronized void stop() {
+        if ( !started)
+            return;
+
+        started = false;
+
+        for (ClusterLink link: links){
+            link.close();
+        }
+
+        links.clear();
+        linksByNode.clear();
+
+        for (String node: new ArrayList<>(clientsByNode.keySet())){
+            removeNode(node);
+        }
+
+        socketServerService.setClusterNode(null);
+    }
+
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * The reserved ids are never told to the other nodes as clients. They do not give any privilege by themselves,
+     * just the connections that sent the cluster token are the ones of a node, see {@link SocketClientService#isClusterLink()}.
+     * @param uniqueId
+     * @return true if the id is reserved for the connections of the nodes.
+     */
+    public static boolean isReservedId(String uniqueId) {
+        return uniqueId != null && uniqueId.startsWith(LINK_ID_PREFIX);
+    }
+
+    /**
+     * @param token
+     * @return true if the token is the one of this cluster and the node is started.
+     */
+    public boolean isClusterToken(String token) {
+        if ( !started || token == null || clusterToken.isEmpty())
+            return false;
+
+        //In constant time, so the token can not be guessed from how long the check takes
+        return MessageDigest.isEqual(clusterToken.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return The ids of the nodes this one is connected to.
+     */
+    public Set<String> getConnectedNodes() {
+        Set<String> nodes = new HashSet<>();
+
+        for (Map.Entry<String, ClusterLink> entry: linksByNode.entrySet()){
+            if (entry.getValue().isConnected())
+                nodes.add(entry.getKey());
+        }
+
+        return nodes;
+    }
+
+    /**
+     * @param uniqueId
+     * @return The node the client is connected to, null if it is not connected to another node.
+     */
+    public String getNodeOf(String uniqueId) {
+        return uniqueId != null ? remoteClients.get(uniqueId) : null;
+    }
+
+    /**
+     * @param node
+     * @return The clients connected to the node, as it told.
+     */
+    public Set<String> getClientsOf(String node) {
+        Set<String> clients = clientsByNode.get(node);
+
+        return clients != null ? Collections.unmodifiableSet(clients) : Collections.emptySet();
+    }
+
+    /**
+     * @param node
+     * @return The topics the clients of the node are subscribed to, as it told.
+     */
+    public Set<String> getTopicsOf(String node) {
+        return topicsByNode.getOrDefault(node, Collections.emptySet());
+    }
+
+    /**
+     * Send the message through the connection to the node of the client.
+     * @param clientIdTo
+     * @param message
+     * @return false if the client is not connected to another node, or that node is not reachable.
+     * @throws BusinessException
+     */
+    public boolean forwardMessage(String clientIdTo, SyncMessage message) throws BusinessException {
+        String node = getNodeOf(clientIdTo);
+        ClusterLink link = node != null ? linksByNode.get(node) : null;
+
+        if (link == null || !link.isConnected())
+            return false;
+
+        //The received bytes are written as they are when possible
+        link.relayMessage(message);
+
+        return true;
+    }
+
+    /**
+     * Send the message to the nodes with subscribers to the topic, once to each node, which sends it to its subscribers.
+     * @param topic
+     * @param message
+     * @return The number of nodes it was sent to.
+     */
+    public int publish(String topic, SyncMessage message) {
+        BroadcastMessage broadcast = null;
+        int sent = 0;
+
+        for (Map.Entry<String, Set<String>> entry: topicsByNode.entrySet()){
+            ClusterLink link = entry.getValue().contains(topic) ? linksByNode.get(entry.getKey()) : null;
+
+            if (link == null || !link.isConnected())
+                continue;
+
+            //Encoded once for all the nodes
+            if (broadcast == null)
+                broadcast = new BroadcastMessage(message, topic, PUBLISH_ADDRESS);
+
+            try {
+                link.broadcastMessage(broadcast);
+                sent++;
+            } catch (BusinessException e) {
+                DefaultLogger.logEvent("ClusterNode.publish(NodeId=" + nodeId + ")", e.getMessage(), DefaultLogger.ERROR_LEVEL);
+            }
+        }
+
+        return sent;
+    }
+
+    /**
+     * Called by the server when a client authenticates with its unique id.
+     * @param socketClientService
+     */
+    public void onClientAdded(SocketClientService socketClientService) {
+        String uniqueId = socketClientService.getUniqueId();
+
+        if (uniqueId == null)
+            return;
+
+        //It could be another node, which is checked with the token of each sync it sends
+        if (isReservedId(uniqueId)){
+            //The changes of a node must be applied in the order it sent them
+            socketClientService.setDispatchOrder(DispatchOrder.CONNECTION);
+            socketClientService.addRequestReceiver(SyncMessagePaths.CLUSTER_SYNC, new ClusterSyncReceiver(this, socketClientService));
+            return;
+        }
+
+        pendingClients.put(uniqueId, true);
+    }
+
+    /**
+     * Called by the server when a client is removed.
+     * @param socketClientService
+     */
+    public void onClientRemoved(SocketClientService socketClientService) {
+        String uniqueId = socketClientService.getUniqueId();
+
+        //It could be connected again already
+        if (uniqueId == null || socketServerService.getSocketClientByUniqueId(uniqueId) != null)
+            return;
+
+        if (socketClientService.isClusterLink()){
+            //Its clients are not reachable anymore
+            removeNode(uniqueId.substring(LINK_ID_PREFIX.length()));
+            return;
+        }
+
+        if ( !isReservedId(uniqueId))
+            pendingClients.put(uniqueId, false);
+    }
+
+    /**
+     * Called by the server when the subscriptions of its clients change.
+     */
+    public void onTopicsChanged() {
+        topicsChanged.set(true);
+    }
+
+    void onLinkConnected(ClusterLink link) {
+        if ( !started)
+            return;
+
+        synchronized (this){
+            sendFullState(link, newFullState());
+        }
+    }
+
+    void onLinkIdentified(ClusterLink link, String peerNodeId) {
+        //Connected to itself
+        if ( !started || peerNodeId == null || peerNodeId.equals(nodeId))
+            return;
+
+        ClusterLink oldLink = linksByNode.put(peerNodeId, link);
+        link.setPeerNodeId(peerNodeId);
+
+        if (oldLink != null && oldLink != link)
+            DefaultLogger.logEvent("ClusterNode.onLinkIdentified(NodeId=" + nodeId + ")", "The node " + peerNodeId + " is listed twice, at " + oldLink.getHost().getHost() + ":" + oldLink.getHost().getPort() + " and " + link.getHost().getHost() + ":" + link.getHost().getPort(), DefaultLogger.ERROR_LEVEL);
+    }
+
+    /**
+     * Apply the state told by another node.
+     * @param request
+     */
+    void applySync(ClusterSyncRequest request) {
+        String node = request.getNodeId();
+
+        if (node == null || node.equals(nodeId))
+            return;
+
+        synchronized (clientsByNode){
+            Set<String> clients = clientsByNode.computeIfAbsent(node, key -> ConcurrentHashMap.newKeySet());
+            List<String> addedClients = request.getAddedClients() != null ? request.getAddedClients() : Collections.emptyList();
+
+            //The clients of the node are just the ones told now
+            if (request.isFullState()){
+                Set<String> state = new HashSet<>(addedClients);
+
+                for (String uniqueId: clients){
+                    if ( !state.contains(uniqueId)){
+                        clients.remove(uniqueId);
+                        remoteClients.remove(uniqueId, node);
+                    }
+                }
+            }
+
+            for (String uniqueId: addedClients){
+                clients.add(uniqueId);
+
+                //It moved from another node
+                String oldNode = remoteClients.put(uniqueId, node);
+
+                if (oldNode != null && !oldNode.equals(node)){
+                    Set<String> oldClients = clientsByNode.get(oldNode);
+
+                    if (oldClients != null)
+                        oldClients.remove(uniqueId);
+                }
+            }
+
+            if (request.getRemovedClients() != null){
+                for (String uniqueId: request.getRemovedClients()){
+                    clients.remove(uniqueId);
+
+                    //Just if it did not move to another node in the meantime
+                    remoteClients.remove(uniqueId, node);
+                }
+            }
+
+            if (request.getTopics() != null)
+                topicsByNode.put(node, Collections.unmodifiableSet(new HashSet<>(request.getTopics())));
+        }
+    }
+
+    /**
+     * @return What this node answers to the state of another node, so the other one knows which node it is connected to.
+     */
+    ClusterSyncRequest newIdentity() {
+        return newSyncRequest(false);
+    }
+
+    private void removeNode(String node) {
+        synchronized (clientsByNode){
+            Set<String> clients = clientsByNode.remove(node);
+
+            if (clients != null){
+                for (String uniqueId: clients){
+                    remoteClients.remove(uniqueId, node);
+                }
+            }
+
+            topicsByNode.remove(node);
+        }
+    }
+
+    private void scheduleGossip() {
+        if ( !started)
+            return;
+
+        //The timer thread must not wait for the connections
+        HashedWheelTimer.getShared().newTimeout(() -> DispatchExecutor.getShared().execute(this::gossip), gossipIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void gossip() {
+        try {
+            if ( !started)
+                return;
+
+            long now = System.currentTimeMillis();
+
+            synchronized (this){
+                if (now - lastFullSync >= TimeUnit.SECONDS.toMillis(fullSyncSeconds)){
+                    lastFullSync = now;
+
+                    //The pending changes are in the state already
+                    pendingClients.clear();
+                    topicsChanged.set(false);
+
+                    ClusterSyncRequest state = newFullState();
+
+                    for (ClusterLink link: links){
+                        sendFullState(link, state);
+                    }
+
+                    return;
+                }
+
+                ClusterSyncRequest changes = newChanges();
+
+                if (changes == null)
+                    return;
+
+                for (ClusterLink link: links){
+                    sendChanges(link, changes);
+                }
+            }
+        } catch (Exception e) {
+            DefaultLogger.logEvent("ClusterNode.gossip(NodeId=" + nodeId + ")", HAGeneralUtils.getStackTrace(e), DefaultLogger.ERROR_LEVEL);
+        } finally {
+            scheduleGossip();
+        }
+    }
+
+    private ClusterSyncRequest newSyncRequest(boolean fullState) {
+        ClusterSyncRequest request = new ClusterSyncRequest();
+        request.setNodeId(nodeId);
+        request.setClusterToken(clusterToken);
+        request.setFullState(fullState);
+
+        return request;
+    }
+
+    private ClusterSyncRequest newFullState() {
+        List<String> clients = new ArrayList<>();
+
+        for (SocketClientService socketClientService: socketServerService.getmSocketClients().values()){
+            String uniqueId = socketClientService.getUniqueId();
+
+            if (uniqueId != null && !isReservedId(uniqueId) && socketClientService.isAuthenticated())
+                clients.add(uniqueId);
+        }
+
+        ClusterSyncRequest request = newSyncRequest(true);
+        request.setAddedClients(clients);
+        request.setTopics(new ArrayList<>(socketServerService.getTopics()));
+
+        return request;
+    }
+
+    /**
+     * @return The changes since the last time, null if there are none.
+     */
+    private ClusterSyncRequest newChanges() {
+        boolean sendTopics = topicsChanged.getAndSet(false);
+
+        if (pendingClients.isEmpty() && !sendTopics)
+            return null;
+
+        List<String> addedClients = new ArrayList<>();
+        List<String> removedClients = new ArrayList<>();
+
+        for (Map.Entry<String, Boolean> entry: pendingClients.entrySet()){
+            //A newer change stays for the next time
+            if ( !pendingClients.remove(entry.getKey(), entry.getValue()))
+                continue;
+
+            if (entry.getValue())
+                addedClients.add(entry.getKey());
+            else
+                removedClients.add(entry.getKey());
+        }
+
+        ClusterSyncRequest request = newSyncRequest(false);
+        request.setAddedClients(addedClients);
+        request.setRemovedClients(removedClients);
+
+        if (sendTopics)
+            request.setTopics(new ArrayList<>(socketServerService.getTopics()));
+
+        return request;
+    }
+
+    private void sendFullState(ClusterLink link, ClusterSyncRequest state) {
+        if ( !link.isConnected())
+            return;
+
+        //The answer tells which node is at the other side, see onLinkIdentified
+        link.sendRequestAsync(newMessage(state)).whenComplete((message, e) -> {
+            SyncResponse response = message != null ? message.getSyncResponse() : null;
+
+            if (e != null || response == null || !response.isSuccess())
+                DefaultLogger.logEvent("ClusterNode.sendFullState(NodeId=" + nodeId + ")", "Host=" + link.getHost().getHost() + ":" + link.getHost().getPort() + ", Error=" + (e != null ? e.getMessage() : response != null ? response.getErrorMessage() : null), DefaultLogger.ERROR_LEVEL);
+        });
+    }
+
+    private void sendChanges(ClusterLink link, ClusterSyncRequest changes) {
+        //The ones not connected get the whole state when they connect
+        if ( !link.isConnected())
+            return;
+
+        try {
+            link.sendMessage(newMessage(changes));
+        } catch (BusinessException e) {
+            DefaultLogger.logEvent("ClusterNode.sendChanges(NodeId=" + nodeId + ")", e.getMessage(), DefaultLogger.ERROR_LEVEL);
+        }
+    }
+
+    private static SyncMessage newMessage(ClusterSyncRequest request) {
+        SyncMessage message = new SyncMessage();
+        message.setSyncRequest(request);
+
+        return message;
+    }
+}
@@ -0,0 +1,63 @@
+package com.hatechnology.apps.server_messages.cluster;
+
+import com.hatechnology.apps.core_messaging.SyncMessage;
+import com.hatechnology.apps.core_messaging.SyncRequest;
+import com.hatechnology.apps.core_messaging.SyncResponse;
+import com.hatechnology.apps.core_messaging.behaviors.OnMessageBehavior;
+import com.hatechnology.apps.logger.DefaultLogger;
+import com.hatechnology.apps.server_messages.SocketClientService;
+
+/**
+ * The state told by the other nodes of the cluster, see {@link ClusterSyncRequest}.
+ * Each connection with a reserved id has its own receiver. The state is accepted just when the connection is authenticated,
+ * the token is the one of the cluster and the node is the one of the id, and then the connection becomes a link
+ * of the cluster, see {@link SocketClientService#isClusterLink()}.
+ * The whole state is answered with the identity of this node, the changes are not answered.
+ */
+class ClusterSyncReceiver implements OnMessageBehavior {
+
+    private final ClusterNode clusterNode;
+    private final SocketClientService socketClientService;
+
+    ClusterSyncReceiver(ClusterNode clusterNode, SocketClientService socketClientService) {
+        this.clusterNode = clusterNode;
+        this.socketClientService = socketClientService;
+    }
+
+    @Override
+    public void onMessageReceived(SyncMessage message, boolean isAuthenticated) {
+        if ( !message.hasSyncRequest())
+            return;
+
+        //The id the connection was authenticated with, not the one written in the message
+        String sourceId = socketClientService.getUniqueId();
+
+        SyncRequest request = message.getSyncRequest();
+        SyncResponse mResponse = new SyncResponse(false);
+
+        if ( !isAuthenticated){
+            mResponse.setErrorMessage("Client is not authenticated!");
+        }else if ( !(request instanceof ClusterSyncRequest)){
+            mResponse.setErrorMessage("The cluster is not started!");
+        }else if ( !clusterNode.isClusterToken(((ClusterSyncRequest) request).getClusterToken())){
+            mResponse.setErrorMessage("The cluster token is not valid!");
+        }else if ( !sourceId.equals(ClusterNode.LINK_ID_PREFIX + ((ClusterSyncRequest) request).getNodeId())){
+            mResponse.setErrorMessage("The node id does not match the client id!");
+        }else {
+            socketClientService.setClusterLink(true);
+
+            clusterNode.applySync((ClusterSyncRequest) request);
+
+            mResponse.setSuccess(true);
+        }
+
+        if (request instanceof ClusterSyncRequest && !((ClusterSyncRequest) request).isFullState()){
+            if ( !mResponse.isSuccess())
+                DefaultLogger.logEvent("ClusterSyncReceiver.onMessage", "Changes refused(SourceId=" + sourceId + ", Error=" + mResponse.getErrorMessage() + ")", DefaultLogger.ERROR_LEVEL);
+
+            return;
+        }
+
+        socketClientService.reply(mResponse.isSuccess() ? clusterNode.newIdentity() : null, mResponse, message);
+    }
+}
@@ -0,0 +1,75 @@
+package com.hatechnology.apps.server_messages.cluster;
+
+import com.hatechnology.apps.core_messaging.SyncMessagePaths;
+import com.hatechnology.apps.core_messaging.SyncRequest;
+
+import java.util.List;
+
+/**
+ * What a node tells the other nodes about itself, the clients connected to it and the topics they are subscribed to.
+ * The full state is sent when they connect and from time to time, and the changes in between.
+ */
+public class ClusterSyncRequest extends SyncRequest {
+    private String nodeId;
+    private String clusterToken;
+    private boolean fullState;
+    private List<String> addedClients;
+    private List<String> removedClients;
+    //null when the topics did not change
+    private List<String> topics;
+
+    public ClusterSyncRequest() {
+        super(SyncMessagePaths.CLUSTER_SYNC);
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    public String getClusterToken() {
+        return clusterToken;
+    }
+
+    public void setClusterToken(String clusterToken) {
+        this.clusterToken = clusterToken;
+    }
+
+    /**
+     * @return true if the clients are all the clients of the node, not just the ones added.
+     */
+    public boolean isFullState() {
+        return fullState;
+    }
+
+    public void setFullState(boolean fullState) {
+        this.fullState = fullState;
+    }
+
+    public List<String> getAddedClients() {
+        return addedClients;
+    }
+
+    public void setAddedClients(List<String> addedClients) {
+        this.addedClients = addedClients;
+    }
+
+    public List<String> getRemovedClients() {
+        return removedClients;
+    }
+
+    public void setRemovedClients(List<String> removedClients) {
+        this.removedClients = removedClients;
+    }
+
+    public List<String> getTopics() {
+        return topics;
+    }
+
+    public void setTopics(List<String> topics) {
+        this.topics = topics;
+    }
+}
@@ -5,31 +5,38 @@ import com.hatechnology.apps.core_messaging.behaviors.OnMessageBehavior;
 import com.hatechnology.apps.logger.DefaultLogger;
 import com.hatechnology.apps.server_messages.SocketClientService;
 import com.hatechnology.apps.server_messages.SocketClientSession;
+import com.hatechnology.apps.server_messages.SocketServerService;
+import com.hatechnology.apps.server_messages.cluster.ClusterNode;
 
 import java.time.LocalDateTime;
 
 public class AuthenticatorReceiver implements OnMessageBehavior {
 
     private SocketClientService socketClientService;
+    private SocketServerService socketServerService;
 
     public AuthenticatorReceiver(SocketClientService socketClientService) {
+        this(socketClientService, null);
+    }
+
+    /**
+     * @param socketClientService
+     * @param socketServerService Its cluster node checks the token of the ids reserved for the nodes, see {@link ClusterNode#isReservedId(String)}.
+     */
+    public AuthenticatorReceiver(SocketClientService socketClientService, SocketServerService socketServerService) {
         this.socketClientService = socketClientService;
+        this.socketServerService = socketServerService;
     }
 
     @Override
     public void onMessageReceived(SyncMessage message, boolean isAuthenticated) {
-        //Get request
-        SyncRequest request = message.getSyncRequest();
-
-        //Get response
-        SyncResponse response = message.getSyncResponse();
-
-        if (request != null){
-
-            DefaultLogger.logEvent("AuthenticatorReceiver.onMessage", "Getting request(MessageId=" + message.getId() + ", Request=" + request.getPath() + ")", DefaultLogger.DEBUG_LEVEL);
+        //The paths are known without decoding the request nor the response
+        if (message.hasSyncRequest()){
 
             //Get request path
-            String path = request.getPath();
+            String path = message.getRequestPath();
+
+            DefaultLogger.logEvent("AuthenticatorReceiver.onMessage", "Getting request(MessageId=" + message.getId() + ", Request=" + path + ")", DefaultLogger.DEBUG_LEVEL);
 
             //Create response to be sent
             SyncResponse mResponse = new SyncResponse();
@@ -50,7 +57,17 @@ public class AuthenticatorReceiver implements OnMessageBehavior {
                  * Please use your own logic to authenticate the client.
                  */
                 if (path.equals(SyncMessagePaths.AUTHENTICATE)){
-                    Authentication auth = request.getAuthentication();
+                    Authentication auth = message.getSyncRequest().getAuthentication();
+
+                    //Just the nodes of the cluster can use the reserved ids
+                    if (ClusterNode.isReservedId(message.getSourceId()) && !isClusterToken(auth.getToken())){
+                        mResponse.setSuccess(false);
+                        mResponse.setErrorMessage("The client id is reserved for the nodes of the cluster!");
+
+                        socketClientService.reply(null, mResponse, message);
+
+                        return;
+                    }
 
                     //Authentication user
                     if (auth.getUser().equals("admin") && auth.getPassword().equals("admin")){
@@ -93,8 +110,14 @@ public class AuthenticatorReceiver implements OnMessageBehavior {
             }
         }
 
-        if (response != null){
-            DefaultLogger.logEvent("AuthenticatorReceiver.onMessage", "Getting response(MessageId=" + message.getId() + ", Response=" + response.getPath() + ")", DefaultLogger.DEBUG_LEVEL);
+        if (message.hasSyncResponse()){
+            DefaultLogger.logEvent("AuthenticatorReceiver.onMessage", "Getting response(MessageId=" + message.getId() + ", Response=" + message.getResponsePath() + ")", DefaultLogger.DEBUG_LEVEL);
         }
     }
+
+    private boolean isClusterToken(String token) {
+        ClusterNode clusterNode = socketServerService != null ? socketServerService.getClusterNode() : null;
+
+        return clusterNode != null && clusterNode.isClusterToken(token);
+    }
 }
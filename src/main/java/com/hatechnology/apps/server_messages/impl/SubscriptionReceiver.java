@@ -0,0 +1,59 @@
+package com.hatechnology.apps.server_messages.impl;
+
+import com.hatechnology.apps.core_messaging.SyncMessage;
+import com.hatechnology.apps.core_messaging.SyncMessagePaths;
+import com.hatechnology.apps.core_messaging.SyncRequest;
+import com.hatechnology.apps.core_messaging.SyncResponse;
+import com.hatechnology.apps.core_messaging.behaviors.OnMessageBehavior;
+import com.hatechnology.apps.exceptions.BusinessException;
+import com.hatechnology.apps.logger.DefaultLogger;
+import com.hatechnology.apps.server_messages.SocketClientService;
+import com.hatechnology.apps.server_messages.SocketServerService;
+
+/**
+ * The subscriptions of a client to the topics, asked with the {@link SyncMessagePaths#SUBSCRIBE} and the {@link SyncMessagePaths#UNSUBSCRIBE} requests.
+ * The topic is the text of the request. Just the authenticated clients can subscribe.
+ */
+public class SubscriptionReceiver implements OnMessageBehavior {
+
+    private SocketClientService socketClientService;
+    private SocketServerService socketServerService;
+
+    public SubscriptionReceiver(SocketClientService socketClientService, SocketServerService socketServerService) {
+        this.socketClientService = socketClientService;
+        this.socketServerService = socketServerService;
+    }
+
+    @Override
+    public void onMessageReceived(SyncMessage message, boolean isAuthenticated) {
+        if ( !message.hasSyncRequest())
+            return;
+
+        SyncRequest request = message.getSyncRequest();
+        String topic = request.getText();
+
+        DefaultLogger.logEvent("SubscriptionReceiver.onMessage", "Getting request(MessageId=" + message.getId() + ", Request=" + request.getPath() + ", Topic=" + topic + ")", DefaultLogger.DEBUG_LEVEL);
+
+        SyncResponse mResponse = new SyncResponse(false);
+
+        if ( !isAuthenticated){
+            mResponse.setErrorMessage("Client is not authenticated!");
+        }else if (socketServerService == null){
+            mResponse.setErrorMessage("The topics are not available!");
+        }else if (request.getPath().equals(SyncMessagePaths.SUBSCRIBE)){
+            try {
+                socketServerService.subscribe(socketClientService, topic);
+
+                mResponse.setSuccess(true);
+            } catch (BusinessException e) {
+                mResponse.setErrorMessage(e.getMessage());
+            }
+        }else {
+            socketServerService.unsubscribe(socketClientService, topic);
+
+            mResponse.setSuccess(true);
+        }
+
+        socketClientService.reply(null, mResponse, message);
+    }
+}
@@ -1,12 +1,52 @@
 package com.hatechnology.apps.utilities;
 
-import java.util.ArrayList;
-import java.util.List;
-
+/**
+ * Every thread of the library but the event loops is started here, so all of them come from one {@link ThreadProvider}.
+ * They are platform threads per default. With the java21 build running on Java 21 they can be virtual threads,
+ * either by calling {@link #useVirtualThreads()} or by setting the system property server_messages.threads=virtual.
+ */
 public class BackgroundProcessHelper {
+    public static final String THREADS_PROPERTY = "server_messages.threads";
+    public static final String VIRTUAL_THREADS = "virtual";
+
+    private static final ThreadProvider PLATFORM_THREADS = Thread::new;
+
+    private static volatile ThreadProvider threadProvider = defaultThreadProvider();
 
     public static void startThread(Runnable task){
-        Thread thread = new Thread(task);
+        Thread thread = threadProvider.newThread(task);
         thread.start();
     }
+
+    public static ThreadProvider getThreadProvider() {
+        return threadProvider;
+    }
+
+    /**
+     * It applies to the threads started after this.
+     * @param threadProvider
+     */
+    public static void setThreadProvider(ThreadProvider threadProvider) {
+        BackgroundProcessHelper.threadProvider = threadProvider == null ? PLATFORM_THREADS : threadProvider;
+    }
+
+    /**
+     * Use virtual threads if they are supported.
+     * @return true if they are supported.
+     */
+    public static boolean useVirtualThreads() {
+        if ( !VirtualThreads.isSupported())
+            return false;
+
+        setThreadProvider(VirtualThreads.provider());
+
+        return true;
+    }
+
+    private static ThreadProvider defaultThreadProvider() {
+        if (VIRTUAL_THREADS.equalsIgnoreCase(System.getProperty(THREADS_PROPERTY)) && VirtualThreads.isSupported())
+            return VirtualThreads.provider();
+
+        return PLATFORM_THREADS;
+    }
 }
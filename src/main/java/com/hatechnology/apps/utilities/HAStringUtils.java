@@ -4,6 +4,8 @@ import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Base64;
 
 public class HAStringUtils {
@@ -42,6 +44,12 @@ public class HAStringUtils {
         return Base64.getEncoder().encodeToString(text.getBytes());
     }
 
+    public static String encodeBytesToBase64(byte[] bytes, int offset, int length) {
+        ByteBuffer encoded = Base64.getEncoder().encode(ByteBuffer.wrap(bytes, offset, length));
+
+        return new String(encoded.array(), StandardCharsets.US_ASCII);
+    }
+
     public static String decodeBase64ToString(String base64Text) throws IOException {
         byte[] bytes = Base64.getDecoder().decode(base64Text);
 
@@ -1,11 +1,21 @@
 package com.hatechnology.apps.utilities;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.lang.reflect.Type;
+import java.time.LocalDateTime;
 
 public class JsonUtils {
-    private static final Gson m_Gson = new Gson();
+    private static final Gson m_Gson = new GsonBuilder()
+            .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeAdapter().nullSafe())
+            .create();
 
     public static String convertToJson(Object obj){
         return m_Gson.toJson(obj);
@@ -14,4 +24,78 @@ public class JsonUtils {
     public static Object convertFromJsonToObject(String jsonStr, Type classType){
         return m_Gson.fromJson(jsonStr, classType);
     }
+
+    public static void writeJson(Object obj, Type classType, Appendable writer){
+        m_Gson.toJson(obj, classType, writer);
+    }
+
+    public static Object readJson(Reader reader, Type classType){
+        return m_Gson.fromJson(reader, classType);
+    }
+
+    /**
+     * The dates are written with the same fields Gson finds by reflection, so the JSON does not change for the other endpoints:
+     * {"date":{"year":..,"month":..,"day":..},"time":{"hour":..,"minute":..,"second":..,"nano":..}}.
+     * It is needed to run on Java 17 and later, like the java21 build: the fields of the JDK classes can not be reached
+     * by reflection anymore, and without it Gson fails with an InaccessibleObjectException for each message with a date.
+     */
+    private static class LocalDateTimeAdapter extends TypeAdapter<LocalDateTime> {
+
+        @Override
+        public void write(JsonWriter out, LocalDateTime value) throws IOException {
+            out.beginObject();
+
+            out.name("date").beginObject();
+            out.name("year").value(value.getYear());
+            out.name("month").value(value.getMonthValue());
+            out.name("day").value(value.getDayOfMonth());
+            out.endObject();
+
+            out.name("time").beginObject();
+            out.name("hour").value(value.getHour());
+            out.name("minute").value(value.getMinute());
+            out.name("second").value(value.getSecond());
+            out.name("nano").value(value.getNano());
+            out.endObject();
+
+            out.endObject();
+        }
+
+        @Override
+        public LocalDateTime read(JsonReader in) throws IOException {
+            int year = 0, month = 1, day = 1, hour = 0, minute = 0, second = 0, nano = 0;
+
+            in.beginObject();
+
+            while (in.hasNext()){
+                String name = in.nextName();
+
+                if ( !name.equals("date") && !name.equals("time") || in.peek() != JsonToken.BEGIN_OBJECT){
+                    in.skipValue();
+                    continue;
+                }
+
+                in.beginObject();
+
+                while (in.hasNext()){
+                    switch (in.nextName()){
+                        case "year": year = in.nextInt(); break;
+                        case "month": month = in.nextInt(); break;
+                        case "day": day = in.nextInt(); break;
+                        case "hour": hour = in.nextInt(); break;
+                        case "minute": minute = in.nextInt(); break;
+                        case "second": second = in.nextInt(); break;
+                        case "nano": nano = in.nextInt(); break;
+                        default: in.skipValue();
+                    }
+                }
+
+                in.endObject();
+            }
+
+            in.endObject();
+
+            return LocalDateTime.of(year, month, day, hour, minute, second, nano);
+        }
+    }
 }
@@ -0,0 +1,15 @@
+package com.hatechnology.apps.utilities;
+
+/**
+ * The way the threads of the library are created: the listeners, the writers and the receivers dispatch.
+ * The event loops are not created with it, they are few and always busy.
+ * @see BackgroundProcessHelper#setThreadProvider(ThreadProvider)
+ */
+public interface ThreadProvider {
+
+    /**
+     * @param task
+     * @return A thread not started yet that runs the task.
+     */
+    Thread newThread(Runnable task);
+}
@@ -0,0 +1,23 @@
+package com.hatechnology.apps.utilities;
+
+/**
+ * The virtual threads need Java 21. This is the version for the older ones,
+ * the java21 build puts another version of this class in the multi release jar.
+ */
+public final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isSupported() {
+        return false;
+    }
+
+    /**
+     * @return A provider of virtual threads.
+     * @throws UnsupportedOperationException If it is not the java21 build running on Java 21.
+     */
+    public static ThreadProvider provider() {
+        throw new UnsupportedOperationException("The virtual threads need the java21 build of this library running on Java 21!");
+    }
+}
@@ -0,0 +1,23 @@
+package com.hatechnology.apps.utilities;
+
+/**
+ * The version of this class for Java 21, where a blocked virtual thread does not hold a platform thread,
+ * so the blocking style handlers can be used with many thousands of connections and requests.
+ */
+public final class VirtualThreads {
+    private static final ThreadProvider PROVIDER = task -> Thread.ofVirtual().unstarted(task);
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isSupported() {
+        return true;
+    }
+
+    /**
+     * @return A provider of virtual threads.
+     */
+    public static ThreadProvider provider() {
+        return PROVIDER;
+    }
+}
@@ -0,0 +1,185 @@
+package com.hatechnology.apps.client_messages;
+
+import com.hatechnology.apps.core_messaging.SocketHost;
+import com.hatechnology.apps.core_messaging.SyncMessage;
+import com.hatechnology.apps.core_messaging.SyncRequest;
+import com.hatechnology.apps.core_messaging.SyncResponse;
+import com.hatechnology.apps.core_messaging.behaviors.OnMessageBehavior;
+import com.hatechnology.apps.exceptions.MessageTimeoutException;
+import com.hatechnology.apps.server_messages.SocketClientService;
+import com.hatechnology.apps.server_messages.SocketServerService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AsyncSocketClientTest {
+    private static final String ECHO_PATH = "echo";
+    private static final String SILENT_PATH = "silent";
+
+    private SocketServerService server;
+    private AsyncSocketClient client;
+    private int port;
+
+    @Before
+    public void connect() throws Exception {
+        port = freePort();
+
+        startServer();
+
+        List<SocketHost> hosts = new ArrayList<>();
+        hosts.add(new SocketHost("localhost", port));
+
+        client = new AsyncSocketClient("async-test", hosts);
+        client.start();
+
+        awaitConnection();
+    }
+
+    @After
+    public void disconnect() {
+        client.setKeepConnectionAlive(false);
+        client.disconnect(false);
+
+        server.stopServer();
+    }
+
+    @Test
+    public void completesWithTheResponse() throws Exception {
+        CompletableFuture<SyncMessage> future = client.sendRequestAsync(newRequest(ECHO_PATH, "hello"), 5);
+
+        SyncMessage message = future.get(5, TimeUnit.SECONDS);
+
+        assertTrue(message.getSyncResponse().isSuccess());
+        assertEquals("hello", message.getSyncResponse().getErrorMessage());
+    }
+
+    @Test
+    public void completesEachRequestWithItsOwnResponse() throws Exception {
+        List<CompletableFuture<SyncMessage>> futures = new ArrayList<>();
+
+        for (int i = 0; i < 100; i++){
+            futures.add(client.sendRequestAsync(newRequest(ECHO_PATH, "request " + i), 5));
+        }
+
+        for (int i = 0; i < futures.size(); i++){
+            assertEquals("request " + i, futures.get(i).get(5, TimeUnit.SECONDS).getSyncResponse().getErrorMessage());
+        }
+    }
+
+    @Test
+    public void failsWhenTheResponseDoesNotComeInTime() throws Exception {
+        CompletableFuture<SyncMessage> future = client.sendRequestAsync(newRequest(SILENT_PATH, "nobody answers"), 1);
+
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("The request should time out");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof MessageTimeoutException);
+        }
+    }
+
+    @Test
+    public void answersRightAwayWithoutConnection() throws Exception {
+        client.setKeepConnectionAlive(false);
+        client.disconnect(false);
+
+        CompletableFuture<SyncMessage> future = client.sendRequestAsync(newRequest(ECHO_PATH, "hello"), 5);
+
+        SyncMessage message = future.get(1, TimeUnit.SECONDS);
+
+        assertFalse(message.getSyncResponse().isSuccess());
+    }
+
+    @Test
+    public void waitsWhatTheServerAsksBeforeReconnecting() throws Exception {
+        client.setReconnectPolicy(ReconnectPolicy.fixed(50));
+
+        server.stopServer(1500);
+        long stoppedMillis = System.currentTimeMillis();
+
+        awaitFreePort();
+        startServer();
+
+        //The policy alone would reconnect in 50 ms
+        Thread.sleep(1000);
+        assertNull(server.getSocketClientByUniqueId("async-test"));
+
+        awaitConnection();
+
+        assertTrue(System.currentTimeMillis() - stoppedMillis >= 1400);
+    }
+
+    private void startServer() {
+        //Echo the text of the request in the error message of the response
+        List<OnMessageBehavior> receivers = new ArrayList<>();
+        receivers.add((message, isAuthenticated) -> {
+            if ( !ECHO_PATH.equals(message.getRequestPath()))
+                return;
+
+            SyncResponse response = new SyncResponse(true);
+            response.setErrorMessage(message.getSyncRequest().getText());
+
+            for (SocketClientService socketClientService: server.getmSocketClients().values()){
+                if (message.getSourceId().equals(socketClientService.getUniqueId()))
+                    socketClientService.reply(null, response, message);
+            }
+        });
+
+        server = new SocketServerService(port, receivers);
+        server.start();
+    }
+
+    private void awaitConnection() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+
+        //Until the server knows the id, it can not answer
+        while ( !client.isConnected() || server.getSocketClientByUniqueId("async-test") == null){
+            assertTrue("The client did not connect", System.currentTimeMillis() < deadline);
+
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * The port is released a bit after the server is stopped, when the thread accepting the connections wakes up.
+     */
+    private void awaitFreePort() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (true){
+            try (ServerSocket socket = new ServerSocket(port)){
+                return;
+            } catch (IOException e) {
+                assertTrue("The port was not released", System.currentTimeMillis() < deadline);
+
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private static SyncMessage newRequest(String path, String text) {
+        SyncRequest request = new SyncRequest(path);
+        request.setText(text);
+
+        SyncMessage message = new SyncMessage();
+        message.setSyncRequest(request);
+
+        return message;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)){
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.hatechnology.apps.core_messaging;
+
+import com.hatechnology.apps.utilities.JsonUtils;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BinaryMessageCodecTest {
+    private final MessageCodec codec = MessageCodecs.BINARY;
+
+    @Test
+    public void decodesTheMessagesItEncodes() throws IOException {
+        SyncMessage message = newMessage();
+
+        SyncMessage decoded = decode(encode(message));
+
+        assertEquals(toJson(message), toJson(decoded));
+        assertEquals("héllo 😀", decoded.getSyncRequest().getText());
+        assertEquals(3, decoded.getSyncRequest().getFiles().size());
+    }
+
+    @Test
+    public void decodesAMessageWithoutRequestNorResponse() throws IOException {
+        SyncMessage message = new SyncMessage();
+        message.setTo("somebody");
+
+        SyncMessage decoded = decode(encode(message));
+
+        assertFalse(decoded.hasSyncRequest());
+        assertFalse(decoded.hasSyncResponse());
+        assertEquals(message.getId(), decoded.getId());
+        assertEquals("somebody", decoded.getTo());
+    }
+
+    @Test
+    public void failsWithATruncatedMessage() throws IOException {
+        byte[] data = encode(newMessage());
+
+        for (int length = 0; length < data.length; length++){
+            try {
+                decodeCompletely(Arrays.copyOf(data, length));
+                fail("The message cut at " + length + " bytes was decoded");
+            } catch (IOException expected) {
+
+            }
+        }
+    }
+
+    @Test
+    public void failsWithAnotherFormat() {
+        byte[] json = "{\"id\":\"1\"}".getBytes();
+
+        try {
+            decode(json);
+            fail("A JSON message was decoded");
+        } catch (IOException expected) {
+
+        }
+    }
+
+    @Test
+    public void failsJustWithIOExceptionOnGarbage() {
+        Random random = new Random(1);
+        byte[] valid = encode(newMessage());
+
+        for (int i = 0; i < 10000; i++){
+            byte[] data = valid.clone();
+
+            //A few bytes changed, so it goes beyond the first checks
+            for (int j = 0; j < 3; j++){
+                data[1 + random.nextInt(data.length - 1)] = (byte) random.nextInt();
+            }
+
+            try {
+                decodeCompletely(data);
+            } catch (IOException expected) {
+
+            }
+        }
+    }
+
+    @Test
+    public void doesNotTrustTheCountOfFiles() throws IOException {
+        SyncMessage message = new SyncMessage();
+        message.setSyncResponse(new SyncResponse(true));
+
+        byte[] data = encode(message);
+        int sectionStart = data.length - 4;
+
+        //The section of the response is its flags, no error message and no files
+        assertEquals(4, data[sectionStart]);
+        assertEquals(0, data[data.length - 1]);
+
+        //The same section claiming two billion files
+        byte[] forged = Arrays.copyOf(data, data.length + 4);
+        forged[sectionStart] = 8;
+        System.arraycopy(new byte[]{(byte) 0xF0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07}, 0, forged, data.length - 1, 5);
+
+        SyncMessage decoded = decode(forged);
+
+        try {
+            decoded.getSyncResponse();
+            fail("The response was decoded");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void failsWithALengthThatDoesNotFitInAnInt() {
+        //The length of the id is 2^32 + 1, cast to int it would be 1, an empty string
+        byte[] data = {(byte) 0xB1, 0, (byte) 0x81, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x10, 0, 0, 0, 0, 0};
+
+        try {
+            decode(data);
+            fail("A length over Integer.MAX_VALUE was decoded");
+        } catch (IOException expected) {
+
+        }
+    }
+
+    @Test
+    public void failsWithFlagsThatDoNotFitInAnInt() {
+        //The flags are 2^32 + 1, cast to int they would be just the first one
+        byte[] data = {(byte) 0xB1, (byte) 0x81, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x10, 0, 0, 0, 0, 0, 0};
+
+        try {
+            decode(data);
+            fail("Flags over Integer.MAX_VALUE were decoded");
+        } catch (IOException expected) {
+
+        }
+    }
+
+    private SyncMessage newMessage() {
+        SyncRequest request = new SyncRequest("path");
+        request.setText("héllo 😀");
+
+        Authentication authentication = new Authentication();
+        authentication.setUser("user");
+        authentication.setPassword("password");
+        request.setAuthentication(authentication);
+
+        //Raw content, content that is not base64 and no content
+        List<SyncFileBase64> files = new ArrayList<>();
+
+        for (String content: new String[]{"QUJD", "not base64!", null}){
+            SyncFileBase64 file = new SyncFileBase64();
+            file.setName("file");
+            file.setEncodedContent(content);
+
+            files.add(file);
+        }
+
+        request.setFiles(files);
+
+        SyncResponse response = new SyncResponse(false);
+        response.setErrorMessage("error");
+
+        SyncMessage message = new SyncMessage();
+        message.setSyncRequest(request);
+        message.setSyncResponse(response);
+        message.setTo("somebody");
+        message.setTopic("topic");
+        message.setSecureDelivery(true);
+
+        return message;
+    }
+
+    private byte[] encode(SyncMessage message) {
+        MessageBuffer buffer = new MessageBuffer();
+
+        try {
+            codec.encode(message, buffer);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+
+        return Arrays.copyOf(buffer.getData(), buffer.size());
+    }
+
+    private SyncMessage decode(byte[] data) throws IOException {
+        return codec.decode(data, 0, data.length);
+    }
+
+    /**
+     * Decode also the request and the response, which are decoded when they are read.
+     */
+    private SyncMessage decodeCompletely(byte[] data) throws IOException {
+        SyncMessage message = decode(data);
+        message._decodePayloads(null);
+
+        return message;
+    }
+
+    private static String toJson(SyncMessage message) {
+        message.getSyncRequest();
+        message.getSyncResponse();
+
+        return JsonUtils.convertToJson(message);
+    }
+}
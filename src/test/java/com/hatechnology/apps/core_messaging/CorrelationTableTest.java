@@ -0,0 +1,126 @@
+package com.hatechnology.apps.core_messaging;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CorrelationTableTest {
+    //The size of the ring of the table
+    private static final long RING_SIZE = 1024;
+
+    @Test
+    public void findsTheValueByItsId() {
+        CorrelationTable<String> table = new CorrelationTable<>();
+
+        assertNull(table.get(1));
+
+        table.put(1, "first");
+        table.put(2, "second");
+
+        assertEquals("first", table.get(1));
+        assertEquals("second", table.get(2));
+        assertNull(table.get(3));
+    }
+
+    @Test
+    public void keepsTheIdsOfTheSameSlot() {
+        CorrelationTable<String> table = new CorrelationTable<>();
+
+        table.put(5, "ring");
+        table.put(5 + RING_SIZE, "overflow");
+
+        assertEquals("ring", table.get(5));
+        assertEquals("overflow", table.get(5 + RING_SIZE));
+
+        assertTrue(table.remove(5 + RING_SIZE, "overflow"));
+        assertNull(table.get(5 + RING_SIZE));
+        assertEquals("ring", table.get(5));
+    }
+
+    @Test
+    public void removesJustTheValueItWasGiven() {
+        CorrelationTable<String> table = new CorrelationTable<>();
+
+        table.put(7, "request");
+
+        assertFalse(table.remove(7, "other request"));
+        assertTrue(table.remove(7, "request"));
+        assertFalse(table.remove(7, "request"));
+        assertNull(table.get(7));
+    }
+
+    @Test
+    public void reusesTheIdOfARemovedValue() {
+        CorrelationTable<String> table = new CorrelationTable<>();
+
+        table.put(9, "old");
+        assertTrue(table.remove(9, "old"));
+
+        table.put(9, "new");
+
+        //The late removal of the old one must not take the new one
+        assertFalse(table.remove(9, "old"));
+        assertEquals("new", table.get(9));
+    }
+
+    @Test
+    public void reusesTheSlotAfterATurnOfTheIds() {
+        CorrelationTable<String> table = new CorrelationTable<>();
+
+        table.put(3, "first turn");
+        assertTrue(table.remove(3, "first turn"));
+
+        table.put(3 + RING_SIZE, "second turn");
+
+        assertNull(table.get(3));
+        assertEquals("second turn", table.get(3 + RING_SIZE));
+    }
+
+    @Test
+    public void goesThroughTheRingAndTheOverflow() {
+        CorrelationTable<String> table = new CorrelationTable<>();
+
+        table.put(1, "ring");
+        table.put(1 + RING_SIZE, "overflow");
+
+        List<String> values = new ArrayList<>();
+        table.forEach(values::add);
+
+        assertEquals(2, values.size());
+        assertTrue(values.contains("ring"));
+        assertTrue(values.contains("overflow"));
+    }
+
+    @Test
+    public void takesTheIdsOfManyThreads() throws InterruptedException {
+        CorrelationTable<Long> table = new CorrelationTable<>();
+        AtomicInteger lost = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(4);
+
+        for (int t = 0; t < 4; t++){
+            long first = t * 10000L;
+
+            new Thread(() -> {
+                for (long id = first; id < first + 10000; id++){
+                    Long value = id;
+
+                    table.put(id, value);
+
+                    if (table.get(id) != value || !table.remove(id, value))
+                        lost.incrementAndGet();
+                }
+
+                done.countDown();
+            }).start();
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, lost.get());
+    }
+}
@@ -0,0 +1,296 @@
+package com.hatechnology.apps.core_messaging;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class DispatchExecutorTest {
+    private DispatchExecutor executor;
+
+    @After
+    public void shutdown() {
+        if (executor != null)
+            executor.shutdown();
+    }
+
+    @Test
+    public void runsTheTasksInTheWorkers() throws InterruptedException {
+        executor = new DispatchExecutor("test", 2, 10, SaturationPolicy.CALLER_RUNS);
+
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicReference<Thread> worker = new AtomicReference<>();
+
+        executor.execute(() -> {
+            worker.set(Thread.currentThread());
+            done.countDown();
+        });
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertNotSame(Thread.currentThread(), worker.get());
+        assertTrue(worker.get().getName().startsWith("test-dispatch-"));
+    }
+
+    @Test
+    public void aFailedTaskDoesNotStopTheOtherOnes() throws InterruptedException {
+        executor = new DispatchExecutor("test", 1, 10, SaturationPolicy.CALLER_RUNS);
+
+        CountDownLatch done = new CountDownLatch(1);
+
+        executor.execute(() -> {
+            throw new IllegalStateException("Expected by the test");
+        });
+        executor.execute(done::countDown);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void callerRunsTheTaskWhenSaturated() throws InterruptedException {
+        executor = new DispatchExecutor("test", 1, 1, SaturationPolicy.CALLER_RUNS);
+
+        CountDownLatch release = saturate();
+        AtomicReference<Thread> runner = new AtomicReference<>();
+
+        executor.execute(() -> runner.set(Thread.currentThread()));
+
+        assertSame(Thread.currentThread(), runner.get());
+        assertEquals(1, executor.getRejectedTasks());
+
+        release.countDown();
+    }
+
+    @Test
+    public void discardsTheTaskWhenSaturated() throws InterruptedException {
+        executor = new DispatchExecutor("test", 1, 1, SaturationPolicy.DISCARD);
+
+        CountDownLatch release = saturate();
+        AtomicInteger runs = new AtomicInteger();
+
+        executor.execute(runs::incrementAndGet);
+
+        release.countDown();
+        executor.shutdown();
+
+        assertTrue(awaitTermination());
+        assertEquals(0, runs.get());
+        assertEquals(1, executor.getRejectedTasks());
+    }
+
+    @Test
+    public void doesNotTakeTasksAfterShutdown() throws InterruptedException {
+        executor = new DispatchExecutor("test", 1, 10, SaturationPolicy.CALLER_RUNS);
+        executor.shutdown();
+
+        AtomicInteger runs = new AtomicInteger();
+
+        executor.execute(runs::incrementAndGet);
+
+        assertTrue(executor.isShutdown());
+        assertEquals(0, runs.get());
+    }
+
+    @Test
+    public void runsTheTasksOfAKeyInOrder() throws InterruptedException {
+        executor = new DispatchExecutor("test", 4, 10000, SaturationPolicy.CALLER_RUNS);
+
+        List<Integer> first = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> second = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(2000);
+
+        for (int i = 0; i < 1000; i++){
+            int value = i;
+
+            executor.execute("first", () -> {
+                first.add(value);
+                done.countDown();
+            });
+            executor.execute("second", () -> {
+                second.add(value);
+                done.countDown();
+            });
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 1000; i++){
+            assertEquals(i, (int) first.get(i));
+            assertEquals(i, (int) second.get(i));
+        }
+    }
+
+    @Test
+    public void runsDifferentKeysInParallel() throws InterruptedException {
+        executor = new DispatchExecutor("test", 2, 10, SaturationPolicy.CALLER_RUNS);
+
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+
+        executor.execute("blocked", () -> await(release));
+        executor.execute("free", done::countDown);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        release.countDown();
+    }
+
+    @Test
+    public void callerWaitsForRoomWhenSaturatedWithAKey() throws InterruptedException {
+        executor = new DispatchExecutor("test", 1, 1, SaturationPolicy.CALLER_RUNS);
+
+        CountDownLatch release = new CountDownLatch(1);
+        List<Integer> runs = Collections.synchronizedList(new ArrayList<>());
+
+        blockKey("key", release);
+        executor.execute("key", () -> runs.add(1));
+
+        Thread caller = new Thread(() -> executor.execute("key", () -> runs.add(2)));
+        caller.start();
+
+        //It can not run the task itself without breaking the order
+        caller.join(200);
+        assertTrue(caller.isAlive());
+
+        release.countDown();
+        caller.join(5000);
+
+        assertFalse(caller.isAlive());
+        assertTrue(awaitTermination());
+        assertEquals(2, runs.size());
+        assertEquals(1, (int) runs.get(0));
+        assertEquals(2, (int) runs.get(1));
+    }
+
+    @Test
+    public void discardsTheTaskWhenSaturatedWithAKey() throws InterruptedException {
+        executor = new DispatchExecutor("test", 1, 1, SaturationPolicy.DISCARD);
+
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger runs = new AtomicInteger();
+
+        blockKey("key", release);
+        executor.execute("key", runs::incrementAndGet);
+        executor.execute("key", runs::incrementAndGet);
+
+        release.countDown();
+
+        assertTrue(awaitTermination());
+        assertEquals(1, runs.get());
+        assertEquals(1, executor.getRejectedTasks());
+    }
+
+    @Test
+    public void tellsTheCallerToPauseInsteadOfWaiting() throws InterruptedException {
+        executor = new DispatchExecutor("test", 1, 2, SaturationPolicy.CALLER_RUNS);
+
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch resumed = new CountDownLatch(1);
+        List<Integer> runs = Collections.synchronizedList(new ArrayList<>());
+
+        blockKey("key", release);
+
+        assertTrue(executor.execute("key", () -> runs.add(1), resumed::countDown));
+        assertTrue(executor.execute("key", () -> runs.add(2), resumed::countDown));
+
+        //Queued anyway to keep the order, but the caller must stop
+        assertFalse(executor.execute("key", () -> runs.add(3), resumed::countDown));
+        assertEquals(1, resumed.getCount());
+
+        release.countDown();
+
+        assertTrue(resumed.await(5, TimeUnit.SECONDS));
+        assertTrue(awaitTermination());
+        assertEquals(3, runs.size());
+
+        for (int i = 0; i < 3; i++){
+            assertEquals(i + 1, (int) runs.get(i));
+        }
+    }
+
+    @Test
+    public void pausesTheCallerOfTasksWithoutAKey() throws InterruptedException {
+        executor = new DispatchExecutor("test", 1, 2, SaturationPolicy.PAUSE_READING);
+
+        CountDownLatch release = saturate();
+        CountDownLatch resumed = new CountDownLatch(1);
+        List<Thread> runners = Collections.synchronizedList(new ArrayList<>());
+
+        assertTrue(executor.execute(null, () -> runners.add(Thread.currentThread()), resumed::countDown));
+
+        //Neither run by the caller nor discarded, it waits for room
+        assertFalse(executor.execute(null, () -> runners.add(Thread.currentThread()), resumed::countDown));
+        assertTrue(runners.isEmpty());
+        assertEquals(1, resumed.getCount());
+        assertEquals(3, executor.getQueuedTasks());
+
+        release.countDown();
+
+        assertTrue(resumed.await(5, TimeUnit.SECONDS));
+        assertTrue(awaitTermination());
+        assertEquals(2, runners.size());
+        assertFalse(runners.contains(Thread.currentThread()));
+    }
+
+    /**
+     * Keep the only worker busy and fill the queue.
+     * @return Count it down to let the worker go.
+     */
+    private CountDownLatch saturate() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        executor.execute(() -> {
+            started.countDown();
+            await(release);
+        });
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        executor.execute(() -> await(release));
+
+        return release;
+    }
+
+    /**
+     * Keep the only worker busy with a task of the key, it no longer takes a place in the queue.
+     */
+    private void blockKey(Object key, CountDownLatch release) throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+
+        executor.execute(key, () -> {
+            started.countDown();
+            await(release);
+        });
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+    }
+
+    private boolean awaitTermination() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (executor.getActiveWorkers() > 0 || executor.getQueuedTasks() > 0){
+            if (System.currentTimeMillis() > deadline)
+                return false;
+
+            Thread.sleep(10);
+        }
+
+        return true;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
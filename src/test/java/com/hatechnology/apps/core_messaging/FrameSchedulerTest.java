@@ -0,0 +1,248 @@
+package com.hatechnology.apps.core_messaging;
+
+import com.hatechnology.apps.core_messaging.framing.Frame;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class FrameSchedulerTest {
+
+    @Test
+    public void interleavesTheFragmentsOfTheStreams() {
+        FrameScheduler scheduler = new FrameScheduler();
+
+        scheduler.submit(new OutboundStream(new byte[30], 1, 10));
+        scheduler.submit(new OutboundStream(new byte[30], 2, 10));
+        scheduler.submit(message(5));
+
+        int[] streamIds = {1, 2, 0, 1, 2, 1, 2};
+
+        for (int streamId: streamIds){
+            assertEquals(streamId, scheduler.poll().getStreamId());
+        }
+
+        assertNull(scheduler.poll());
+        assertTrue(scheduler.isEmpty());
+    }
+
+    @Test
+    public void doesNotOpenMoreStreamsThanTheLimit() {
+        FrameScheduler scheduler = new FrameScheduler();
+        int streams = FrameScheduler.DEFAULT_MAX_OPEN_STREAMS + 5;
+
+        for (int i = 1; i <= streams; i++){
+            scheduler.submit(new OutboundStream(new byte[30], i, 10));
+        }
+
+        //A small message is not held behind the big ones
+        scheduler.submit(message(5));
+
+        assertEquals(streams + 1, scheduler.getQueuedMessages());
+
+        Set<Integer> open = new HashSet<>();
+        boolean smallMessageWritten = false;
+        int maxOpen = 0;
+        Frame frame;
+
+        while ((frame = scheduler.poll()) != null){
+            if (frame.getStreamId() == 0){
+                smallMessageWritten = true;
+                assertTrue(open.size() <= FrameScheduler.DEFAULT_MAX_OPEN_STREAMS);
+                continue;
+            }
+
+            if (frame.isEndOfStream())
+                open.remove(frame.getStreamId());
+            else
+                open.add(frame.getStreamId());
+
+            maxOpen = Math.max(maxOpen, open.size());
+        }
+
+        assertTrue(smallMessageWritten);
+        assertEquals(FrameScheduler.DEFAULT_MAX_OPEN_STREAMS, maxOpen);
+        assertTrue(open.isEmpty());
+    }
+
+    @Test
+    public void givesThePlaceOfADroppedStreamToAHeldOne() {
+        FrameScheduler scheduler = new FrameScheduler();
+
+        for (int i = 1; i <= FrameScheduler.DEFAULT_MAX_OPEN_STREAMS + 1; i++){
+            OutboundStream stream = new OutboundStream(new byte[30], i, 10);
+            stream.setDroppable(true);
+
+            scheduler.submit(stream);
+        }
+
+        assertTrue(scheduler.dropOldest());
+
+        int written = 0;
+
+        while (scheduler.poll() != null){
+            written++;
+        }
+
+        assertEquals(FrameScheduler.DEFAULT_MAX_OPEN_STREAMS * 3, written);
+    }
+
+    @Test
+    public void doesNotOpenMoreBytesThanTheOtherEndpointAssembles() throws IOException {
+        FrameScheduler scheduler = new FrameScheduler();
+        scheduler.setStreamLimits(4, 100);
+
+        //Each one fits, both at the same time do not
+        scheduler.submit(new OutboundStream(new byte[60], 1, 10));
+        scheduler.submit(new OutboundStream(new byte[60], 2, 10));
+        scheduler.submit(message(5));
+
+        StreamAssembler assembler = new StreamAssembler(4, 100);
+        int completed = 0;
+        Frame frame;
+
+        while ((frame = scheduler.poll()) != null){
+            if (frame.isStream())
+                frame = assembler.append(frame);
+
+            if (frame != null)
+                completed++;
+        }
+
+        assertEquals(3, completed);
+        assertTrue(scheduler.isEmpty());
+    }
+
+    @Test
+    public void opensTheHeldStreamsWhenTheLimitsAreTold() {
+        FrameScheduler scheduler = new FrameScheduler();
+        scheduler.setStreamLimits(1, 1000);
+
+        scheduler.submit(new OutboundStream(new byte[30], 1, 10));
+        scheduler.submit(new OutboundStream(new byte[30], 2, 10));
+
+        scheduler.setStreamLimits(2, 1000);
+
+        assertEquals(1, scheduler.poll().getStreamId());
+        assertEquals(2, scheduler.poll().getStreamId());
+    }
+
+    @Test
+    public void isNotWritableFromTheHighWatermarkOfBytesToTheLowOne() {
+        FrameScheduler scheduler = new FrameScheduler();
+        scheduler.setWatermarks(100, 300, Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+        scheduler.submit(message(150));
+        assertTrue(scheduler.isWritable());
+
+        scheduler.submit(message(150));
+        assertFalse(scheduler.isWritable());
+        assertEquals(300, scheduler.getQueuedBytes());
+
+        //Still over the low watermark
+        scheduler.poll();
+        assertFalse(scheduler.isWritable());
+
+        scheduler.poll();
+        assertTrue(scheduler.isWritable());
+        assertEquals(0, scheduler.getQueuedBytes());
+    }
+
+    @Test
+    public void isNotWritableFromTheHighWatermarkOfMessagesToTheLowOne() {
+        FrameScheduler scheduler = new FrameScheduler();
+        scheduler.setWatermarks(Long.MAX_VALUE, Long.MAX_VALUE, 1, 3);
+
+        scheduler.submit(message(10));
+        scheduler.submit(message(10));
+        assertTrue(scheduler.isWritable());
+
+        scheduler.submit(message(10));
+        assertFalse(scheduler.isWritable());
+        assertTrue(scheduler.isFull());
+
+        scheduler.poll();
+        assertFalse(scheduler.isWritable());
+        assertFalse(scheduler.isFull());
+
+        scheduler.poll();
+        assertTrue(scheduler.isWritable());
+    }
+
+    @Test
+    public void stopsWaitingForWritableAfterTheTimeout() throws InterruptedException {
+        FrameScheduler scheduler = new FrameScheduler();
+        scheduler.setWatermarks(0, 10, Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+        scheduler.submit(message(10));
+
+        assertFalse(scheduler.awaitWritable(50));
+    }
+
+    @Test
+    public void wakesUpTheSendersWaitingForWritable() throws InterruptedException {
+        FrameScheduler scheduler = new FrameScheduler();
+        scheduler.setWatermarks(0, 10, Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+        scheduler.submit(message(10));
+
+        Thread writer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {
+
+            }
+
+            scheduler.poll();
+        });
+        writer.start();
+
+        assertTrue(scheduler.awaitWritable(5000));
+    }
+
+    @Test
+    public void dropsJustTheDroppableMessagesNotStarted() {
+        FrameScheduler scheduler = new FrameScheduler();
+
+        OutboundStream started = new OutboundStream(new byte[100], 1, 10);
+        started.setDroppable(true);
+
+        OutboundStream secure = new OutboundStream(new byte[10]);
+
+        OutboundStream droppable = new OutboundStream(new byte[10]);
+        droppable.setDroppable(true);
+
+        scheduler.submit(started);
+        scheduler.submit(secure);
+        scheduler.submit(droppable);
+
+        //The first fragment of the stream is written
+        scheduler.poll();
+
+        assertTrue(scheduler.dropOldest());
+        assertFalse(scheduler.dropOldest());
+
+        assertEquals(2, scheduler.getQueuedMessages());
+        assertEquals(90 + 10, scheduler.getQueuedBytes());
+    }
+
+    @Test
+    public void clearsEverything() {
+        FrameScheduler scheduler = new FrameScheduler();
+        scheduler.setWatermarks(0, 10, 0, 1);
+
+        scheduler.submit(message(10));
+        scheduler.clear();
+
+        assertTrue(scheduler.isEmpty());
+        assertTrue(scheduler.isWritable());
+        assertNull(scheduler.poll());
+    }
+
+    private static OutboundStream message(int length) {
+        return new OutboundStream(new byte[length]);
+    }
+}
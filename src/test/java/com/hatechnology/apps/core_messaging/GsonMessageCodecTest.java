@@ -0,0 +1,164 @@
+package com.hatechnology.apps.core_messaging;
+
+import com.hatechnology.apps.utilities.JsonUtils;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class GsonMessageCodecTest {
+    private final MessageCodec codec = MessageCodecs.GSON;
+
+    @Test
+    public void decodesTheMessagesItEncodes() throws IOException {
+        SyncMessage message = newMessage();
+
+        SyncMessage decoded = decode(encode(message));
+
+        assertEquals(toJson(message), toJson(decoded));
+        assertEquals("héllo 😀", decoded.getSyncRequest().getText());
+        assertEquals("error", decoded.getSyncResponse().getErrorMessage());
+    }
+
+    @Test
+    public void writesTheSameJsonAsTheLegacyEndpoints() {
+        SyncMessage message = newMessage();
+
+        assertEquals(toJson(message), new String(encode(message), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void decodesAMessageInTheMiddleOfTheBuffer() throws IOException {
+        SyncMessage message = newMessage();
+        byte[] data = encode(message);
+        byte[] buffer = new byte[data.length + 20];
+        Arrays.fill(buffer, (byte) '#');
+        System.arraycopy(data, 0, buffer, 10, data.length);
+
+        SyncMessage decoded = codec.decode(buffer, 10, data.length);
+
+        assertEquals(toJson(message), toJson(decoded));
+    }
+
+    @Test
+    public void writesTheReceivedPayloadsAsTheyAre() throws IOException {
+        byte[] data = encode(newMessage());
+
+        //Forwarded without reading the request nor the response
+        SyncMessage decoded = decode(data);
+
+        assertArrayEquals(data, encode(decoded));
+    }
+
+    @Test
+    public void failsWithMalformedJson() {
+        String[] inputs = {
+                "",
+                "   ",
+                "null",
+                "[1,2]",
+                "{\"id\":[1]}",
+                "{\"id\":\"1\"",
+                "{\"syncRequest\":{\"path\":{}}}",
+                "{\"syncRequest\":[1]}",
+                "{\"syncResponse\":{\"success\":[]}}"
+        };
+
+        for (String input: inputs){
+            try {
+                decodeCompletely(input.getBytes(StandardCharsets.UTF_8));
+                fail("The message " + input + " was decoded");
+            } catch (IOException expected) {
+
+            }
+        }
+    }
+
+    @Test
+    public void failsWithATruncatedMessage() {
+        byte[] data = encode(newMessage());
+
+        for (int length = 0; length < data.length; length++){
+            try {
+                decodeCompletely(Arrays.copyOf(data, length));
+                fail("The message cut at " + length + " bytes was decoded");
+            } catch (IOException expected) {
+
+            }
+        }
+    }
+
+    @Test
+    public void failsJustWithIOExceptionOnGarbage() {
+        Random random = new Random(1);
+        byte[] valid = encode(newMessage());
+
+        for (int i = 0; i < 10000; i++){
+            byte[] data = valid.clone();
+
+            for (int j = 0; j < 3; j++){
+                data[random.nextInt(data.length)] = (byte) random.nextInt();
+            }
+
+            try {
+                decodeCompletely(data);
+            } catch (IOException expected) {
+
+            }
+        }
+    }
+
+    private SyncMessage newMessage() {
+        SyncRequest request = new SyncRequest("path");
+        request.setText("héllo 😀");
+
+        SyncResponse response = new SyncResponse(false);
+        response.setErrorMessage("error");
+
+        SyncMessage message = new SyncMessage();
+        message._setId("message-id");
+        message.setSyncRequest(request);
+        message.setSyncResponse(response);
+        message.setTo("somebody");
+        message.setTopic("topic");
+
+        return message;
+    }
+
+    private byte[] encode(SyncMessage message) {
+        MessageBuffer buffer = new MessageBuffer();
+
+        try {
+            codec.encode(message, buffer);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+
+        return Arrays.copyOf(buffer.getData(), buffer.size());
+    }
+
+    private SyncMessage decode(byte[] data) throws IOException {
+        return codec.decode(data, 0, data.length);
+    }
+
+    /**
+     * Decode also the request and the response, which are decoded when they are read.
+     */
+    private SyncMessage decodeCompletely(byte[] data) throws IOException {
+        SyncMessage message = decode(data);
+        message._decodePayloads(null);
+
+        return message;
+    }
+
+    private static String toJson(SyncMessage message) {
+        message.getSyncRequest();
+        message.getSyncResponse();
+
+        return JsonUtils.convertToJson(message);
+    }
+}
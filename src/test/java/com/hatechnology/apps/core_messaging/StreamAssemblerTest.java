@@ -0,0 +1,105 @@
+package com.hatechnology.apps.core_messaging;
+
+import com.hatechnology.apps.core_messaging.framing.Frame;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class StreamAssemblerTest {
+
+    @Test
+    public void putsTogetherTheInterleavedStreams() throws IOException {
+        StreamAssembler assembler = new StreamAssembler(4, 1024);
+
+        assertNull(assembler.append(fragment(1, "hel", false)));
+        assertNull(assembler.append(fragment(2, "wor", false)));
+        assertNull(assembler.append(fragment(1, "lo ", false)));
+
+        Frame second = assembler.append(fragment(2, "ld", true));
+        Frame first = assembler.append(fragment(1, "there", true));
+
+        assertEquals("world", text(second));
+        assertEquals("hello there", text(first));
+        assertFalse(first.isStream());
+    }
+
+    @Test
+    public void returnsTheStreamsOfOneFragment() throws IOException {
+        StreamAssembler assembler = new StreamAssembler(1, 1024);
+
+        Frame frame = fragment(1, "alone", true);
+
+        assertSame(frame, assembler.append(frame));
+    }
+
+    @Test
+    public void failsWithMoreStreamsOpenThanTheLimit() throws IOException {
+        StreamAssembler assembler = new StreamAssembler(2, 1024);
+
+        assembler.append(fragment(1, "a", false));
+        assembler.append(fragment(2, "b", false));
+
+        try {
+            assembler.append(fragment(3, "c", false));
+            fail("The third stream should be refused");
+        } catch (IOException expected) {
+
+        }
+    }
+
+    @Test
+    public void acceptsNewStreamsWhenTheOpenOnesFinish() throws IOException {
+        StreamAssembler assembler = new StreamAssembler(1, 1024);
+
+        for (int streamId = 1; streamId <= 10; streamId++){
+            assertNull(assembler.append(fragment(streamId, "a", false)));
+            assertEquals("ab", text(assembler.append(fragment(streamId, "b", true))));
+        }
+    }
+
+    @Test
+    public void failsWithMoreBytesThanTheLimit() throws IOException {
+        StreamAssembler assembler = new StreamAssembler(4, 10);
+
+        assembler.append(fragment(1, "12345", false));
+        assembler.append(fragment(2, "12345", false));
+
+        try {
+            assembler.append(fragment(1, "6", false));
+            fail("The bytes over the limit should be refused");
+        } catch (IOException expected) {
+
+        }
+    }
+
+    @Test
+    public void releasesTheBytesOfTheFinishedStreams() throws IOException {
+        StreamAssembler assembler = new StreamAssembler(4, 10);
+
+        for (int streamId = 1; streamId <= 10; streamId++){
+            assembler.append(fragment(streamId, "12345", false));
+            assertEquals("1234567890", text(assembler.append(fragment(streamId, "67890", true))));
+        }
+    }
+
+    private static Frame fragment(int streamId, String text, boolean last) {
+        byte flags = Frame.FLAG_STREAM;
+
+        if (last)
+            flags |= Frame.FLAG_END_STREAM;
+
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+
+        return new Frame(flags, streamId, data, 0, data.length);
+    }
+
+    private static String text(Frame frame) {
+        byte[] data = Arrays.copyOfRange(frame.getData(), frame.getOffset(), frame.getOffset() + frame.getLength());
+
+        return new String(data, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,187 @@
+package com.hatechnology.apps.core_messaging.framing;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+public class FrameCompressorTest {
+    private final FrameCompressor compressor = new FrameCompressor(64, Deflater.BEST_SPEED, 1024 * 1024);
+
+    @Test
+    public void decompressesTheFramesItCompresses() throws IOException {
+        byte[] payload = repeated(100 * 1024);
+        Frame frame = new Frame((byte) (Frame.FLAG_STREAM | Frame.FLAG_END_STREAM), 42, payload, 0, payload.length);
+
+        Frame compressed = compressor.compress(frame);
+
+        assertTrue(compressed.isCompressed());
+        assertTrue(compressed.getLength() < payload.length);
+        assertEquals(42, compressed.getStreamId());
+
+        Frame decompressed = compressor.decompress(copy(compressed));
+
+        assertFalse(decompressed.isCompressed());
+        assertTrue(decompressed.isStream());
+        assertTrue(decompressed.isEndOfStream());
+        assertEquals(42, decompressed.getStreamId());
+        assertArrayEquals(payload, decompressed.getPayload());
+        assertEquals(1, compressor.getCompressedFrames());
+        assertEquals(1, compressor.getDecompressedFrames());
+    }
+
+    @Test
+    public void decompressesFramesOfDifferentSizesWithTheSameBuffers() throws IOException {
+        for (int length: new int[]{64, 300 * 1024, 1000, 8 * 1024 + 1, 64}){
+            byte[] payload = repeated(length);
+
+            Frame decompressed = compressor.decompress(copy(compressor.compress(new Frame(payload))));
+
+            assertArrayEquals(payload, decompressed.getPayload());
+        }
+    }
+
+    @Test
+    public void skipsTheSmallFrames() {
+        Frame frame = new Frame(repeated(63));
+
+        assertSame(frame, compressor.compress(frame));
+        assertEquals(1, compressor.getSkippedFrames());
+    }
+
+    @Test
+    public void skipsTheFramesThatDoNotGetSmaller() {
+        byte[] payload = new byte[4096];
+        new Random(1).nextBytes(payload);
+
+        Frame frame = new Frame(payload);
+
+        assertSame(frame, compressor.compress(frame));
+        assertEquals(0, compressor.getCompressedFrames());
+    }
+
+    @Test
+    public void skipsTheFramesAlreadyCompressed() {
+        byte[] payload = repeated(4096);
+        Frame frame = new Frame(Frame.FLAG_COMPRESSED, 0, payload, 0, payload.length);
+
+        assertSame(frame, compressor.compress(frame));
+    }
+
+    @Test
+    public void failsWhenTheDeclaredLengthIsOverTheLimit() throws IOException {
+        byte[] payload = repeated(64 * 1024);
+        Frame compressed = copy(compressor.compress(new Frame(payload)));
+
+        try {
+            compressor.decompress(compressed, 1024);
+            fail("A frame over the limit was decompressed");
+        } catch (IOException expected) {
+
+        }
+
+        //The limit of the compressor is above the one of the call
+        FrameCompressor small = new FrameCompressor(64, Deflater.BEST_SPEED, 1024);
+
+        try {
+            small.decompress(compressed, Integer.MAX_VALUE);
+            fail("A frame over the max frame length was decompressed");
+        } catch (IOException expected) {
+
+        }
+    }
+
+    @Test
+    public void failsWhenTheDataInflatesToMoreThanDeclared() {
+        //A bomb: a few KB that inflate to 16 MB, declaring just 1 KB
+        Frame bomb = copy(new FrameCompressor(64, Deflater.BEST_COMPRESSION, 32 * 1024 * 1024).compress(new Frame(new byte[16 * 1024 * 1024])));
+        setDeclaredLength(bomb, 1024);
+
+        try {
+            compressor.decompress(bomb);
+            fail("The bomb was decompressed");
+        } catch (IOException expected) {
+
+        }
+    }
+
+    @Test
+    public void failsWhenTheDataInflatesToLessThanDeclared() {
+        Frame compressed = copy(compressor.compress(new Frame(repeated(4096))));
+        setDeclaredLength(compressed, 4097);
+
+        try {
+            compressor.decompress(compressed);
+            fail("A frame shorter than declared was decompressed");
+        } catch (IOException expected) {
+
+        }
+    }
+
+    @Test
+    public void failsJustWithIOExceptionOnGarbage() throws IOException {
+        Random random = new Random(1);
+        Frame valid = copy(compressor.compress(new Frame(repeated(4096))));
+
+        for (int length = 0; length < 4; length++){
+            try {
+                compressor.decompress(new Frame(Frame.FLAG_COMPRESSED, 0, new byte[length], 0, length));
+                fail("A frame without length was decompressed");
+            } catch (IOException expected) {
+
+            }
+        }
+
+        for (int i = 0; i < 10000; i++){
+            byte[] data = valid.getPayload().clone();
+
+            //The declared length is kept, so it goes beyond the first checks
+            for (int j = 0; j < 3; j++){
+                data[4 + random.nextInt(data.length - 4)] = (byte) random.nextInt();
+            }
+
+            try {
+                compressor.decompress(new Frame(Frame.FLAG_COMPRESSED, 0, data, 0, data.length));
+            } catch (IOException expected) {
+
+            }
+        }
+
+        //The compressor still works after the broken frames
+        byte[] payload = repeated(4096);
+
+        assertArrayEquals(payload, compressor.decompress(copy(compressor.compress(new Frame(payload)))).getPayload());
+    }
+
+    /**
+     * The compressed frames point to a buffer the compressor reuses.
+     */
+    private static Frame copy(Frame frame) {
+        return new Frame(frame.getFlags(), frame.getStreamId(), frame.getPayload(), 0, frame.getLength());
+    }
+
+    private static void setDeclaredLength(Frame frame, int length) {
+        byte[] data = frame.getData();
+        int offset = frame.getOffset();
+
+        data[offset] = (byte) (length >>> 24);
+        data[offset + 1] = (byte) (length >>> 16);
+        data[offset + 2] = (byte) (length >>> 8);
+        data[offset + 3] = (byte) length;
+    }
+
+    private static byte[] repeated(int length) {
+        byte[] text = "a frame that compresses well ".getBytes();
+
+        byte[] data = new byte[length];
+
+        for (int i = 0; i < length; i++){
+            data[i] = text[i % text.length];
+        }
+
+        return data;
+    }
+}
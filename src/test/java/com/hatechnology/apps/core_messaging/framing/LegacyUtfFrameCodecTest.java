@@ -0,0 +1,86 @@
+package com.hatechnology.apps.core_messaging.framing;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LegacyUtfFrameCodecTest {
+    private static final int MAX_FRAME_BYTES = 65535;
+
+    private final LegacyUtfFrameCodec codec = new LegacyUtfFrameCodec();
+
+    @Test
+    public void decodesTheFramesItEncodes() throws IOException {
+        String text = "a message é 😀";
+
+        Frame frame = codec.decodeFrame(codec.encodeFrame(new Frame(bytes(text))));
+
+        assertEquals(text, new String(frame.getData(), frame.getOffset(), frame.getLength(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void splitsAnEmojiHeavyTextInPartsThatCanBeWritten() throws IOException {
+        StringBuilder text = new StringBuilder();
+
+        //Less than the max bytes in UTF-8, but not once written
+        for (int i = 0; i < 40000; i++){
+            text.append(i % 3 == 0 ? "a" : "😀");
+        }
+
+        assertTrue(bytes(text.toString()).length < MAX_FRAME_BYTES * 2);
+        assertWritable(text.toString(), LegacyUtfFrameCodec.split(text.toString(), MAX_FRAME_BYTES));
+    }
+
+    @Test
+    public void measuresTheNulCharactersAsTwoBytes() throws IOException {
+        char[] nuls = new char[MAX_FRAME_BYTES - 1];
+
+        List<String> parts = LegacyUtfFrameCodec.split(new String(nuls), MAX_FRAME_BYTES);
+
+        assertEquals(2, parts.size());
+        assertWritable(new String(nuls), parts);
+    }
+
+    @Test
+    public void doesNotSplitATextThatFits() {
+        String text = "😀 fits";
+
+        List<String> parts = LegacyUtfFrameCodec.split(text, 11);
+
+        assertEquals(1, parts.size());
+        assertSame(text, parts.get(0));
+    }
+
+    @Test
+    public void neverSeparatesTheCharsOfASupplementaryCharacter() {
+        List<String> parts = LegacyUtfFrameCodec.split("a😀😀", 7);
+
+        assertEquals(2, parts.size());
+        assertEquals("a😀", parts.get(0));
+        assertEquals("😀", parts.get(1));
+    }
+
+    private void assertWritable(String text, List<String> parts) throws IOException {
+        StringBuilder joined = new StringBuilder();
+
+        for (String part: parts){
+            assertFalse(Character.isLowSurrogate(part.charAt(0)));
+
+            ByteBuffer encoded = codec.encodeFrame(new Frame(bytes(part)));
+            Frame decoded = codec.decodeFrame(encoded);
+
+            joined.append(new String(decoded.getData(), StandardCharsets.UTF_8));
+        }
+
+        assertEquals(text, joined.toString());
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,133 @@
+package com.hatechnology.apps.core_messaging.framing;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class LengthPrefixedFrameCodecTest {
+    private final LengthPrefixedFrameCodec codec = new LengthPrefixedFrameCodec(1024);
+
+    @Test
+    public void decodesTheFramesItEncodes() throws IOException {
+        Frame message = new Frame(bytes("a message"));
+        Frame fragment = new Frame((byte) (Frame.FLAG_STREAM | Frame.FLAG_END_STREAM), 42, bytes("xxa fragmentxx"), 2, 10);
+
+        assertFrame(message, codec.decodeFrame(codec.encodeFrame(message)));
+        assertFrame(fragment, codec.decodeFrame(codec.encodeFrame(fragment)));
+    }
+
+    @Test
+    public void readsTheFramesItWrites() throws IOException {
+        Frame message = new Frame(bytes("a message"));
+        Frame fragment = new Frame(Frame.FLAG_STREAM, 7, bytes("a fragment"), 0, 10);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream outputStream = new DataOutputStream(bytes);
+
+        codec.writeFrame(outputStream, message);
+        codec.writeFrame(outputStream, fragment);
+
+        DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+
+        assertFrame(message, codec.readFrame(inputStream));
+        assertFrame(fragment, codec.readFrame(inputStream));
+    }
+
+    @Test
+    public void decodesSeveralFramesOfTheSameBuffer() throws IOException {
+        ByteBuffer first = codec.encodeFrame(new Frame(bytes("first")));
+        ByteBuffer second = codec.encodeFrame(new Frame(Frame.FLAG_STREAM, 1, bytes("second"), 0, 6));
+
+        ByteBuffer buffer = ByteBuffer.allocate(first.remaining() + second.remaining());
+        buffer.put(first).put(second).flip();
+
+        assertEquals("first", text(codec.decodeFrame(buffer)));
+        assertEquals("second", text(codec.decodeFrame(buffer)));
+        assertNull(codec.decodeFrame(buffer));
+    }
+
+    @Test
+    public void waitsForTheRestOfAnIncompleteFrame() throws IOException {
+        ByteBuffer encoded = codec.encodeFrame(new Frame(Frame.FLAG_STREAM, 3, bytes("complete"), 0, 8));
+        int length = encoded.remaining();
+
+        //Every cut, also in the middle of the header
+        for (int cut = 0; cut < length; cut++){
+            ByteBuffer partial = ByteBuffer.wrap(Arrays.copyOf(encoded.array(), cut));
+
+            assertNull(codec.decodeFrame(partial));
+            assertEquals(0, partial.position());
+        }
+
+        assertEquals(length, codec.getFrameLength(encoded));
+        assertEquals("complete", text(codec.decodeFrame(encoded)));
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesToDecodeAFrameOverTheMaxLength() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.putInt(1025).put((byte) 0).flip();
+
+        codec.decodeFrame(buffer);
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesToDecodeANegativeLength() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.putInt(-1).put((byte) 0).flip();
+
+        codec.decodeFrame(buffer);
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesToReadAFrameOverTheMaxLength() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeInt(Integer.MAX_VALUE);
+        bytes.write(0);
+
+        codec.readFrame(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesToEncodeAFrameOverTheMaxLength() throws IOException {
+        codec.encodeFrame(new Frame(new byte[1025]));
+    }
+
+    @Test(expected = IOException.class)
+    public void failsToReadATruncatedFrame() throws IOException {
+        ByteBuffer encoded = codec.encodeFrame(new Frame(bytes("truncated")));
+        byte[] truncated = Arrays.copyOf(encoded.array(), encoded.remaining() - 1);
+
+        codec.readFrame(new DataInputStream(new ByteArrayInputStream(truncated)));
+    }
+
+    @Test
+    public void limitsTheFramesToFourMegabytesPerDefault() {
+        assertEquals(4 * 1024 * 1024, new LengthPrefixedFrameCodec().getMaxFrameLength());
+    }
+
+    private static void assertFrame(Frame expected, Frame actual) {
+        assertEquals(expected.getFlags(), actual.getFlags());
+        assertEquals(expected.getStreamId(), actual.getStreamId());
+        assertEquals(expected.getLength(), actual.getLength());
+        assertArrayEquals(Arrays.copyOfRange(expected.getData(), expected.getOffset(), expected.getOffset() + expected.getLength()),
+                Arrays.copyOfRange(actual.getData(), actual.getOffset(), actual.getOffset() + actual.getLength()));
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(Frame frame) {
+        return new String(frame.getData(), frame.getOffset(), frame.getLength(), StandardCharsets.UTF_8);
+    }
+}
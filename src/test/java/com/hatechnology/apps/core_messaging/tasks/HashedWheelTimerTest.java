@@ -0,0 +1,129 @@
+package com.hatechnology.apps.core_messaging.tasks;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HashedWheelTimerTest {
+    //A turn of the wheel is 80 milliseconds
+    private static final long TICK_MILLIS = 10;
+    private static final int WHEEL_SIZE = 8;
+
+    private HashedWheelTimer timer;
+
+    @Before
+    public void createTimer() {
+        timer = new HashedWheelTimer("test-timer", TICK_MILLIS, TimeUnit.MILLISECONDS, WHEEL_SIZE);
+    }
+
+    @After
+    public void stopTimer() {
+        timer.stop();
+    }
+
+    @Test
+    public void runsTheTaskAfterTheDelay() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        long start = System.nanoTime();
+
+        HashedWheelTimer.Timeout timeout = timer.newTimeout(done::countDown, 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 50);
+        assertTrue(timeout.isExpired());
+        assertFalse(timeout.cancel());
+        assertEquals(0, timer.getPendingTimeouts());
+    }
+
+    @Test
+    public void waitsTheRoundsOfTheTimeoutsFurtherThanATurn() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        long start = System.nanoTime();
+
+        timer.newTimeout(done::countDown, 300, TimeUnit.MILLISECONDS);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 300);
+    }
+
+    @Test
+    public void runsTheLateTimeoutsRightAway() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+
+        timer.newTimeout(done::countDown, -1, TimeUnit.MILLISECONDS);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void doesNotRunATimeoutCancelledBeforeTheNextTick() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger();
+
+        HashedWheelTimer.Timeout timeout = timer.newTimeout(runs::incrementAndGet, 20, TimeUnit.MILLISECONDS);
+
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertTrue(timeout.isCancelled());
+
+        Thread.sleep(100);
+
+        assertEquals(0, runs.get());
+        assertEquals(0, timer.getPendingTimeouts());
+    }
+
+    @Test
+    public void doesNotRunATimeoutCancelledInTheWheel() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger();
+
+        HashedWheelTimer.Timeout timeout = timer.newTimeout(runs::incrementAndGet, 200, TimeUnit.MILLISECONDS);
+
+        //A few ticks, so it is already in its slot
+        Thread.sleep(5 * TICK_MILLIS);
+
+        assertTrue(timeout.cancel());
+
+        Thread.sleep(300);
+
+        assertEquals(0, runs.get());
+        assertEquals(0, timer.getPendingTimeouts());
+    }
+
+    @Test
+    public void runsEveryTimeoutOfTheSameSlot() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(100);
+
+        for (int i = 0; i < 100; i++){
+            //The same slot, some of them one or two turns later
+            timer.newTimeout(done::countDown, 20 + (i % 3) * WHEEL_SIZE * TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(0, timer.getPendingTimeouts());
+    }
+
+    @Test
+    public void aFailedTaskDoesNotStopTheTimer() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+
+        timer.newTimeout(() -> {
+            throw new IllegalStateException("Expected by the test");
+        }, 10, TimeUnit.MILLISECONDS);
+        timer.newTimeout(done::countDown, 30, TimeUnit.MILLISECONDS);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void doesNotTakeTimeoutsAfterStopping() {
+        timer.newTimeout(() -> { }, 10, TimeUnit.MILLISECONDS);
+        timer.stop();
+
+        timer.newTimeout(() -> { }, 10, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,132 @@
+package com.hatechnology.apps.server_messages;
+
+import com.hatechnology.apps.client_messages.AsyncSocketClient;
+import com.hatechnology.apps.core_messaging.MessageCodecs;
+import com.hatechnology.apps.core_messaging.SocketHost;
+import com.hatechnology.apps.core_messaging.framing.ProtocolHandshake;
+import com.hatechnology.apps.core_messaging.tasks.HashedWheelTimer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+public class SocketServerServiceTest {
+    private SocketServerService server;
+    private int port;
+
+    @Before
+    public void startServer() throws IOException {
+        port = freePort();
+
+        server = new SocketServerService(port, new ArrayList<>());
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stopServer();
+    }
+
+    @Test
+    public void cancelsTheAuthenticationTimeoutWhenTheClientLeaves() throws Exception {
+        long pendingTimeouts = HashedWheelTimer.getShared().getPendingTimeouts();
+
+        try (Socket socket = connect()){
+            await(() -> server.getmSocketClients().size() == 1);
+            await(() -> HashedWheelTimer.getShared().getPendingTimeouts() > pendingTimeouts);
+        }
+
+        //The timer does not keep the client for the rest of the 5 minutes
+        await(() -> server.getmSocketClients().isEmpty());
+        await(() -> HashedWheelTimer.getShared().getPendingTimeouts() <= pendingTimeouts);
+    }
+
+    @Test
+    public void cancelsTheAuthenticationTimeoutWhenTheClientIsAuthenticated() throws Exception {
+        List<SocketHost> hosts = new ArrayList<>();
+        hosts.add(new SocketHost("localhost", port));
+
+        long pendingTimeouts = HashedWheelTimer.getShared().getPendingTimeouts();
+
+        AsyncSocketClient client = new AsyncSocketClient("server-test", hosts);
+        client.start();
+
+        try {
+            await(() -> server.getSocketClientByUniqueId("server-test") != null);
+
+            SocketClientService socketClientService = server.getSocketClientByUniqueId("server-test");
+
+            await(socketClientService::isAuthenticated);
+            await(() -> HashedWheelTimer.getShared().getPendingTimeouts() <= pendingTimeouts);
+        } finally {
+            client.setKeepConnectionAlive(false);
+            client.disconnect(false);
+        }
+    }
+
+    @Test
+    public void closesAClientThatIsNotAuthenticatedAndSendsABigFrame() throws Exception {
+        long pendingTimeouts = HashedWheelTimer.getShared().getPendingTimeouts();
+
+        try (Socket socket = connect()){
+            DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+            ProtocolHandshake.connect(new DataInputStream(socket.getInputStream()), outputStream, new ProtocolHandshake.Preface((byte) 0, MessageCodecs.GSON.getId(), 1, 1024));
+
+            await(() -> server.getmSocketClients().size() == 1);
+
+            //Just the header, the read buffer would be grown to 1 MB to wait for the rest
+            outputStream.writeInt(1024 * 1024);
+            outputStream.writeByte(0);
+            outputStream.flush();
+
+            await(() -> server.getmSocketClients().isEmpty());
+        }
+
+        //The other tests count the timeouts of the shared timer, its authentication timeout must be gone
+        await(() -> HashedWheelTimer.getShared().getPendingTimeouts() <= pendingTimeouts);
+    }
+
+    /**
+     * The server is started in its own thread, so it can take a moment to listen.
+     */
+    private Socket connect() throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (true){
+            try {
+                return new Socket("localhost", port);
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline)
+                    throw e;
+
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while ( !condition.getAsBoolean()){
+            assertTrue("The condition was not met in time", System.currentTimeMillis() < deadline);
+
+            Thread.sleep(10);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)){
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.hatechnology.apps.server_messages;
+
+import org.junit.Test;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TopicRegistryTest {
+    private final TopicRegistry registry = new TopicRegistry();
+
+    @Test
+    public void subscribesUpToTheMaxTopics() throws Exception {
+        SocketClientService client = newClient();
+
+        assertTrue(registry.subscribe("a", client, 2));
+        assertTrue(registry.subscribe("b", client, 2));
+        assertFalse(registry.subscribe("c", client, 2));
+
+        //Already subscribed, so it does not count again
+        assertTrue(registry.subscribe("a", client, 2));
+
+        assertEquals(2, registry.getTopics(client).size());
+        assertTrue(registry.getSubscribers("a").contains(client));
+        assertTrue(registry.getSubscribers("c").isEmpty());
+    }
+
+    @Test
+    public void doesNotGoOverTheMaxTopicsWithConcurrentSubscriptions() throws Exception {
+        for (int round = 0; round < 200; round++){
+            SocketClientService client = newClient();
+            CountDownLatch start = new CountDownLatch(1);
+            AtomicInteger accepted = new AtomicInteger();
+            List<Thread> threads = new ArrayList<>();
+
+            for (int i = 0; i < 8; i++){
+                String topic = "topic-" + i;
+
+                Thread thread = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    if (registry.subscribe(topic, client, 3))
+                        accepted.incrementAndGet();
+                });
+                thread.start();
+                threads.add(thread);
+            }
+
+            start.countDown();
+
+            for (Thread thread: threads){
+                thread.join();
+            }
+
+            assertEquals(3, accepted.get());
+            assertEquals(3, registry.getTopics(client).size());
+
+            registry.remove(client);
+        }
+    }
+
+    @Test
+    public void removesTheClientFromAllItsTopics() throws Exception {
+        SocketClientService client = newClient();
+
+        registry.subscribe("a", client, 10);
+        registry.subscribe("b", client, 10);
+        registry.remove(client);
+
+        assertTrue(registry.getTopics(client).isEmpty());
+        assertTrue(registry.getTopics().isEmpty());
+    }
+
+    private static SocketClientService newClient() throws Exception {
+        return new SocketClientService(new Socket(), 1024, 5, false, null, null);
+    }
+}
@@ -0,0 +1,49 @@
+package com.hatechnology.apps.server_messages.cluster;
+
+import com.hatechnology.apps.exceptions.BusinessException;
+import com.hatechnology.apps.server_messages.SocketServerService;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class ClusterNodeTest {
+    private final ClusterNode node = new ClusterNode("node", new SocketServerService(0, new ArrayList<>()), new ArrayList<>());
+
+    @After
+    public void stop() {
+        node.stop();
+    }
+
+    @Test
+    public void doesNotStartWithoutAToken() {
+        try {
+            node.start();
+            fail("The node started without a token");
+        } catch (BusinessException expected) {
+
+        }
+
+        assertFalse(node.isStarted());
+        assertFalse(node.isClusterToken(""));
+    }
+
+    @Test
+    public void acceptsJustTheTokenOfTheCluster() throws BusinessException {
+        node.setClusterToken("secret");
+
+        //Not before it is started
+        assertFalse(node.isClusterToken("secret"));
+
+        node.start();
+
+        assertTrue(node.isClusterToken("secret"));
+        assertFalse(node.isClusterToken(""));
+        assertFalse(node.isClusterToken(null));
+        assertFalse(node.isClusterToken("secret "));
+        assertFalse(node.isClusterToken("secreT"));
+        assertFalse(node.isClusterToken("secre"));
+    }
+}
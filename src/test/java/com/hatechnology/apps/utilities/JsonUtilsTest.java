@@ -0,0 +1,55 @@
+package com.hatechnology.apps.utilities;
+
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+
+import static org.junit.Assert.*;
+
+public class JsonUtilsTest {
+    //What Gson wrote by reflection before Java 17, the legacy endpoints still write and expect it
+    private static final String DATE_JSON = "{\"date\":{\"year\":2024,\"month\":2,\"day\":29},\"time\":{\"hour\":23,\"minute\":59,\"second\":58,\"nano\":123456789}}";
+    private static final LocalDateTime DATE = LocalDateTime.of(2024, 2, 29, 23, 59, 58, 123456789);
+
+    @Test
+    public void writesTheDatesWithTheReflectionFields() {
+        assertEquals(DATE_JSON, JsonUtils.convertToJson(DATE));
+    }
+
+    @Test
+    public void readsTheDatesWithTheReflectionFields() {
+        assertEquals(DATE, JsonUtils.convertFromJsonToObject(DATE_JSON, LocalDateTime.class));
+    }
+
+    @Test
+    public void readsTheDatesInsideAnObject() {
+        Dated dated = new Dated();
+        dated.name = "dated";
+        dated.dateTime = DATE;
+
+        Dated read = (Dated) JsonUtils.convertFromJsonToObject(JsonUtils.convertToJson(dated), Dated.class);
+
+        assertEquals("dated", read.name);
+        assertEquals(DATE, read.dateTime);
+    }
+
+    @Test
+    public void keepsTheNullDates() {
+        Dated dated = new Dated();
+
+        assertEquals("{}", JsonUtils.convertToJson(dated));
+        assertNull(((Dated) JsonUtils.convertFromJsonToObject("{\"dateTime\":null}", Dated.class)).dateTime);
+    }
+
+    @Test
+    public void ignoresTheUnknownFields() {
+        String json = "{\"zone\":\"UTC\",\"date\":{\"year\":2024,\"month\":2,\"day\":29,\"era\":1},\"time\":{\"hour\":23,\"minute\":59,\"second\":58,\"nano\":123456789}}";
+
+        assertEquals(DATE, JsonUtils.convertFromJsonToObject(json, LocalDateTime.class));
+    }
+
+    private static class Dated {
+        private String name;
+        private LocalDateTime dateTime;
+    }
+}